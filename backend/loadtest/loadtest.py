@@ -0,0 +1,222 @@
+#!/usr/bin/env python3
+"""Closed-loop load generator for the MeTube backend.
+
+Each of --concurrency virtual users sends a request, reads the whole body, and immediately sends the next,
+until --requests have been made or --duration seconds have passed. Video ids are drawn from a pool of
+--videos ids, so the pool size controls the cache hit ratio (1 = everything after the first is a hit).
+
+Reports throughput, latency and time-to-first-byte percentiles, bytes received and the error mix.
+Only uses the standard library.
+
+  ./loadtest.py --base-url http://localhost:8080 --concurrency 200 --duration 120 --videos 50
+"""
+import argparse
+import http.client
+import json
+import random
+import string
+import sys
+import threading
+import time
+import urllib.parse
+from collections import Counter
+
+
+def parse_args():
+    parser = argparse.ArgumentParser(description=__doc__, formatter_class=argparse.RawDescriptionHelpFormatter)
+    parser.add_argument("--base-url", default="http://localhost:8080")
+    parser.add_argument("--concurrency", type=int, default=50, help="simultaneous virtual users")
+    parser.add_argument("--requests", type=int, default=0, help="stop after this many requests (0 = no limit)")
+    parser.add_argument("--duration", type=float, default=60, help="stop after this many seconds")
+    parser.add_argument("--videos", type=int, default=100, help="distinct video ids to draw from")
+    parser.add_argument("--mix", default="mp4:best=4,mp4:720p=3,mp3:best=2,mp3:128k=1",
+                        help="weighted format:quality choices")
+    parser.add_argument("--method", choices=["post", "get"], default="post",
+                        help="POST /api/stream with a JSON body, or GET /api/stream?url=")
+    parser.add_argument("--progressive", action="store_true", help="ask for piped progressive mp4")
+    parser.add_argument("--timeout", type=float, default=600, help="per-request socket timeout in seconds")
+    parser.add_argument("--seed", type=int, default=None)
+    parser.add_argument("--json", metavar="FILE", help="also write the summary as JSON")
+    return parser.parse_args()
+
+
+def video_ids(count, rng):
+    alphabet = string.ascii_letters + string.digits + "-_"
+    return ["".join(rng.choice(alphabet) for _ in range(11)) for _ in range(count)]
+
+
+def parse_mix(spec):
+    choices, weights = [], []
+    for item in spec.split(","):
+        variant, _, weight = item.partition("=")
+        fmt, _, quality = variant.partition(":")
+        choices.append((fmt, quality or "best"))
+        weights.append(float(weight or 1))
+    return choices, weights
+
+
+class Result:
+    __slots__ = ("status", "latency", "ttfb", "bytes", "error", "retry_after")
+
+    def __init__(self, status, latency, ttfb, size, error, retry_after):
+        self.status = status
+        self.latency = latency
+        self.ttfb = ttfb
+        self.bytes = size
+        self.error = error
+        self.retry_after = retry_after
+
+
+def one_request(target, args, video, fmt, quality):
+    query = {"format": fmt, "quality": quality}
+    if args.progressive:
+        query["progressive"] = "true"
+    url = "https://www.youtube.com/watch?v=" + video
+
+    if args.method == "get":
+        query["url"] = url
+        body, headers, method = None, {}, "GET"
+    else:
+        body = json.dumps({"url": url})
+        headers, method = {"Content-Type": "application/json"}, "POST"
+    path = target.path.rstrip("/") + "/api/stream?" + urllib.parse.urlencode(query)
+
+    started = time.monotonic()
+    connection_class = http.client.HTTPSConnection if target.scheme == "https" else http.client.HTTPConnection
+    connection = connection_class(target.netloc, timeout=args.timeout)
+    try:
+        connection.request(method, path, body=body, headers=headers)
+        response = connection.getresponse()
+        first = response.read(1)
+        ttfb = time.monotonic() - started
+        if response.status >= 400:
+            payload = first + response.read()
+            return Result(response.status, time.monotonic() - started, ttfb, len(payload),
+                          error_text(response.status, payload), response.getheader("Retry-After"))
+
+        size = len(first)
+        while True:
+            chunk = response.read(256 * 1024)
+            if not chunk:
+                break
+            size += len(chunk)
+        return Result(response.status, time.monotonic() - started, ttfb, size, None, None)
+    except Exception as exc:  # connection refused, reset, timeout
+        return Result(0, time.monotonic() - started, None, 0, type(exc).__name__, None)
+    finally:
+        connection.close()
+
+
+def error_text(status, payload):
+    # ApiExceptionHandler answers {"error": "..."}; anything else is bucketed by status alone.
+    try:
+        message = json.loads(payload.decode("utf-8")).get("error")
+    except (ValueError, AttributeError, UnicodeDecodeError):
+        message = None
+    return "HTTP %d: %s" % (status, message) if message else "HTTP %d" % status
+
+
+def percentile(values, fraction):
+    if not values:
+        return None
+    ordered = sorted(values)
+    index = min(len(ordered) - 1, max(0, int(round(fraction * (len(ordered) - 1)))))
+    return ordered[index]
+
+
+def summarize(results, elapsed):
+    ok = [r for r in results if 200 <= r.status < 300]
+    latencies = [r.latency for r in ok]
+    ttfbs = [r.ttfb for r in ok if r.ttfb is not None]
+    total_bytes = sum(r.bytes for r in ok)
+    errors = Counter(r.error for r in results if r.error or not 200 <= r.status < 300)
+    retry_after = [int(r.retry_after) for r in results if r.retry_after and r.retry_after.isdigit()]
+
+    def stats(values):
+        return {name: percentile(values, p) for name, p in (("p50", 0.5), ("p90", 0.9), ("p99", 0.99))} | {
+            "max": max(values) if values else None}
+
+    return {
+        "requests": len(results),
+        "succeeded": len(ok),
+        "elapsed_seconds": elapsed,
+        "throughput_rps": len(ok) / elapsed if elapsed else 0,
+        "throughput_mib_s": total_bytes / 1048576 / elapsed if elapsed else 0,
+        "latency_seconds": stats(latencies),
+        "ttfb_seconds": stats(ttfbs),
+        "status_counts": dict(Counter(r.status for r in results)),
+        "errors": dict(errors),
+        "retry_after_seconds": stats(retry_after) if retry_after else None,
+    }
+
+
+def print_summary(summary):
+    def fmt(value):
+        return "-" if value is None else "%.3f" % value
+
+    print()
+    print("requests      %d (%d ok) in %.1fs" % (summary["requests"], summary["succeeded"], summary["elapsed_seconds"]))
+    print("throughput    %.2f req/s, %.2f MiB/s" % (summary["throughput_rps"], summary["throughput_mib_s"]))
+    for label, key in (("latency", "latency_seconds"), ("ttfb", "ttfb_seconds")):
+        s = summary[key]
+        print("%-13s p50 %s  p90 %s  p99 %s  max %s  (s)" % (label, fmt(s["p50"]), fmt(s["p90"]),
+                                                               fmt(s["p99"]), fmt(s["max"])))
+    print("status        " + ", ".join("%s: %d" % item for item in sorted(summary["status_counts"].items())))
+    if summary["errors"]:
+        print("errors")
+        for error, count in sorted(summary["errors"].items(), key=lambda item: -item[1]):
+            print("  %6d  %s" % (count, error))
+    if summary["retry_after_seconds"]:
+        s = summary["retry_after_seconds"]
+        print("retry-after   p50 %s  p99 %s  (s)" % (s["p50"], s["p99"]))
+
+
+def main():
+    args = parse_args()
+    rng = random.Random(args.seed)
+    target = urllib.parse.urlparse(args.base_url)
+    videos = video_ids(args.videos, rng)
+    choices, weights = parse_mix(args.mix)
+
+    results = []
+    lock = threading.Lock()
+    issued = [0]
+    deadline = time.monotonic() + args.duration
+    started = time.monotonic()
+
+    def user(seed):
+        local = random.Random(seed)
+        while time.monotonic() < deadline:
+            with lock:
+                if args.requests and issued[0] >= args.requests:
+                    return
+                issued[0] += 1
+            fmt, quality = local.choices(choices, weights)[0]
+            result = one_request(target, args, local.choice(videos), fmt, quality)
+            with lock:
+                results.append(result)
+
+    threads = [threading.Thread(target=user, args=(rng.random(),), daemon=True) for _ in range(args.concurrency)]
+    for thread in threads:
+        thread.start()
+
+    try:
+        while any(thread.is_alive() for thread in threads):
+            time.sleep(1)
+            with lock:
+                done = len(results)
+                failed = sum(1 for r in results if not 200 <= r.status < 300)
+            print("\r%6.0fs  %d done, %d failed" % (time.monotonic() - started, done, failed), end="", flush=True)
+    except KeyboardInterrupt:
+        print("\ninterrupted, summarizing completed requests", file=sys.stderr)
+
+    with lock:
+        summary = summarize(list(results), time.monotonic() - started)
+    print_summary(summary)
+    if args.json:
+        with open(args.json, "w") as out:
+            json.dump(summary, out, indent=2)
+
+
+if __name__ == "__main__":
+    main()
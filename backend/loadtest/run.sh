@@ -0,0 +1,61 @@
+#!/usr/bin/env bash
+# Starts the backend against the stub yt-dlp/ffmpeg in ./stubs, runs loadtest.py with the given
+# arguments, and stops the backend again. Everything runs locally; nothing talks to YouTube.
+#
+#   ./run.sh --concurrency 200 --duration 120 --videos 50
+#   STUB_FAILURES=429:0.05 APP_DOWNLOAD_MAX_CONCURRENT=8 ./run.sh --concurrency 200 --duration 60
+#
+# Set JAR to reuse an existing build, PORT to change the port (default 18080).
+# The per-client throttle is off and the upstream pacing and breaker are loose by default, so the run
+# measures the download path; set the APP_THROTTLE_* / APP_UPSTREAM_* variables to exercise them.
+set -euo pipefail
+
+here="$(cd "$(dirname "$0")" && pwd)"
+backend="$(dirname "$here")"
+port="${PORT:-18080}"
+
+if [[ -z "${JAR:-}" ]]; then
+    (cd "$backend" && ./mvnw -B -q -DskipTests package)
+    JAR="$(ls "$backend"/target/*.jar | grep -v -e '-plain.jar$' -e '.original$' | head -n 1)"
+fi
+
+work="$(mktemp -d -t metube-loadtest-XXXXXX)"
+log="$work/backend.log"
+
+cleanup() {
+    [[ -n "${server:-}" ]] && kill "$server" 2>/dev/null && wait "$server" 2>/dev/null || true
+    rm -rf "$work"
+}
+trap cleanup EXIT
+
+YT_DLP_PATH="$here/stubs/yt-dlp" \
+FFMPEG_PATH="$here/stubs/ffmpeg" \
+APP_CACHE_DIR="$work/cache" \
+APP_REDIS_ENABLED=false \
+APP_THROTTLE_ENABLED="${APP_THROTTLE_ENABLED:-false}" \
+APP_UPSTREAM_RATE_PER_MINUTE="${APP_UPSTREAM_RATE_PER_MINUTE:-600000}" \
+APP_UPSTREAM_BURST="${APP_UPSTREAM_BURST:-10000}" \
+APP_UPSTREAM_MAX_WAIT_SECONDS="${APP_UPSTREAM_MAX_WAIT_SECONDS:-20}" \
+APP_UPSTREAM_BREAKER_FAILURES="${APP_UPSTREAM_BREAKER_FAILURES:-1000000}" \
+APP_UPSTREAM_BREAKER_WINDOW_SECONDS="${APP_UPSTREAM_BREAKER_WINDOW_SECONDS:-60}" \
+APP_UPSTREAM_BREAKER_OPEN_SECONDS="${APP_UPSTREAM_BREAKER_OPEN_SECONDS:-120}" \
+APP_UPSTREAM_BREAKER_MAX_OPEN_SECONDS="${APP_UPSTREAM_BREAKER_MAX_OPEN_SECONDS:-900}" \
+PORT="$port" \
+MANAGEMENT_PORT="${MANAGEMENT_PORT:-0}" \
+    java ${JAVA_OPTS:-} -jar "$JAR" >"$log" 2>&1 &
+server=$!
+
+echo "Waiting for backend on port $port (log: $log)"
+for _ in $(seq 1 120); do
+    if curl -fs "http://localhost:$port/readyz" >/dev/null 2>&1; then
+        break
+    fi
+    if ! kill -0 "$server" 2>/dev/null; then
+        echo "Backend exited during startup:" >&2
+        tail -n 50 "$log" >&2
+        exit 1
+    fi
+    sleep 1
+done
+
+python3 "$here/loadtest.py" --base-url "http://localhost:$port" "$@"
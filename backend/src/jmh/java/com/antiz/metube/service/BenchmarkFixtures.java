@@ -0,0 +1,119 @@
+package com.antiz.metube.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.WriteListener;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Wiring shared by the benchmarks: a {@link YoutubeDownloadService} with just the collaborators the measured
+ * methods touch, a response that discards its body, and a process that replays canned output.
+ */
+final class BenchmarkFixtures {
+
+    static final PrintStream NULL_PRINT_STREAM = new PrintStream(OutputStream.nullOutputStream());
+
+    private BenchmarkFixtures() {
+    }
+
+    static DownloadMetrics metrics() {
+        DownloadScheduler scheduler = new DownloadScheduler(2, 20, 120);
+        return new DownloadMetrics(new SimpleMeterRegistry(), scheduler, new FragmentTuner(scheduler, true, 8, 16),
+                new UpstreamGuard(30, 10, 20, 5, 60, 120, 900));
+    }
+
+    static YoutubeDownloadService downloadService() {
+        YoutubeDownloadService service = new YoutubeDownloadService();
+        ReflectionTestUtils.setField(service, "downloadMetrics", metrics());
+        ReflectionTestUtils.setField(service, "processStreams", new ProcessStreams(64));
+        ReflectionTestUtils.setField(service, "downloadWatchdog", new DownloadWatchdog(60, 60));
+        return service;
+    }
+
+    /**
+     * Counts body bytes instead of buffering them, so large files measure the copy rather than heap growth.
+     */
+    static final class DiscardingResponse extends MockHttpServletResponse {
+        long written;
+
+        private final ServletOutputStream out = new ServletOutputStream() {
+            @Override
+            public void write(int b) {
+                written++;
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                written += len;
+            }
+
+            @Override
+            public boolean isReady() {
+                return true;
+            }
+
+            @Override
+            public void setWriteListener(WriteListener writeListener) {
+            }
+        };
+
+        @Override
+        public ServletOutputStream getOutputStream() {
+            return out;
+        }
+    }
+
+    /**
+     * A finished process whose stdout and stderr replay fixed bytes.
+     */
+    static final class CannedProcess extends Process {
+        private final InputStream stdout;
+        private final InputStream stderr;
+
+        CannedProcess(byte[] stdout, byte[] stderr) {
+            this.stdout = new ByteArrayInputStream(stdout);
+            this.stderr = new ByteArrayInputStream(stderr);
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return OutputStream.nullOutputStream();
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return stdout;
+        }
+
+        @Override
+        public InputStream getErrorStream() {
+            return stderr;
+        }
+
+        @Override
+        public int waitFor() {
+            return 0;
+        }
+
+        @Override
+        public boolean waitFor(long timeout, TimeUnit unit) {
+            return true;
+        }
+
+        @Override
+        public int exitValue() {
+            return 0;
+        }
+
+        @Override
+        public void destroy() {
+        }
+    }
+}
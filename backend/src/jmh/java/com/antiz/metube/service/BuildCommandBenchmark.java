@@ -0,0 +1,34 @@
+package com.antiz.metube.service;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Assembling the yt-dlp argument list, including the binary lookups and environment reads it does per call.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+public class BuildCommandBenchmark {
+
+    @Param({"mp4", "mp3"})
+    String format;
+
+    private YoutubeDownloadService service;
+    private Quality quality;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        service = BenchmarkFixtures.downloadService();
+        quality = format.equals("mp3") ? Quality.K192 : Quality.P1080;
+    }
+
+    @Benchmark
+    public List<String> build() {
+        return service.buildCommand("https://www.youtube.com/watch?v=dQw4w9WgXcQ", format,
+                "bestvideo[height<=1080]", quality, "/tmp/metube-cache/partial/bench." + format, "android",
+                EgressPool.Egress.DIRECT, 4);
+    }
+}
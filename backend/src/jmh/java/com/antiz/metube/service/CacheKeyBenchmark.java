@@ -0,0 +1,69 @@
+package com.antiz.metube.service;
+
+import org.openjdk.jmh.annotations.*;
+import org.springframework.util.FileSystemUtils;
+import org.springframework.util.unit.DataSize;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Building a cache key from the URL shapes clients actually send, and looking keys up in an
+ * {@link ArtifactCache} holding a realistic number of entries.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+public class CacheKeyBenchmark {
+
+    private static final int ENTRIES = 2_000;
+
+    @Param({
+            "https://www.youtube.com/watch?v=dQw4w9WgXcQ&list=PL123&index=4&t=42s&si=abcdef",
+            "https://youtu.be/dQw4w9WgXcQ?si=abcdef",
+            "https://m.youtube.com/shorts/dQw4w9WgXcQ",
+            "https://vimeo.com/123456789"
+    })
+    String url;
+
+    private Path dir;
+    private ArtifactCache cache;
+    private String hitKey;
+    private String missKey;
+
+    @Setup(Level.Trial)
+    public void fillCache() throws IOException {
+        dir = Files.createTempDirectory("metube-bench-cache-");
+        cache = new ArtifactCache(dir.toString(), DataSize.ofGigabytes(10), 6);
+        cache.start();
+        for (int i = 0; i < ENTRIES; i++) {
+            Path partial = cache.newPartialFile("mp4");
+            Files.write(partial, new byte[]{1});
+            cache.publish(YoutubeDownloadService.artifactKey("yt:video" + i, "mp4", Quality.P1080), partial);
+        }
+        hitKey = YoutubeDownloadService.artifactKey("yt:video" + (ENTRIES / 2), "mp4", Quality.P1080);
+        missKey = YoutubeDownloadService.artifactKey("yt:missing", "mp4", Quality.P1080);
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteCache() throws IOException {
+        FileSystemUtils.deleteRecursively(dir);
+    }
+
+    @Benchmark
+    public String buildKey() {
+        return YoutubeDownloadService.artifactKey(UrlCanonicalizer.cacheIdentity(url), "mp4", Quality.P1080);
+    }
+
+    @Benchmark
+    public String lookupHit() {
+        return cache.lookup(hitKey);
+    }
+
+    @Benchmark
+    public String lookupMiss() {
+        return cache.lookup(missKey);
+    }
+}
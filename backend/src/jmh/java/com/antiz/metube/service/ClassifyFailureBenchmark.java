@@ -0,0 +1,52 @@
+package com.antiz.metube.service;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@code classifyFailure} over stderr as yt-dlp actually prints it: warnings and retry chatter first,
+ * the deciding ERROR line last.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+public class ClassifyFailureBenchmark {
+
+    private static final String PREAMBLE = """
+            [youtube] Extracting URL: https://www.youtube.com/watch?v=dQw4w9WgXcQ
+            [youtube] dQw4w9WgXcQ: Downloading webpage
+            [youtube] dQw4w9WgXcQ: Downloading android player API JSON
+            WARNING: [youtube] dQw4w9WgXcQ: nsig extraction failed: Some formats may be missing
+                     n = 3kPzUpe5QMl0c0zT ; player = https://www.youtube.com/s/player/1f4c2b1e/player_ias.vflset/en_US/base.js
+            WARNING: [youtube] Unable to download webpage: HTTP Error 503: Service Unavailable (caused by <HTTPError 503>). Retrying (1/3)...
+            """;
+
+    private static final Map<String, String> BLOBS = Map.of(
+            "bot_check", PREAMBLE + "ERROR: [youtube] dQw4w9WgXcQ: Sign in to confirm you’re not a bot. "
+                    + "Use --cookies-from-browser or --cookies for the authentication.",
+            "geo", PREAMBLE + "ERROR: [youtube] dQw4w9WgXcQ: The uploader has not made this video available in your country",
+            "format", PREAMBLE + "ERROR: [youtube] dQw4w9WgXcQ: Requested format is not available. "
+                    + "Use --list-formats for a list of available formats",
+            "throttled", PREAMBLE + "ERROR: unable to download video data: HTTP Error 429: Too Many Requests",
+            "unknown", PREAMBLE.repeat(20) + "ERROR: Postprocessing: Conversion failed!"
+    );
+
+    @Param({"bot_check", "geo", "format", "throttled", "unknown"})
+    String failure;
+
+    private YoutubeDownloadService service;
+    private String stderr;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        service = BenchmarkFixtures.downloadService();
+        stderr = "yt-dlp failed (exit 1): " + BLOBS.get(failure);
+    }
+
+    @Benchmark
+    public RuntimeException classify() {
+        return service.classifyFailure(stderr);
+    }
+}
@@ -0,0 +1,68 @@
+package com.antiz.metube.service;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Consuming a yt-dlp run: reading --newline progress from stdout, parsing it, and draining stderr on the
+ * reader executor. The process is canned so the numbers exclude fork/exec and the network.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+public class RunCommandBenchmark {
+
+    @Param({"100", "2000"})
+    int progressLines;
+
+    @Param({"10", "500"})
+    int stderrLines;
+
+    private YoutubeDownloadService service;
+    private byte[] stdout;
+    private byte[] stderr;
+    private PrintStream originalOut;
+    private PrintStream originalErr;
+    private long deadline;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        service = BenchmarkFixtures.downloadService();
+        deadline = System.nanoTime() + TimeUnit.DAYS.toNanos(1);
+
+        StringBuilder out = new StringBuilder("[youtube] Extracting URL: https://www.youtube.com/watch?v=dQw4w9WgXcQ\n");
+        for (int i = 1; i <= progressLines; i++) {
+            double percent = 100.0 * i / progressLines;
+            out.append(String.format("[download]  %5.1f%% of  512.34MiB at    8.21MiB/s ETA 00:%02d%n", percent, i % 60));
+        }
+        out.append("[Merger] Merging formats into \"/tmp/metube-cache/partial/bench.mp4\"\n");
+        stdout = out.toString().getBytes(StandardCharsets.UTF_8);
+
+        StringBuilder err = new StringBuilder();
+        for (int i = 0; i < stderrLines; i++) {
+            err.append("WARNING: [youtube] dQw4w9WgXcQ: nsig extraction failed: Some formats may be missing\n");
+        }
+        stderr = err.toString().getBytes(StandardCharsets.UTF_8);
+
+        // The method logs every line; keep the cost of building those lines but not of writing them to the console.
+        originalOut = System.out;
+        originalErr = System.err;
+        System.setOut(BenchmarkFixtures.NULL_PRINT_STREAM);
+        System.setErr(BenchmarkFixtures.NULL_PRINT_STREAM);
+    }
+
+    @TearDown(Level.Trial)
+    public void restoreConsole() {
+        System.setOut(originalOut);
+        System.setErr(originalErr);
+    }
+
+    @Benchmark
+    public void consume(Blackhole blackhole) throws InterruptedException {
+        service.awaitYtDlp(new BenchmarkFixtures.CannedProcess(stdout, stderr), () -> 0L, deadline, blackhole::consume);
+    }
+}
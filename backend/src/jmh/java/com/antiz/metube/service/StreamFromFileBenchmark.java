@@ -0,0 +1,59 @@
+package com.antiz.metube.service;
+
+import org.openjdk.jmh.annotations.*;
+import org.springframework.mock.web.MockHttpServletRequest;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serving a cached artifact through {@code streamFromFile}, whole and as a Range request. Multiply ops/s by
+ * the file size (or half of it for "range") for bytes per second.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+public class StreamFromFileBenchmark {
+
+    @Param({"1048576", "16777216", "134217728"})
+    long fileSize;
+
+    @Param({"full", "range"})
+    String request;
+
+    private YoutubeDownloadService service;
+    private Path file;
+
+    @Setup(Level.Trial)
+    public void createFile() throws IOException {
+        service = BenchmarkFixtures.downloadService();
+        file = Files.createTempFile("metube-bench-", ".mp4");
+        byte[] chunk = new byte[1024 * 1024];
+        new Random(42).nextBytes(chunk);
+        try (OutputStream out = Files.newOutputStream(file)) {
+            for (long remaining = fileSize; remaining > 0; remaining -= chunk.length) {
+                out.write(chunk, 0, (int) Math.min(chunk.length, remaining));
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteFile() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    @Benchmark
+    public long serve() throws IOException {
+        MockHttpServletRequest req = new MockHttpServletRequest("GET", "/api/stream");
+        if (request.equals("range")) {
+            req.addHeader("Range", "bytes=0-" + (fileSize / 2 - 1));
+        }
+        BenchmarkFixtures.DiscardingResponse resp = new BenchmarkFixtures.DiscardingResponse();
+        service.serveArtifact(file.toString(), "mp4", req, resp);
+        return resp.written;
+    }
+}
@@ -1,27 +1,68 @@
 package com.antiz.metube;
 
-import org.springframework.boot.CommandLineRunner;
+import com.antiz.metube.service.ArtifactStore;
+import com.antiz.metube.service.SharedDirectoryArtifactStore;
+import org.springframework.aot.AotDetector;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnBean;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.ApplicationListener;
 import org.springframework.context.annotation.Bean;
+import org.springframework.core.task.VirtualThreadTaskExecutor;
+import org.springframework.data.redis.connection.RedisConnection;
 import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.scheduling.annotation.EnableScheduling;
+
+import java.lang.management.ManagementFactory;
 
 
 @SpringBootApplication
+@EnableScheduling
 public class MetubeApplication {
 
+    // Off the startup path: connecting to a remote Redis can take longer than the whole rest of startup,
+    // and RedisCacheService already treats an unreachable Redis as a miss.
     @Bean
     @ConditionalOnProperty(name = "app.redis.enabled", havingValue = "true")
     @ConditionalOnBean(RedisConnectionFactory.class)
-    CommandLineRunner checkRedis(RedisConnectionFactory factory) {
-        return args -> {
-            try {
-                System.out.println("Redis PING: " + factory.getConnection().ping());
+    ApplicationListener<ApplicationReadyEvent> checkRedis(RedisConnectionFactory factory) {
+        return event -> new VirtualThreadTaskExecutor("redis-check-").execute(() -> {
+            try (RedisConnection connection = factory.getConnection()) {
+                System.out.println("Redis PING: " + connection.ping());
             } catch (Exception e) {
                 System.err.println("Redis check skipped: " + e.getMessage());
             }
+        });
+    }
+
+    // JVM uptime includes class loading before Spring starts, which is what CDS saves; Spring Boot's own
+    // application.ready.time metric covers the rest.
+    @Bean
+    ApplicationListener<ApplicationReadyEvent> reportStartup(@Value("${app.redis.enabled:false}") boolean redisEnabled,
+                                                             @Value("${app.store.type:local}") String storeType) {
+        return event -> {
+            boolean aot = AotDetector.useGeneratedArtifacts();
+            long jvmMillis = ManagementFactory.getRuntimeMXBean().getUptime();
+            System.out.println("Ready in " + jvmMillis + " ms since JVM start ("
+                    + event.getTimeTaken().toMillis() + " ms in Spring, AOT " + (aot ? "on" : "off") + ")");
+            // AOT fixes @ConditionalOnProperty beans at build time, so the Redis beans exist only if the
+            // build had Redis enabled too.
+            boolean redisBuilt = event.getApplicationContext()
+                    .getBeanNamesForType(RedisConnectionFactory.class).length > 0;
+            if (aot && redisEnabled && !redisBuilt) {
+                System.err.println("app.redis.enabled is true but this AOT build was made without Redis; "
+                        + "rebuild with -Daot.redis.enabled=true. Running without Redis.");
+            }
+            boolean sharedBuilt = event.getApplicationContext().getBean(ArtifactStore.class)
+                    instanceof SharedDirectoryArtifactStore;
+            if (sharedBuilt != storeType.equals("shared-dir")) {
+                System.err.println("app.store.type is " + storeType + " but this build uses the "
+                        + (sharedBuilt ? "shared-dir" : "local") + " artifact store; rebuild with "
+                        + "-Daot.store.type=" + storeType + ".");
+            }
         };
     }
 
@@ -0,0 +1,132 @@
+package com.antiz.metube.config;
+
+import com.antiz.metube.service.ClientThrottle;
+import com.antiz.metube.service.DownloadException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Applies {@link ClientThrottle} to the endpoints that can start yt-dlp, before the request reaches a
+ * controller. Runs after the security chain, so rejections still carry CORS headers. The concurrency slot
+ * is freed when the request ends, unless a handler whose work outlives the request (a job, an HLS session)
+ * took it over with {@link ClientThrottle#takeOver}.
+ * <p>
+ * {@code /api/stream} is only charged once it has to download: reads of cached files, including the
+ * parallel Range and seek requests of download managers and players, pass freely.
+ * <p>
+ * A client is its API key when it sends one listed in {@code app.throttle.api-keys}, otherwise its IP
+ * address. Behind a reverse proxy set {@code app.throttle.forwarded-for-hops} to the number of proxies
+ * that append to X-Forwarded-For; entries to the left of those are client-supplied and can't be trusted.
+ */
+@Component
+public class ClientThrottleFilter extends OncePerRequestFilter {
+
+    private static final String API_KEY_HEADER = "X-API-Key";
+    private static final String FORWARDED_FOR_HEADER = "X-Forwarded-For";
+
+    private final ClientThrottle clientThrottle;
+    private final Set<String> apiKeys;
+    private final int forwardedForHops;
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    public ClientThrottleFilter(ClientThrottle clientThrottle,
+                                @Value("${app.throttle.api-keys:}") List<String> apiKeys,
+                                @Value("${app.throttle.forwarded-for-hops:0}") int forwardedForHops) {
+        this.clientThrottle = clientThrottle;
+        this.apiKeys = apiKeys.stream().map(String::trim).filter(key -> !key.isEmpty()).collect(Collectors.toSet());
+        this.forwardedForHops = Math.max(0, forwardedForHops);
+    }
+
+    @Override
+    protected boolean shouldNotFilter(HttpServletRequest request) {
+        if (!clientThrottle.isEnabled()) return true;
+        String method = request.getMethod();
+        String path = request.getRequestURI().substring(request.getContextPath().length());
+        return switch (path) {
+            case "/api/stream" -> !method.equals("GET") && !method.equals("POST");
+            case "/api/formats", "/api/hls" -> !method.equals("GET");
+            case "/api/jobs", "/api/batch" -> !method.equals("POST");
+            default -> true;
+        };
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain chain)
+            throws ServletException, IOException {
+        String clientId = clientId(request);
+        if (request.getRequestURI().substring(request.getContextPath().length()).equals("/api/stream")) {
+            try (ClientThrottle.Slot held = ClientThrottle.deferFor(request, () -> clientThrottle.admit(clientId))) {
+                chain.doFilter(request, response);
+            }
+            return;
+        }
+
+        ClientThrottle.Slot slot;
+        try {
+            slot = clientThrottle.admit(clientId);
+        } catch (DownloadException e) {
+            reject(response, e);
+            return;
+        }
+        try (ClientThrottle.Slot held = ClientThrottle.holdFor(request, slot)) {
+            chain.doFilter(request, response);
+        }
+    }
+
+    private String clientId(HttpServletRequest request) {
+        String key = request.getHeader(API_KEY_HEADER);
+        // Unknown keys fall back to the address, or a fresh key per request would dodge every limit.
+        if (key != null && apiKeys.contains(key)) {
+            return "key:" + fingerprint(key);
+        }
+        return "ip:" + clientAddress(request);
+    }
+
+    private String clientAddress(HttpServletRequest request) {
+        String forwarded = request.getHeader(FORWARDED_FOR_HEADER);
+        if (forwardedForHops == 0 || forwarded == null || forwarded.isBlank()) {
+            return request.getRemoteAddr();
+        }
+        String[] hops = forwarded.split(",");
+        // The rightmost entry is what our nearest proxy saw; each further proxy adds one more on the right.
+        return hops[Math.max(0, hops.length - forwardedForHops)].trim();
+    }
+
+    // Keys never leave the process in clear text, Redis included.
+    private static String fingerprint(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(digest, 0, 12);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void reject(HttpServletResponse response, DownloadException e) throws IOException {
+        response.setStatus(e.getStatusCode());
+        if (e.getRetryAfterSeconds() > 0) {
+            response.setHeader(HttpHeaders.RETRY_AFTER, String.valueOf(e.getRetryAfterSeconds()));
+        }
+        response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+        response.setCharacterEncoding(StandardCharsets.UTF_8.name());
+        objectMapper.writeValue(response.getOutputStream(), Map.of("error", e.getMessage()));
+    }
+}
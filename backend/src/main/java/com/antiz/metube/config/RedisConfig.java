@@ -1,23 +1,61 @@
 package com.antiz.metube.config;
 
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.data.redis.connection.RedisConnectionFactory;
-import org.springframework.data.redis.core.RedisTemplate;
-import org.springframework.data.redis.serializer.GenericJackson2JsonRedisSerializer;
-import org.springframework.data.redis.serializer.StringRedisSerializer;
+import org.springframework.data.redis.connection.RedisStandaloneConfiguration;
+import org.springframework.data.redis.connection.lettuce.LettuceClientConfiguration;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.core.ReactiveStringRedisTemplate;
+import org.springframework.data.redis.core.StringRedisTemplate;
 
+import java.net.URI;
+import java.time.Duration;
+
+// Redis auto-configuration is excluded so the app starts without Redis; when it is enabled, the
+// connection is built here from spring.data.redis.url instead.
 @Configuration
 @ConditionalOnProperty(name = "app.redis.enabled", havingValue = "true")
 public class RedisConfig {
 
     @Bean
-    public RedisTemplate<String, Object> redisTemplate(RedisConnectionFactory connectionFactory) {
-        RedisTemplate<String, Object> template = new RedisTemplate<>();
-        template.setConnectionFactory(connectionFactory);
-        template.setKeySerializer(new StringRedisSerializer());
-        template.setValueSerializer(new GenericJackson2JsonRedisSerializer());
-        return template;
+    public LettuceConnectionFactory redisConnectionFactory(
+            @Value("${spring.data.redis.url}") String url,
+            @Value("${spring.data.redis.ssl.enabled:false}") boolean ssl,
+            @Value("${spring.data.redis.timeout:6000}") long timeoutMillis) {
+        URI uri = URI.create(url);
+        RedisStandaloneConfiguration server = new RedisStandaloneConfiguration(uri.getHost(),
+                uri.getPort() > 0 ? uri.getPort() : 6379);
+
+        String userInfo = uri.getUserInfo();
+        if (userInfo != null && !userInfo.isEmpty()) {
+            int colon = userInfo.indexOf(':');
+            if (colon < 0) {
+                server.setPassword(userInfo);
+            } else {
+                if (colon > 0) server.setUsername(userInfo.substring(0, colon));
+                server.setPassword(userInfo.substring(colon + 1));
+            }
+        }
+
+        LettuceClientConfiguration.LettuceClientConfigurationBuilder client = LettuceClientConfiguration.builder()
+                .commandTimeout(Duration.ofMillis(timeoutMillis));
+        if (ssl || "rediss".equalsIgnoreCase(uri.getScheme())) {
+            client.useSsl();
+        }
+        return new LettuceConnectionFactory(server, client.build());
+    }
+
+    @Bean
+    public StringRedisTemplate stringRedisTemplate(RedisConnectionFactory connectionFactory) {
+        return new StringRedisTemplate(connectionFactory);
+    }
+
+    // Non-blocking commands for the request path; see RedisCacheService.
+    @Bean
+    public ReactiveStringRedisTemplate reactiveStringRedisTemplate(LettuceConnectionFactory connectionFactory) {
+        return new ReactiveStringRedisTemplate(connectionFactory);
     }
 }
@@ -1,6 +1,7 @@
 package com.antiz.metube.controller;
 
 import com.antiz.metube.service.DownloadException;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.ExceptionHandler;
 import org.springframework.web.bind.annotation.RestControllerAdvice;
@@ -12,9 +13,11 @@ public class ApiExceptionHandler {
 
     @ExceptionHandler(DownloadException.class)
     public ResponseEntity<Map<String, String>> handleDownloadException(DownloadException ex) {
-        return ResponseEntity
-                .status(ex.getStatusCode())
-                .body(Map.of("error", ex.getMessage()));
+        ResponseEntity.BodyBuilder builder = ResponseEntity.status(ex.getStatusCode());
+        if (ex.getRetryAfterSeconds() > 0) {
+            builder.header(HttpHeaders.RETRY_AFTER, String.valueOf(ex.getRetryAfterSeconds()));
+        }
+        return builder.body(Map.of("error", ex.getMessage()));
     }
 
     @ExceptionHandler(Exception.class)
@@ -0,0 +1,49 @@
+package com.antiz.metube.controller;
+
+import com.antiz.metube.service.BatchDownloadService;
+import com.antiz.metube.service.DownloadException;
+import jakarta.servlet.http.HttpServletResponse;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.web.bind.annotation.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+@CrossOrigin
+@RestController
+@RequestMapping("/api/batch")
+public class BatchController {
+
+    @Autowired
+    private BatchDownloadService batchDownloadService;
+
+    /**
+     * Body is either {"urls": ["...", "..."]} or {"playlist": "https://www.youtube.com/playlist?list=..."}.
+     */
+    @PostMapping
+    public void downloadBatch(
+            @RequestBody Map<String, Object> body,
+            @RequestParam(defaultValue = "mp4") String format,
+            @RequestParam(defaultValue = "best") String quality,
+            HttpServletResponse response
+    ) throws IOException, InterruptedException {
+
+        Object playlist = body.get("playlist");
+        batchDownloadService.streamZip(urlsFrom(body.get("urls")), playlist == null ? null : playlist.toString(),
+                format, quality, response);
+    }
+
+    private List<String> urlsFrom(Object raw) {
+        if (raw == null) return null;
+        if (!(raw instanceof List<?> list)) {
+            throw new DownloadException("\"urls\" must be a list of URLs.", 400);
+        }
+        List<String> urls = new ArrayList<>();
+        for (Object url : list) {
+            urls.add(url == null ? null : url.toString());
+        }
+        return urls;
+    }
+}
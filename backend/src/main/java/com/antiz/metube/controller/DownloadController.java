@@ -1,6 +1,9 @@
 package com.antiz.metube.controller;
 
+import com.antiz.metube.service.DownloadScheduler;
+import com.antiz.metube.service.VideoFormats;
 import com.antiz.metube.service.YoutubeDownloadService;
+import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.web.bind.annotation.*;
@@ -15,11 +18,14 @@ public class DownloadController {
     @Autowired
     private YoutubeDownloadService youtubeDownloadService;
 
+    @Autowired
+    private DownloadScheduler downloadScheduler;
+
     @RequestMapping(value = "/stream", method = RequestMethod.OPTIONS)
     public void handleOptions(HttpServletResponse response) {
         response.setHeader("Access-Control-Allow-Origin", "*");
-        response.setHeader("Access-Control-Allow-Methods", "POST, OPTIONS");
-        response.setHeader("Access-Control-Allow-Headers", "Content-Type");
+        response.setHeader("Access-Control-Allow-Methods", "GET, POST, OPTIONS");
+        response.setHeader("Access-Control-Allow-Headers", "Content-Type, Range, If-Range, If-None-Match");
         response.setStatus(200);
     }
 
@@ -28,10 +34,36 @@ public class DownloadController {
             @RequestBody Map<String, String> body,
             @RequestParam(defaultValue = "mp4") String format,
             @RequestParam(defaultValue = "best") String quality,
+            @RequestParam(defaultValue = "false") boolean progressive,
+            HttpServletRequest request,
             HttpServletResponse response
     ) throws IOException, InterruptedException {
 
         String url = body.get("url");
-        youtubeDownloadService.handleVideoRequest(url, format, quality, response);
+        youtubeDownloadService.handleVideoRequest(url, format, quality, progressive, request, response);
+    }
+
+    // GET variant so download managers and media players can resume or fetch in segments with Range.
+    @GetMapping("/stream")
+    public void streamVideoGet(
+            @RequestParam String url,
+            @RequestParam(defaultValue = "mp4") String format,
+            @RequestParam(defaultValue = "best") String quality,
+            @RequestParam(defaultValue = "false") boolean progressive,
+            HttpServletRequest request,
+            HttpServletResponse response
+    ) throws IOException, InterruptedException {
+
+        youtubeDownloadService.handleVideoRequest(url, format, quality, progressive, request, response);
+    }
+
+    @GetMapping("/formats")
+    public VideoFormats formats(@RequestParam String url) throws IOException, InterruptedException {
+        return youtubeDownloadService.probeFormats(url);
+    }
+
+    @GetMapping("/queue")
+    public Map<String, Object> queueStatus() {
+        return downloadScheduler.status();
     }
 }
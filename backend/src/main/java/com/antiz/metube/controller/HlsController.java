@@ -0,0 +1,49 @@
+package com.antiz.metube.controller;
+
+import com.antiz.metube.service.ClientThrottle;
+import com.antiz.metube.service.HlsPackager;
+import com.antiz.metube.service.YoutubeDownloadService;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.support.ServletUriComponentsBuilder;
+
+import java.io.IOException;
+
+// In-browser playback: point a player (hls.js, Safari's <video>) at /api/hls?url=... and it follows the
+// redirect to the session's playlist, whose segment URIs are relative to it.
+@CrossOrigin
+@RestController
+@RequestMapping("/api/hls")
+public class HlsController {
+
+    @Autowired
+    private YoutubeDownloadService youtubeDownloadService;
+
+    @Autowired
+    private HlsPackager hlsPackager;
+
+    @GetMapping
+    public ResponseEntity<Void> start(
+            @RequestParam String url,
+            @RequestParam(defaultValue = "best") String quality,
+            HttpServletRequest request
+    ) throws IOException, InterruptedException {
+        String sessionId = youtubeDownloadService.startHls(url, quality, ClientThrottle.takeOver(request));
+        return ResponseEntity.status(HttpStatus.FOUND)
+                .location(ServletUriComponentsBuilder.fromCurrentContextPath()
+                        .path("/api/hls/{sessionId}/{fileName}")
+                        .buildAndExpand(sessionId, HlsPackager.PLAYLIST)
+                        .toUri())
+                .build();
+    }
+
+    @GetMapping("/{sessionId}/{fileName}")
+    public void file(@PathVariable String sessionId, @PathVariable String fileName, HttpServletResponse response)
+            throws IOException, InterruptedException {
+        hlsPackager.serve(sessionId, fileName, response);
+    }
+}
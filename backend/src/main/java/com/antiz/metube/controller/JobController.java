@@ -0,0 +1,67 @@
+package com.antiz.metube.controller;
+
+import com.antiz.metube.service.ClientThrottle;
+import com.antiz.metube.service.DownloadException;
+import com.antiz.metube.service.DownloadJobService;
+import com.antiz.metube.service.YoutubeDownloadService;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Map;
+
+@CrossOrigin
+@RestController
+@RequestMapping("/api/jobs")
+public class JobController {
+
+    @Autowired
+    private DownloadJobService downloadJobService;
+
+    @Autowired
+    private YoutubeDownloadService youtubeDownloadService;
+
+    @PostMapping
+    public ResponseEntity<Map<String, Object>> createJob(
+            @RequestBody Map<String, String> body,
+            @RequestParam(defaultValue = "mp4") String format,
+            @RequestParam(defaultValue = "best") String quality,
+            HttpServletRequest request
+    ) {
+        DownloadJobService.DownloadJob job = downloadJobService.submit(body.get("url"), format, quality,
+                ClientThrottle.takeOver(request));
+        Map<String, Object> result = job.toMap();
+        result.put("eventsUrl", "/api/jobs/" + job.getId() + "/events");
+        return ResponseEntity.status(HttpStatus.ACCEPTED).body(result);
+    }
+
+    @GetMapping("/{id}")
+    public Map<String, Object> getJob(@PathVariable String id) {
+        return downloadJobService.get(id).toMap();
+    }
+
+    @GetMapping(value = "/{id}/events", produces = "text/event-stream")
+    public SseEmitter events(@PathVariable String id) {
+        return downloadJobService.subscribe(id);
+    }
+
+    @GetMapping("/{id}/file")
+    public void file(@PathVariable String id, HttpServletRequest request, HttpServletResponse response)
+            throws IOException {
+        DownloadJobService.DownloadJob job = downloadJobService.get(id);
+        if (job.getStatus() != DownloadJobService.Status.READY) {
+            throw new DownloadException("Job is not finished yet.", 409);
+        }
+        if (!Files.exists(Paths.get(job.getFilePath()))) {
+            throw new DownloadException("Job file has expired from the cache. Please submit the job again.", 410);
+        }
+        youtubeDownloadService.serveArtifact(job.getFilePath(), job.getFormat(), request, response);
+    }
+}
@@ -0,0 +1,395 @@
+package com.antiz.metube.service;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.task.VirtualThreadTaskExecutor;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Stream;
+
+/**
+ * Size-bounded on-disk cache of finished downloads. Files are written under {@code partial/} and
+ * renamed into place once complete, so readers never see a half-written artifact. Least recently
+ * used entries are deleted when the cache grows past its limit, and the index is persisted so access
+ * history survives restarts. Reconciling the index with what is actually on disk happens in the
+ * background after startup, since it stats every file; the first requests wait for it if they must.
+ */
+@Component
+public class ArtifactCache implements ArtifactStore {
+
+    private static final String INDEX_FILE = "index.json";
+    private static final String PARTIAL_DIR = "partial";
+    private static final int MAX_ENCODED_NAME = 200;
+    private static final String RESUMABLE_PREFIX = "r-";
+    private static final Duration STALE_PARTIAL_AGE = Duration.ofDays(1);
+
+    private final Path root;
+    private final Path partialDir;
+    private final long maxBytes;
+    private final Duration ttl;
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final CompletableFuture<Void> loaded = new CompletableFuture<>();
+
+    // Access-ordered, so iteration starts at the least recently used entry.
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private long totalBytes;
+    private boolean dirty;
+
+    public record Entry(String key, String fileName, long size, long createdAt, long expiresAt,
+                        long lastAccess, long hits) {
+
+        Entry touched(long now) {
+            return new Entry(key, fileName, size, createdAt, expiresAt, now, hits + 1);
+        }
+
+        Entry expiringAt(long newExpiresAt) {
+            return new Entry(key, fileName, size, createdAt, newExpiresAt, lastAccess, hits);
+        }
+    }
+
+    public ArtifactCache(@Value("${app.cache.dir:/tmp/metube-cache}") String dir,
+                         @Value("${app.cache.max-size:5GB}") DataSize maxSize,
+                         @Value("${app.cache.ttl-hours:6}") long ttlHours) {
+        this.root = Paths.get(dir).toAbsolutePath();
+        this.partialDir = root.resolve(PARTIAL_DIR);
+        this.maxBytes = maxSize.toBytes();
+        this.ttl = Duration.ofHours(ttlHours);
+    }
+
+    @PostConstruct
+    void start() throws IOException {
+        // An unusable cache directory should still stop startup.
+        Files.createDirectories(partialDir);
+        new VirtualThreadTaskExecutor("artifact-cache-load-").execute(() -> {
+            try {
+                load();
+            } catch (Exception e) {
+                System.err.println("Artifact cache load failed, starting empty: " + e.getMessage());
+            } finally {
+                loaded.complete(null);
+            }
+        });
+    }
+
+    private void load() throws IOException {
+        clearPartials();
+
+        Map<String, Entry> indexed = readIndex();
+        long now = System.currentTimeMillis();
+        List<Entry> found = new ArrayList<>();
+
+        try (Stream<Path> files = Files.list(root)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                String name = file.getFileName().toString();
+                if (!Files.isRegularFile(file) || name.equals(INDEX_FILE)) continue;
+
+                long size = Files.size(file);
+                String key = decodeKey(name);
+                Entry known = indexed.get(name);
+
+                if (known != null && known.size() == size) {
+                    found.add(known);
+                } else if (key != null) {
+                    long modified = Files.getLastModifiedTime(file).toMillis();
+                    found.add(new Entry(key, name, size, modified, modified + ttl.toMillis(), modified, 0));
+                } else {
+                    // Hashed name with no index record: nothing maps to it any more.
+                    Files.deleteIfExists(file);
+                }
+            }
+        }
+
+        found.sort(Comparator.comparingLong(Entry::lastAccess));
+        synchronized (this) {
+            for (Entry entry : found) {
+                if (entry.expiresAt() <= now) {
+                    Files.deleteIfExists(root.resolve(entry.fileName()));
+                    continue;
+                }
+                entries.put(entry.key(), entry);
+                totalBytes += entry.size();
+            }
+            evictOverflow(null);
+            dirty = true;
+        }
+        flush();
+        System.out.println("Artifact cache ready: " + entries.size() + " files, " + totalBytes + " bytes in " + root);
+    }
+
+    /**
+     * Returns the absolute path of a live artifact for {@code key}, or null.
+     */
+    @Override
+    public String lookup(String key) {
+        awaitLoaded();
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            if (entry == null) return null;
+
+            long now = System.currentTimeMillis();
+            Path file = root.resolve(entry.fileName());
+            if (entry.expiresAt() <= now || !Files.exists(file)) {
+                removeEntry(entry);
+                return null;
+            }
+
+            entries.put(key, entry.touched(now));
+            dirty = true;
+            return file.toString();
+        }
+    }
+
+    @Override
+    public String peek(String key) {
+        awaitLoaded();
+        synchronized (this) {
+            // get() would move the entry to the most recently used end, so scan instead.
+            if (!entries.containsKey(key)) return null;
+            for (Entry entry : entries.values()) {
+                if (!entry.key().equals(key)) continue;
+                Path file = root.resolve(entry.fileName());
+                return entry.expiresAt() > System.currentTimeMillis() && Files.exists(file) ? file.toString() : null;
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Temp location for a download in progress. Files here are never served and are wiped on startup.
+     */
+    @Override
+    public Path newPartialFile(String extension) {
+        // Not before the startup sweep, which would take a partial written during the load for a leftover.
+        awaitLoaded();
+        return partialDir.resolve(UUID.randomUUID() + "." + extension);
+    }
+
+    /**
+     * Like {@link #newPartialFile} but named after the key, and kept across restarts until it goes stale.
+     */
+    @Override
+    public Path partialFileFor(String key, String extension) {
+        awaitLoaded();
+        return partialDir.resolve(RESUMABLE_PREFIX + sha256(key) + "." + extension);
+    }
+
+    /**
+     * Atomically moves a finished file into the cache under {@code key} and returns its final path.
+     */
+    @Override
+    public String publish(String key, Path completed) throws IOException {
+        awaitLoaded();
+        String fileName = encodeKey(key) + extensionOf(completed);
+        Path target = root.resolve(fileName);
+        Files.move(completed, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+
+        long now = System.currentTimeMillis();
+        Entry entry = new Entry(key, fileName, Files.size(target), now, now + ttl.toMillis(), now, 0);
+        synchronized (this) {
+            Entry previous = entries.put(key, entry);
+            if (previous != null) {
+                totalBytes -= previous.size();
+            }
+            totalBytes += entry.size();
+            evictOverflow(key);
+            dirty = true;
+        }
+        return target.toString();
+    }
+
+    @Override
+    public void remove(String key) {
+        awaitLoaded();
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            if (entry != null) {
+                removeEntry(entry);
+            }
+        }
+    }
+
+    @Override
+    public boolean isShared() {
+        return false;
+    }
+
+    public List<Entry> snapshot() {
+        awaitLoaded();
+        synchronized (this) {
+            return new ArrayList<>(entries.values());
+        }
+    }
+
+    /**
+     * Moves the expiry of the given entries without counting as an access, then deletes whatever has expired.
+     */
+    public void updateExpiries(Map<String, Long> expiresAt) {
+        if (expiresAt.isEmpty()) return;
+        awaitLoaded();
+        synchronized (this) {
+            for (Map.Entry<String, Entry> mapping : entries.entrySet()) {
+                Long updated = expiresAt.get(mapping.getKey());
+                if (updated != null) {
+                    mapping.setValue(mapping.getValue().expiringAt(updated));
+                }
+            }
+            evictOverflow(null);
+            dirty = true;
+        }
+    }
+
+    // Outside the lock: the load takes it to install what it found.
+    private void awaitLoaded() {
+        loaded.join();
+    }
+
+    @Scheduled(fixedDelayString = "${app.cache.flush-interval-ms:30000}")
+    @PreDestroy
+    public void flush() {
+        List<Entry> snapshot;
+        synchronized (this) {
+            if (!dirty) return;
+            snapshot = new ArrayList<>(entries.values());
+            dirty = false;
+        }
+        try {
+            Path tmp = partialDir.resolve(INDEX_FILE + ".tmp");
+            objectMapper.writeValue(tmp.toFile(), snapshot);
+            Files.move(tmp, root.resolve(INDEX_FILE), StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            System.err.println("Artifact cache index write failed: " + e.getMessage());
+            synchronized (this) {
+                dirty = true;
+            }
+        }
+    }
+
+    // Caller holds the lock. The entry just published is never evicted, even if it alone exceeds the limit.
+    private void evictOverflow(String keep) {
+        long now = System.currentTimeMillis();
+        Iterator<Entry> it = entries.values().iterator();
+        while (it.hasNext()) {
+            Entry entry = it.next();
+            if (totalBytes <= maxBytes && entry.expiresAt() > now) continue;
+            if (entry.key().equals(keep)) continue;
+            it.remove();
+            totalBytes -= entry.size();
+            deleteQuietly(root.resolve(entry.fileName()));
+        }
+    }
+
+    private void removeEntry(Entry entry) {
+        entries.remove(entry.key());
+        totalBytes -= entry.size();
+        deleteQuietly(root.resolve(entry.fileName()));
+        dirty = true;
+    }
+
+    private Map<String, Entry> readIndex() {
+        Path index = root.resolve(INDEX_FILE);
+        if (!Files.exists(index)) return Map.of();
+        try {
+            List<Entry> list = objectMapper.readValue(index.toFile(), new TypeReference<List<Entry>>() {});
+            Map<String, Entry> byFileName = new HashMap<>();
+            for (Entry entry : list) {
+                byFileName.put(entry.fileName(), entry);
+            }
+            return byFileName;
+        } catch (IOException e) {
+            System.err.println("Artifact cache index unreadable, rebuilding from disk: " + e.getMessage());
+            return Map.of();
+        }
+    }
+
+    // Random-named partials belong to runs that died with the previous process; keyed ones can be resumed.
+    private void clearPartials() throws IOException {
+        long now = System.currentTimeMillis();
+        try (Stream<Path> files = Files.list(partialDir)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                if (!file.getFileName().toString().startsWith(RESUMABLE_PREFIX) || isStale(file, now)) {
+                    deleteQuietly(file);
+                }
+            }
+        }
+    }
+
+    /**
+     * Deletes resumable partials nobody has come back for, e.g. a long video a user gave up on.
+     */
+    @Scheduled(fixedDelay = 3_600_000, initialDelay = 3_600_000)
+    public void sweepStalePartials() {
+        long now = System.currentTimeMillis();
+        try (Stream<Path> files = Files.list(partialDir)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                if (file.getFileName().toString().startsWith(RESUMABLE_PREFIX) && isStale(file, now)) {
+                    deleteQuietly(file);
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Artifact cache partial sweep failed: " + e.getMessage());
+        }
+    }
+
+    private boolean isStale(Path file, long now) {
+        try {
+            return now - Files.getLastModifiedTime(file).toMillis() > STALE_PARTIAL_AGE.toMillis();
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private void deleteQuietly(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            System.err.println("Failed to delete cached file " + file + ": " + e.getMessage());
+        }
+    }
+
+    // Short keys are stored reversibly in the file name, so the index can be rebuilt from a directory listing.
+    static String encodeKey(String key) {
+        String encoded = Base64.getUrlEncoder().withoutPadding().encodeToString(key.getBytes(StandardCharsets.UTF_8));
+        if (encoded.length() <= MAX_ENCODED_NAME) return "k-" + encoded;
+        return "h-" + sha256(key);
+    }
+
+    private static String decodeKey(String fileName) {
+        if (!fileName.startsWith("k-")) return null;
+        int dot = fileName.lastIndexOf('.');
+        String encoded = fileName.substring(2, dot < 0 ? fileName.length() : dot);
+        try {
+            return new String(Base64.getUrlDecoder().decode(encoded), StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    static String extensionOf(Path file) {
+        String name = file.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        return dot < 0 ? "" : name.substring(dot);
+    }
+
+    static String sha256(String value) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(value.getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(digest);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
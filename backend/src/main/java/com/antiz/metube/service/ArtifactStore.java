@@ -0,0 +1,89 @@
+package com.antiz.metube.service;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Where finished downloads live. The default is {@link ArtifactCache} on this node's disk; a shared
+ * implementation lets every instance behind the load balancer serve artifacts any of them downloaded.
+ */
+public interface ArtifactStore {
+
+    /**
+     * Returns a path to the live artifact for {@code key} that this node can read, or null.
+     */
+    String lookup(String key);
+
+    /**
+     * Like {@link #lookup}, but only checks: it doesn't count as a use for eviction or hit statistics.
+     * Stores that track use override it.
+     */
+    default String peek(String key) {
+        return lookup(key);
+    }
+
+    /**
+     * Temp location for a download in progress, on the same file system as the store so publishing is a rename.
+     */
+    Path newPartialFile(String extension);
+
+    /**
+     * Stable temp location for downloading {@code key} on this node. A retry, or a restart, finds the
+     * {@code .part} and fragment files yt-dlp left next to it and resumes instead of starting over.
+     */
+    Path partialFileFor(String key, String extension);
+
+    /**
+     * Total size of a partial file and the working files yt-dlp keeps beside it ({@code <name>.f137.mp4.part},
+     * fragments, merge temp files), which grows for as long as the download makes progress.
+     */
+    default long partialBytes(Path partialFile) {
+        long total = 0;
+        try (DirectoryStream<Path> files = workingFiles(partialFile)) {
+            for (Path file : files) {
+                try {
+                    total += Files.size(file);
+                } catch (IOException e) {
+                    // Renamed or deleted by yt-dlp between listing and stat.
+                }
+            }
+        } catch (IOException e) {
+            // Nothing written yet.
+        }
+        return total;
+    }
+
+    /**
+     * Deletes a partial file and its working files, for downloads that can't be resumed.
+     */
+    default void discardPartial(Path partialFile) {
+        try (DirectoryStream<Path> files = workingFiles(partialFile)) {
+            for (Path file : files) {
+                Files.deleteIfExists(file);
+            }
+        } catch (IOException e) {
+            System.err.println("Failed to discard partial download " + partialFile + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Atomically moves a finished file into the store under {@code key} and returns its final path.
+     */
+    String publish(String key, Path completed) throws IOException;
+
+    void remove(String key);
+
+    /**
+     * True if other instances see what this one publishes, which makes cluster-wide deduplication worthwhile.
+     */
+    boolean isShared();
+
+    private static DirectoryStream<Path> workingFiles(Path partialFile) throws IOException {
+        String name = partialFile.getFileName().toString();
+        int dot = name.indexOf('.');
+        String stem = dot < 0 ? name : name.substring(0, dot);
+        return Files.newDirectoryStream(partialFile.getParent(), stem + ".*");
+    }
+}
@@ -0,0 +1,277 @@
+package com.antiz.metube.service;
+
+import jakarta.servlet.http.HttpServletResponse;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.task.VirtualThreadTaskExecutor;
+import org.springframework.stereotype.Service;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Downloads several videos for one request and streams them back as a ZIP. Only a few items of a batch
+ * run at once, each through the normal cache and scheduler, and every entry is written as soon as its
+ * item finishes. Entries are stored rather than deflated: mp4 and mp3 don't compress, and the client
+ * starts receiving data while the rest of the batch is still downloading.
+ */
+@Service
+public class BatchDownloadService {
+
+    private static final Pattern UNSAFE_NAME_CHARS = Pattern.compile("[\\\\/:*?\"<>|\\p{Cntrl}]+");
+    private static final int MAX_NAME_LENGTH = 120;
+    private static final String ERRORS_ENTRY = "errors.txt";
+
+    private final YoutubeDownloadService youtubeDownloadService;
+    private final FormatProbeCache formatProbeCache;
+    private final DownloadMetrics downloadMetrics;
+    private final int maxItems;
+    private final int concurrency;
+    private final VirtualThreadTaskExecutor executor = new VirtualThreadTaskExecutor("batch-item-");
+
+    private record Item(int index, String url, String title) {
+    }
+
+    private record Result(Item item, String filePath, String error) {
+    }
+
+    public BatchDownloadService(YoutubeDownloadService youtubeDownloadService,
+                                FormatProbeCache formatProbeCache,
+                                DownloadMetrics downloadMetrics,
+                                @Value("${app.batch.max-items:50}") int maxItems,
+                                @Value("${app.batch.concurrency:3}") int concurrency) {
+        this.youtubeDownloadService = youtubeDownloadService;
+        this.formatProbeCache = formatProbeCache;
+        this.downloadMetrics = downloadMetrics;
+        this.maxItems = Math.max(1, maxItems);
+        this.concurrency = Math.max(1, concurrency);
+    }
+
+    /**
+     * Downloads {@code urls}, or the videos of {@code playlistUrl}, and writes them to {@code response} as a ZIP.
+     * Items that fail are listed in an errors.txt entry at the end instead of failing the whole batch.
+     */
+    public void streamZip(List<String> urls, String playlistUrl, String format, String quality,
+                          HttpServletResponse response) throws IOException, InterruptedException {
+        List<Item> items = resolveItems(urls, playlistUrl);
+        String extension = format != null && format.equalsIgnoreCase("mp3") ? "mp3" : "mp4";
+
+        BlockingQueue<Result> finished = new LinkedBlockingQueue<>();
+        Queue<Item> pending = new ConcurrentLinkedQueue<>(items);
+        AtomicBoolean cancelled = new AtomicBoolean(false);
+        for (int i = 0; i < Math.min(concurrency, items.size()); i++) {
+            executor.execute(() -> drain(pending, finished, cancelled, format, quality));
+        }
+
+        response.setStatus(200);
+        response.setContentType("application/zip");
+        response.setHeader("Content-Disposition", "attachment; filename=\"metube-batch.zip\"");
+        response.setHeader("Cache-Control", "no-store");
+        response.setHeader("X-Batch-Items", String.valueOf(items.size()));
+
+        List<Result> failures = new ArrayList<>();
+        CountingOutputStream counter = new CountingOutputStream(response.getOutputStream());
+        try (ZipOutputStream zip = new ZipOutputStream(new BufferedOutputStream(counter, 64 * 1024))) {
+            for (int written = 0; written < items.size(); written++) {
+                Result result = finished.take();
+                if (result.error() != null || !writeEntry(zip, entryName(result.item(), items.size(), extension),
+                        Paths.get(result.filePath()))) {
+                    failures.add(result);
+                    continue;
+                }
+                // Push each finished entry to the client now rather than when the buffer happens to fill.
+                zip.flush();
+                response.flushBuffer();
+            }
+            if (!failures.isEmpty()) {
+                writeErrors(zip, failures);
+            }
+        } catch (IOException e) {
+            // Client went away: let running items finish into the cache, but start no new ones.
+            cancelled.set(true);
+            throw e;
+        } finally {
+            downloadMetrics.bytesServed(counter.count);
+        }
+    }
+
+    private List<Item> resolveItems(List<String> urls, String playlistUrl) throws IOException, InterruptedException {
+        List<Item> items = new ArrayList<>();
+        if (playlistUrl != null && !playlistUrl.isBlank()) {
+            for (PlaylistEntry entry : youtubeDownloadService.expandPlaylist(playlistUrl, maxItems)) {
+                items.add(new Item(items.size() + 1, entry.url(), entry.title()));
+            }
+            if (items.isEmpty()) {
+                throw new DownloadException("Playlist is empty or private.", 404);
+            }
+            return items;
+        }
+
+        if (urls == null || urls.isEmpty()) {
+            throw new DownloadException("Provide a list of URLs or a playlist URL.", 400);
+        }
+        if (urls.size() > maxItems) {
+            throw new DownloadException("A batch can contain at most " + maxItems + " URLs.", 400);
+        }
+        for (String url : urls) {
+            if (url == null || url.isBlank()) {
+                throw new DownloadException("Batch contains an empty URL.", 400);
+            }
+            items.add(new Item(items.size() + 1, url.trim(), titleFor(url)));
+        }
+        return items;
+    }
+
+    private void drain(Queue<Item> pending, BlockingQueue<Result> finished, AtomicBoolean cancelled,
+                       String format, String quality) {
+        Item item;
+        while ((item = pending.poll()) != null) {
+            if (cancelled.get()) {
+                finished.add(new Result(item, null, "cancelled"));
+                continue;
+            }
+            try {
+                String filePath = youtubeDownloadService.prepareArtifact(item.url(), format, quality, progress -> {});
+                finished.add(new Result(item, filePath, null));
+            } catch (DownloadException e) {
+                finished.add(new Result(item, null, e.getMessage()));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                finished.add(new Result(item, null, "interrupted"));
+            } catch (Exception e) {
+                finished.add(new Result(item, null, "Download failed."));
+            }
+        }
+    }
+
+    // Returns false if the file was evicted from the cache before we got to it. The file is opened before the
+    // entry starts: once open, eviction can unlink it but not take it away, so a started entry always completes.
+    private boolean writeEntry(ZipOutputStream zip, String name, Path file) throws IOException {
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(file, StandardOpenOption.READ);
+        } catch (IOException e) {
+            return false;
+        }
+        try (channel) {
+            long size;
+            long crc;
+            try {
+                size = channel.size();
+                crc = crc32(channel);
+                channel.position(0);
+            } catch (IOException e) {
+                return false;
+            }
+
+            ZipEntry entry = new ZipEntry(name);
+            entry.setMethod(ZipEntry.STORED);
+            entry.setSize(size);
+            entry.setCompressedSize(size);
+            entry.setCrc(crc);
+            zip.putNextEntry(entry);
+            Channels.newInputStream(channel).transferTo(zip);
+            zip.closeEntry();
+            return true;
+        }
+    }
+
+    private void writeErrors(ZipOutputStream zip, List<Result> failures) throws IOException {
+        StringBuilder text = new StringBuilder();
+        for (Result failure : failures) {
+            String error = failure.error() == null ? "File expired from the cache before it could be sent." : failure.error();
+            text.append(failure.item().index()).append('\t').append(failure.item().url()).append('\t')
+                    .append(error).append('\n');
+        }
+        byte[] bytes = text.toString().getBytes(StandardCharsets.UTF_8);
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+
+        ZipEntry entry = new ZipEntry(ERRORS_ENTRY);
+        entry.setMethod(ZipEntry.STORED);
+        entry.setSize(bytes.length);
+        entry.setCompressedSize(bytes.length);
+        entry.setCrc(crc.getValue());
+        zip.putNextEntry(entry);
+        zip.write(bytes);
+        zip.closeEntry();
+    }
+
+    // Stored entries need their CRC up front. The file was just written or read, so this pass hits the page cache.
+    private static long crc32(FileChannel channel) throws IOException {
+        CRC32 crc = new CRC32();
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        while (channel.read(buffer) >= 0) {
+            buffer.flip();
+            crc.update(buffer);
+            buffer.clear();
+        }
+        return crc.getValue();
+    }
+
+    private String titleFor(String url) {
+        String videoId = UrlCanonicalizer.videoId(url);
+        if (videoId == null) return null;
+        VideoFormats probed = formatProbeCache.peek(videoId);
+        return probed != null && probed.title() != null ? probed.title() : videoId;
+    }
+
+    // Numbered so entries keep the request order in file listings and never collide.
+    private static String entryName(Item item, int total, String extension) {
+        String number = String.format("%0" + String.valueOf(total).length() + "d", item.index());
+        String title = item.title() == null ? "" : UNSAFE_NAME_CHARS.matcher(item.title()).replaceAll("_").trim();
+        if (title.length() > MAX_NAME_LENGTH) {
+            title = title.substring(0, MAX_NAME_LENGTH).trim();
+        }
+        return title.isEmpty() ? number + "." + extension : number + " - " + title + "." + extension;
+    }
+
+    private static final class CountingOutputStream extends OutputStream {
+        private final OutputStream out;
+        private long count;
+
+        private CountingOutputStream(OutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+}
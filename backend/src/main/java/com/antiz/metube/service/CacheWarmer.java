@@ -0,0 +1,116 @@
+package com.antiz.metube.service;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.task.VirtualThreadTaskExecutor;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Adjusts cache lifetimes to demand. Entries that are still being asked for get their TTL pushed out (up to
+ * a maximum age), and when a hot entry approaches that age a fresh copy is downloaded in the background at
+ * low priority so the next user never sees a miss. Entries nobody has asked for recently expire early to
+ * free disk for ones that are.
+ * <p>
+ * Works on the node-local {@link ArtifactCache}; the shared store has no per-entry expiry to adjust.
+ */
+@Component
+public class CacheWarmer {
+
+    private final ArtifactCache artifactCache;
+    private final ArtifactStore artifactStore;
+    private final PopularityTracker popularityTracker;
+    private final DownloadScheduler downloadScheduler;
+    private final YoutubeDownloadService youtubeDownloadService;
+
+    private final int hotThreshold;
+    private final long ttlMillis;
+    private final long maxAgeMillis;
+    private final long refreshAheadMillis;
+    private final long coldGraceMillis;
+    private final int maxRefreshesPerRun;
+
+    private final VirtualThreadTaskExecutor refreshers = new VirtualThreadTaskExecutor("cache-refresh-");
+    private final Set<String> refreshing = ConcurrentHashMap.newKeySet();
+
+    public CacheWarmer(ArtifactCache artifactCache, ArtifactStore artifactStore,
+                       PopularityTracker popularityTracker, DownloadScheduler downloadScheduler,
+                       YoutubeDownloadService youtubeDownloadService,
+                       @Value("${app.cache.ttl-hours:6}") long ttlHours,
+                       @Value("${app.popularity.hot-threshold:5}") int hotThreshold,
+                       @Value("${app.popularity.max-age-hours:48}") long maxAgeHours,
+                       @Value("${app.popularity.refresh-ahead-minutes:30}") long refreshAheadMinutes,
+                       @Value("${app.popularity.cold-grace-minutes:30}") long coldGraceMinutes,
+                       @Value("${app.popularity.max-refreshes-per-run:2}") int maxRefreshesPerRun) {
+        this.artifactCache = artifactCache;
+        this.artifactStore = artifactStore;
+        this.popularityTracker = popularityTracker;
+        this.downloadScheduler = downloadScheduler;
+        this.youtubeDownloadService = youtubeDownloadService;
+        this.hotThreshold = Math.max(1, hotThreshold);
+        this.ttlMillis = TimeUnit.HOURS.toMillis(ttlHours);
+        this.maxAgeMillis = TimeUnit.HOURS.toMillis(Math.max(ttlHours, maxAgeHours));
+        this.refreshAheadMillis = TimeUnit.MINUTES.toMillis(refreshAheadMinutes);
+        this.coldGraceMillis = TimeUnit.MINUTES.toMillis(coldGraceMinutes);
+        this.maxRefreshesPerRun = maxRefreshesPerRun;
+    }
+
+    @Scheduled(fixedDelayString = "${app.popularity.check-interval-ms:300000}", initialDelay = 60_000)
+    void rebalance() {
+        if (artifactStore.isShared()) return;
+
+        long now = System.currentTimeMillis();
+        Map<String, Long> expiries = new HashMap<>();
+        List<String> dueForRefresh = new ArrayList<>();
+
+        for (ArtifactCache.Entry entry : artifactCache.snapshot()) {
+            int demand = popularityTracker.estimate(entry.key());
+            if (demand >= hotThreshold) {
+                long extended = Math.min(now + ttlMillis, entry.createdAt() + maxAgeMillis);
+                if (extended > entry.expiresAt()) {
+                    expiries.put(entry.key(), extended);
+                }
+                if (Math.max(extended, entry.expiresAt()) - now <= refreshAheadMillis) {
+                    dueForRefresh.add(entry.key());
+                }
+            } else if (demand == 0 && now - entry.lastAccess() > coldGraceMillis) {
+                long shortened = now + coldGraceMillis;
+                if (shortened < entry.expiresAt()) {
+                    expiries.put(entry.key(), shortened);
+                }
+            }
+        }
+
+        artifactCache.updateExpiries(expiries);
+        scheduleRefreshes(dueForRefresh);
+    }
+
+    // Hottest first, and only while nobody is queued: refreshes must never delay a user's download.
+    private void scheduleRefreshes(List<String> keys) {
+        keys.sort(Comparator.comparingInt(popularityTracker::estimate).reversed());
+        int started = 0;
+        for (String key : keys) {
+            if (started >= maxRefreshesPerRun || downloadScheduler.queuedCount() > 0) return;
+            if (!refreshing.add(key)) continue;
+            started++;
+            refreshers.execute(() -> {
+                try {
+                    if (youtubeDownloadService.refreshArtifact(key)) {
+                        System.out.println("Refreshed popular cache entry " + key);
+                    }
+                } catch (DownloadException e) {
+                    System.err.println("Background refresh of " + key + " skipped: " + e.getMessage());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (Exception e) {
+                    System.err.println("Background refresh of " + key + " failed: " + e.getMessage());
+                } finally {
+                    refreshing.remove(key);
+                }
+            });
+        }
+    }
+}
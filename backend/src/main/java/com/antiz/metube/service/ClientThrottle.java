@@ -0,0 +1,261 @@
+package com.antiz.metube.service;
+
+import jakarta.servlet.ServletRequest;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+
+/**
+ * Per-client fair share of the API: a token bucket caps how fast one client can start requests, and a
+ * concurrency cap limits how many it can have open at once. Without it a single script can fill every
+ * scheduler slot and queue position, and everyone else waits behind it.
+ * <p>
+ * With Redis enabled the buckets and open-request sets live there, so the limits hold across nodes; a
+ * Redis error falls back to this node's in-memory state for that request. Open requests in Redis expire
+ * after a while on their own, so a node that dies mid-download doesn't hold its clients' slots forever.
+ */
+@Component
+public class ClientThrottle {
+
+    private static final String BUCKET_PREFIX = "throttle:bucket:";
+    private static final String ACTIVE_PREFIX = "throttle:active:";
+
+    // Drops expired slots, checks the concurrency cap, refills and takes a token, and records the slot, in
+    // one step. Returns 0 when admitted, -1 when the client is at its cap, or the wait in ms for a token.
+    private static final DefaultRedisScript<Long> ADMIT = new DefaultRedisScript<>(
+            "local t = redis.call('time') " +
+                    "local now = t[1] * 1000 + math.floor(t[2] / 1000) " +
+                    "redis.call('zremrangebyscore', KEYS[2], '-inf', now) " +
+                    "if redis.call('zcard', KEYS[2]) >= tonumber(ARGV[3]) then return -1 end " +
+                    "local rate = tonumber(ARGV[1]) " +
+                    "local burst = tonumber(ARGV[2]) " +
+                    "local tokens = tonumber(redis.call('hget', KEYS[1], 'tokens') or burst) " +
+                    "local at = tonumber(redis.call('hget', KEYS[1], 'at') or now) " +
+                    "tokens = math.min(burst, tokens + (now - at) * rate) " +
+                    "if tokens < 1 then return math.ceil((1 - tokens) / rate) end " +
+                    "redis.call('hset', KEYS[1], 'tokens', tokens - 1, 'at', now) " +
+                    "redis.call('pexpire', KEYS[1], math.ceil(burst / rate)) " +
+                    "redis.call('zadd', KEYS[2], now + tonumber(ARGV[5]), ARGV[4]) " +
+                    "redis.call('pexpire', KEYS[2], ARGV[5]) " +
+                    "return 0", Long.class);
+
+    private static final String SLOT_ATTRIBUTE = ClientThrottle.class.getName() + ".slot";
+    private static final String PENDING_ATTRIBUTE = ClientThrottle.class.getName() + ".pending";
+    private static final Slot NO_SLOT = () -> {};
+
+    /**
+     * An admitted request. Closing it frees the client's concurrency slot; closing it again does nothing.
+     */
+    public interface Slot extends AutoCloseable {
+        @Override
+        void close();
+    }
+
+    /**
+     * Parks {@code slot} on the request, so the handler can {@link #takeOver} it. Returns a slot that frees
+     * it when the request ends, unless the handler took it over.
+     */
+    public static Slot holdFor(ServletRequest request, Slot slot) {
+        request.setAttribute(SLOT_ATTRIBUTE, slot);
+        return () -> release(request);
+    }
+
+    /**
+     * Like {@link #holdFor}, but admission waits until the handler calls {@link #charge}: a request that is
+     * served from the cache never needs it. Returns a slot that frees whatever was charged when the request
+     * ends, unless the handler took it over.
+     */
+    public static Slot deferFor(ServletRequest request, Supplier<Slot> admission) {
+        request.setAttribute(PENDING_ATTRIBUTE, admission);
+        return () -> {
+            request.removeAttribute(PENDING_ATTRIBUTE);
+            release(request);
+        };
+    }
+
+    /**
+     * Admits a request whose admission was deferred, now that it is about to start a download; throws a 429
+     * when the client is over its limits. Does nothing for requests admitted up front or not throttled.
+     */
+    @SuppressWarnings("unchecked")
+    public static void charge(ServletRequest request) {
+        Object pending = request.getAttribute(PENDING_ATTRIBUTE);
+        if (!(pending instanceof Supplier<?> admission)) return;
+        request.removeAttribute(PENDING_ATTRIBUTE);
+        request.setAttribute(SLOT_ATTRIBUTE, ((Supplier<Slot>) admission).get());
+    }
+
+    private static void release(ServletRequest request) {
+        if (request.getAttribute(SLOT_ATTRIBUTE) instanceof Slot slot) {
+            request.removeAttribute(SLOT_ATTRIBUTE);
+            slot.close();
+        }
+    }
+
+    /**
+     * Takes the request's slot for work that outlives the request, such as a background job or an HLS
+     * session; the caller must close it when that work finishes. A no-op slot for unthrottled requests.
+     */
+    public static Slot takeOver(ServletRequest request) {
+        Object slot = request.getAttribute(SLOT_ATTRIBUTE);
+        request.removeAttribute(SLOT_ATTRIBUTE);
+        return slot instanceof Slot taken ? taken : NO_SLOT;
+    }
+
+    @Autowired(required = false)
+    private StringRedisTemplate redisTemplate;
+
+    @Autowired
+    private DownloadMetrics downloadMetrics;
+
+    @Value("${app.redis.enabled:false}")
+    private boolean redisEnabled;
+
+    @Value("${app.throttle.shared:true}")
+    private boolean shared;
+
+    private final boolean enabled;
+    private final double tokensPerMilli;
+    private final double burst;
+    private final int maxConcurrent;
+    private final long slotTtlMillis;
+    private final ConcurrentMap<String, Client> clients = new ConcurrentHashMap<>();
+
+    // Guarded by its own monitor.
+    private static final class Client {
+        private double tokens;
+        private long refilledAt;
+        private int active;
+        // Set when purgeIdle drops the entry; a request that still got hold of it looks it up again.
+        private boolean retired;
+
+        private Client(double tokens, long now) {
+            this.tokens = tokens;
+            this.refilledAt = now;
+        }
+    }
+
+    public ClientThrottle(@Value("${app.throttle.enabled:true}") boolean enabled,
+                          @Value("${app.throttle.rate-per-minute:20}") double ratePerMinute,
+                          @Value("${app.throttle.burst:10}") int burst,
+                          @Value("${app.throttle.max-concurrent:4}") int maxConcurrent,
+                          @Value("${app.throttle.slot-ttl-minutes:90}") long slotTtlMinutes) {
+        this.enabled = enabled;
+        this.tokensPerMilli = Math.max(0.001, ratePerMinute) / TimeUnit.MINUTES.toMillis(1);
+        this.burst = Math.max(1, burst);
+        this.maxConcurrent = Math.max(1, maxConcurrent);
+        this.slotTtlMillis = TimeUnit.MINUTES.toMillis(Math.max(1, slotTtlMinutes));
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Admits one request from {@code clientId} or throws a 429 with Retry-After.
+     */
+    public Slot admit(String clientId) {
+        if (!enabled) return NO_SLOT;
+        if (redisEnabled && shared && redisTemplate != null) {
+            try {
+                return admitShared(clientId);
+            } catch (DownloadException e) {
+                throw e;
+            } catch (Exception e) {
+                System.err.println("Redis throttle failed, using local limits: " + e.getMessage());
+            }
+        }
+        return admitLocal(clientId);
+    }
+
+    // Clients with nothing open and a full bucket carry no state worth keeping.
+    @Scheduled(fixedDelay = 300_000)
+    void purgeIdle() {
+        long now = System.currentTimeMillis();
+        clients.forEach((clientId, client) -> {
+            synchronized (client) {
+                if (client.active == 0 && client.tokens + (now - client.refilledAt) * tokensPerMilli >= burst) {
+                    client.retired = true;
+                    clients.remove(clientId, client);
+                }
+            }
+        });
+    }
+
+    private Slot admitShared(String clientId) {
+        String slotId = UUID.randomUUID().toString();
+        String activeKey = ACTIVE_PREFIX + clientId;
+        Long verdict = redisTemplate.execute(ADMIT, List.of(BUCKET_PREFIX + clientId, activeKey),
+                String.valueOf(tokensPerMilli), String.valueOf(burst), String.valueOf(maxConcurrent),
+                slotId, String.valueOf(slotTtlMillis));
+        if (verdict == null) throw new IllegalStateException("no reply to throttle script");
+        if (verdict < 0) throw tooManyOpen();
+        if (verdict > 0) throw tooFast(verdict);
+
+        return once(() -> {
+            try {
+                redisTemplate.opsForZSet().remove(activeKey, slotId);
+            } catch (Exception e) {
+                // The slot expires on its own after slot-ttl-minutes.
+                System.err.println("Redis throttle release failed: " + e.getMessage());
+            }
+        });
+    }
+
+    private Slot admitLocal(String clientId) {
+        while (true) {
+            long now = System.currentTimeMillis();
+            Client client = clients.computeIfAbsent(clientId, id -> new Client(burst, now));
+            synchronized (client) {
+                if (client.retired) continue;
+                if (client.active >= maxConcurrent) throw tooManyOpen();
+                client.tokens = Math.min(burst, client.tokens + (now - client.refilledAt) * tokensPerMilli);
+                client.refilledAt = now;
+                if (client.tokens < 1) throw tooFast((long) Math.ceil((1 - client.tokens) / tokensPerMilli));
+                client.tokens -= 1;
+                client.active++;
+            }
+            return release(client);
+        }
+    }
+
+    // An entry with an open slot is never purged, so the release always lands on the live entry.
+    private static Slot release(Client client) {
+        return once(() -> {
+            synchronized (client) {
+                client.active--;
+            }
+        });
+    }
+
+    // A slot handed from the request to background work may be closed by both; only the first counts.
+    private static Slot once(Runnable release) {
+        AtomicBoolean closed = new AtomicBoolean();
+        return () -> {
+            if (closed.compareAndSet(false, true)) release.run();
+        };
+    }
+
+    private DownloadException tooManyOpen() {
+        downloadMetrics.clientThrottled("concurrency");
+        return new DownloadException("Too many downloads in progress from this client. Wait for one to finish.",
+                429, 5);
+    }
+
+    private DownloadException tooFast(long waitMillis) {
+        downloadMetrics.clientThrottled("rate");
+        return new DownloadException("Too many requests from this client. Please slow down.",
+                429, Math.max(1, TimeUnit.MILLISECONDS.toSeconds(waitMillis + 999)));
+    }
+}
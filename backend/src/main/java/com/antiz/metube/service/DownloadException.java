@@ -2,13 +2,23 @@ package com.antiz.metube.service;
 
 public class DownloadException extends RuntimeException {
     private final int statusCode;
+    private final long retryAfterSeconds;
 
     public DownloadException(String message, int statusCode) {
+        this(message, statusCode, 0);
+    }
+
+    public DownloadException(String message, int statusCode, long retryAfterSeconds) {
         super(message);
         this.statusCode = statusCode;
+        this.retryAfterSeconds = retryAfterSeconds;
     }
 
     public int getStatusCode() {
         return statusCode;
     }
+
+    public long getRetryAfterSeconds() {
+        return retryAfterSeconds;
+    }
 }
@@ -0,0 +1,242 @@
+package com.antiz.metube.service;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.task.VirtualThreadTaskExecutor;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Runs downloads in the background so clients don't hold a request open while yt-dlp works.
+ * Progress is pushed to subscribers over Server-Sent Events and the finished file is fetched separately.
+ */
+@Service
+public class DownloadJobService {
+
+    public enum Status { QUEUED, RUNNING, READY, FAILED }
+
+    private static final long PROGRESS_INTERVAL_MS = 500;
+    private static final long EMITTER_TIMEOUT_MS = TimeUnit.MINUTES.toMillis(30);
+
+    private final YoutubeDownloadService youtubeDownloadService;
+    private final long retentionMillis;
+    private final Semaphore activeSlots;
+    // One virtual thread per job: jobs spend nearly all their time blocked on yt-dlp, so pooling buys nothing.
+    private final VirtualThreadTaskExecutor executor = new VirtualThreadTaskExecutor("download-job-");
+    private final ConcurrentMap<String, DownloadJob> jobs = new ConcurrentHashMap<>();
+
+    public DownloadJobService(YoutubeDownloadService youtubeDownloadService,
+                              @Value("${app.jobs.max-active:50}") int maxActive,
+                              @Value("${app.jobs.retention-minutes:30}") long retentionMinutes) {
+        this.youtubeDownloadService = youtubeDownloadService;
+        this.retentionMillis = TimeUnit.MINUTES.toMillis(retentionMinutes);
+        this.activeSlots = new Semaphore(Math.max(1, maxActive));
+    }
+
+    /**
+     * Starts a job. {@code clientSlot} is the submitting client's throttle slot; it is held until the job
+     * finishes, so a client can't get around its concurrency cap by submitting jobs instead of waiting.
+     */
+    public DownloadJob submit(String url, String format, String quality, ClientThrottle.Slot clientSlot) {
+        try {
+            if (url == null || url.isBlank()) {
+                throw new DownloadException("Missing YouTube URL", 400);
+            }
+
+            if (!activeSlots.tryAcquire()) {
+                throw new DownloadException("Too many download jobs in progress. Please retry shortly.", 503, 30);
+            }
+        } catch (RuntimeException e) {
+            clientSlot.close();
+            throw e;
+        }
+
+        DownloadJob job = new DownloadJob(UUID.randomUUID().toString(), url, format, quality);
+        jobs.put(job.id, job);
+        executor.execute(() -> {
+            try (clientSlot) {
+                run(job);
+            } finally {
+                activeSlots.release();
+            }
+        });
+        return job;
+    }
+
+    public DownloadJob get(String id) {
+        DownloadJob job = jobs.get(id);
+        if (job == null) {
+            throw new DownloadException("Job not found or expired.", 404);
+        }
+        return job;
+    }
+
+    public SseEmitter subscribe(String id) {
+        DownloadJob job = get(id);
+        SseEmitter emitter = new SseEmitter(EMITTER_TIMEOUT_MS);
+        emitter.onCompletion(() -> job.emitters.remove(emitter));
+        emitter.onTimeout(() -> job.emitters.remove(emitter));
+        emitter.onError(e -> job.emitters.remove(emitter));
+
+        job.emitters.add(emitter);
+        // Send the current state right away; terminal jobs close the stream after it.
+        job.lock.lock();
+        try {
+            if (job.status == Status.READY || job.status == Status.FAILED) {
+                send(job, emitter, terminalEvent(job), job.toMap());
+                emitter.complete();
+            } else if (job.progress != null) {
+                send(job, emitter, "progress", job.toMap());
+            }
+        } finally {
+            job.lock.unlock();
+        }
+        return emitter;
+    }
+
+    @Scheduled(fixedDelay = 60_000)
+    void purgeFinishedJobs() {
+        long cutoff = System.currentTimeMillis() - retentionMillis;
+        jobs.values().removeIf(job -> job.finishedAt > 0 && job.finishedAt < cutoff);
+    }
+
+    private void run(DownloadJob job) {
+        try {
+            String filePath = youtubeDownloadService.prepareArtifact(job.url, job.format, job.quality,
+                    progress -> onProgress(job, progress));
+            job.lock.lock();
+            try {
+                job.filePath = filePath;
+                job.status = Status.READY;
+                job.finishedAt = System.currentTimeMillis();
+            } finally {
+                job.lock.unlock();
+            }
+            broadcast(job, "ready", true);
+        } catch (DownloadException e) {
+            fail(job, e.getMessage(), e.getStatusCode());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            fail(job, "Download was interrupted.", 503);
+        } catch (Exception e) {
+            fail(job, "Download failed. Please try a different video or quality.", 502);
+        }
+    }
+
+    private void onProgress(DownloadJob job, DownloadProgress progress) {
+        long now = System.currentTimeMillis();
+        job.lock.lock();
+        try {
+            boolean phaseChanged = job.progress == null || !job.progress.phase().equals(progress.phase());
+            job.status = DownloadProgress.QUEUED.equals(progress.phase()) ? Status.QUEUED : Status.RUNNING;
+            job.progress = progress;
+            // yt-dlp prints progress many times a second; forward phase changes immediately and throttle the rest.
+            if (!phaseChanged && now - job.lastEventAt < PROGRESS_INTERVAL_MS) return;
+            job.lastEventAt = now;
+        } finally {
+            job.lock.unlock();
+        }
+        broadcast(job, "progress", false);
+    }
+
+    private void fail(DownloadJob job, String message, int statusCode) {
+        job.lock.lock();
+        try {
+            job.error = message;
+            job.errorStatus = statusCode;
+            job.status = Status.FAILED;
+            job.finishedAt = System.currentTimeMillis();
+        } finally {
+            job.lock.unlock();
+        }
+        broadcast(job, "failed", true);
+    }
+
+    private void broadcast(DownloadJob job, String event, boolean complete) {
+        Map<String, Object> data = job.toMap();
+        for (SseEmitter emitter : job.emitters) {
+            send(job, emitter, event, data);
+            if (complete) {
+                emitter.complete();
+            }
+        }
+    }
+
+    private void send(DownloadJob job, SseEmitter emitter, String event, Map<String, Object> data) {
+        try {
+            emitter.send(SseEmitter.event().name(event).data(data));
+        } catch (IOException | IllegalStateException e) {
+            // Client went away; the download carries on for anyone else.
+            job.emitters.remove(emitter);
+        }
+    }
+
+    private static String terminalEvent(DownloadJob job) {
+        return job.status == Status.READY ? "ready" : "failed";
+    }
+
+    public static final class DownloadJob {
+        private final String id;
+        private final String url;
+        private final String format;
+        private final String quality;
+        private final long createdAt = System.currentTimeMillis();
+        private final List<SseEmitter> emitters = new CopyOnWriteArrayList<>();
+        // Not a monitor: subscribe sends under it, and a blocking send must not pin a virtual thread's carrier.
+        private final ReentrantLock lock = new ReentrantLock();
+
+        private volatile Status status = Status.QUEUED;
+        private volatile DownloadProgress progress;
+        private volatile String filePath;
+        private volatile String error;
+        private volatile int errorStatus;
+        private volatile long finishedAt;
+        private long lastEventAt;
+
+        private DownloadJob(String id, String url, String format, String quality) {
+            this.id = id;
+            this.url = url;
+            this.format = format;
+            this.quality = quality;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public String getFormat() {
+            return format;
+        }
+
+        public Status getStatus() {
+            return status;
+        }
+
+        public String getFilePath() {
+            return filePath;
+        }
+
+        public Map<String, Object> toMap() {
+            Map<String, Object> map = new LinkedHashMap<>();
+            map.put("jobId", id);
+            map.put("status", status.name().toLowerCase(Locale.ROOT));
+            map.put("createdAt", createdAt);
+            if (progress != null) map.put("progress", progress.toMap());
+            if (status == Status.READY) map.put("fileUrl", "/api/jobs/" + id + "/file");
+            if (error != null) {
+                map.put("error", error);
+                map.put("errorStatus", errorStatus);
+            }
+            return map;
+        }
+    }
+}
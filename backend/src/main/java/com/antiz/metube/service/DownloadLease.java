@@ -0,0 +1,202 @@
+package com.antiz.metube.service;
+
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.task.VirtualThreadTaskExecutor;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Cluster-wide "one download per key" on top of Redis. The node that wins {@code SET NX PX} downloads
+ * and keeps renewing the lease; the others poll the shared artifact store until the file appears or
+ * the lease disappears (the holder died), in which case one of them takes over.
+ * <p>
+ * Every successful acquisition also increments a per-key fencing counter. A holder that stalled long
+ * enough to lose its lease to another node finds that the counter moved on when it checks
+ * {@link #isCurrent} before publishing, and drops its result instead of overwriting the newer holder's
+ * work. A lease that merely expired, with nobody taking it over, leaves the counter alone, so that
+ * holder still publishes.
+ * <p>
+ * Only active when Redis is enabled and the artifact store is shared; with node-local storage another
+ * node's download is of no use here. Redis errors fall back to downloading without a lease.
+ */
+@Component
+public class DownloadLease {
+
+    private static final String LEASE_PREFIX = "lease:";
+    private static final String FENCE_PREFIX = "lease-fence:";
+
+    // SET NX PX and the fencing INCR in one step, so a token is only ever issued to the lease holder.
+    private static final DefaultRedisScript<Long> ACQUIRE = new DefaultRedisScript<>(
+            "if redis.call('set', KEYS[1], ARGV[1], 'NX', 'PX', ARGV[2]) then " +
+                    "local fence = redis.call('incr', KEYS[2]); " +
+                    "redis.call('pexpire', KEYS[2], ARGV[3]); " +
+                    "return fence " +
+                    "end " +
+                    "return 0", Long.class);
+
+    private static final DefaultRedisScript<Long> RENEW = new DefaultRedisScript<>(
+            "if redis.call('get', KEYS[1]) == ARGV[1] then " +
+                    "return redis.call('pexpire', KEYS[1], ARGV[2]) " +
+                    "end " +
+                    "return 0", Long.class);
+
+    private static final DefaultRedisScript<Long> RELEASE = new DefaultRedisScript<>(
+            "if redis.call('get', KEYS[1]) == ARGV[1] then " +
+                    "return redis.call('del', KEYS[1]) " +
+                    "end " +
+                    "return 0", Long.class);
+
+    @Autowired(required = false)
+    private StringRedisTemplate redisTemplate;
+
+    @Autowired
+    private ArtifactStore artifactStore;
+
+    @Value("${app.redis.enabled:false}")
+    private boolean redisEnabled;
+
+    @Value("${app.cluster.lease.enabled:true}")
+    private boolean leaseEnabled;
+
+    @Value("${app.node-id:}")
+    private String nodeId;
+
+    @Value("${app.cluster.lease.ttl-seconds:30}")
+    private long ttlSeconds;
+
+    @Value("${app.cluster.lease.wait-seconds:600}")
+    private long waitSeconds;
+
+    @Value("${app.cluster.lease.poll-millis:1000}")
+    private long pollMillis;
+
+    private final VirtualThreadTaskExecutor renewers = new VirtualThreadTaskExecutor("lease-renew-");
+    private final Map<String, Lease> held = new ConcurrentHashMap<>();
+
+    public record Lease(String key, String owner, long fence) {
+    }
+
+    /**
+     * Either a lease to download under (lease set), an artifact another node already published (path set),
+     * or neither when cluster coordination is off or unavailable.
+     */
+    public record Claim(Lease lease, String publishedPath) {
+    }
+
+    public boolean isActive() {
+        return leaseEnabled && redisEnabled && redisTemplate != null && artifactStore.isShared();
+    }
+
+    /**
+     * Takes the lease for {@code key}, or waits while another node holds it. {@code published} is polled
+     * while waiting and {@code onWaiting} is called once if we have to wait at all.
+     */
+    public Claim claim(String key, Supplier<String> published, Runnable onWaiting) throws InterruptedException {
+        if (!isActive()) return new Claim(null, null);
+
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(waitSeconds);
+        boolean waiting = false;
+        while (true) {
+            Lease lease;
+            try {
+                lease = tryAcquire(key);
+            } catch (Exception e) {
+                System.err.println("Redis lease unavailable, downloading without it: " + e.getMessage());
+                return new Claim(null, null);
+            }
+            if (lease != null) {
+                startRenewing(lease);
+                return new Claim(lease, null);
+            }
+
+            if (!waiting) {
+                waiting = true;
+                onWaiting.run();
+            }
+            Thread.sleep(pollMillis);
+
+            String path = published.get();
+            if (path != null) return new Claim(null, path);
+            if (System.currentTimeMillis() > deadline) {
+                throw new DownloadException("Another server is still downloading this video. Please retry shortly.",
+                        503, 30);
+            }
+        }
+    }
+
+    /**
+     * True while {@code lease} is still the newest one issued for its key, whether or not it has expired
+     * since. Null (no coordination) is always current.
+     */
+    public boolean isCurrent(Lease lease) {
+        if (lease == null) return true;
+        try {
+            // Only a newer acquisition moves the fence; the lease key itself may simply have timed out.
+            String fence = redisTemplate.opsForValue().get(FENCE_PREFIX + lease.key());
+            return fence == null || fence.equals(String.valueOf(lease.fence()));
+        } catch (Exception e) {
+            // Can't tell; publishing the same content twice is better than throwing a finished download away.
+            System.err.println("Redis fencing check failed, publishing anyway: " + e.getMessage());
+            return true;
+        }
+    }
+
+    public void release(Lease lease) {
+        if (lease == null) return;
+        held.remove(lease.owner());
+        try {
+            redisTemplate.execute(RELEASE, List.of(LEASE_PREFIX + lease.key()), lease.owner());
+        } catch (Exception e) {
+            System.err.println("Redis lease release failed, it will expire on its own: " + e.getMessage());
+        }
+    }
+
+    @PreDestroy
+    void releaseAll() {
+        for (Lease lease : List.copyOf(held.values())) {
+            release(lease);
+        }
+    }
+
+    private Lease tryAcquire(String key) {
+        String owner = (nodeId == null || nodeId.isBlank() ? "node" : nodeId) + ":" + UUID.randomUUID();
+        long ttlMillis = TimeUnit.SECONDS.toMillis(ttlSeconds);
+        Long fence = redisTemplate.execute(ACQUIRE, List.of(LEASE_PREFIX + key, FENCE_PREFIX + key),
+                owner, String.valueOf(ttlMillis), String.valueOf(TimeUnit.DAYS.toMillis(1)));
+        return fence == null || fence == 0 ? null : new Lease(key, owner, fence);
+    }
+
+    // Renews at a third of the TTL until released, so a lease survives long downloads but not a dead node.
+    private void startRenewing(Lease lease) {
+        held.put(lease.owner(), lease);
+        long ttlMillis = TimeUnit.SECONDS.toMillis(ttlSeconds);
+        renewers.execute(() -> {
+            while (held.containsKey(lease.owner())) {
+                try {
+                    Thread.sleep(ttlMillis / 3);
+                    if (!held.containsKey(lease.owner())) return;
+                    Long renewed = redisTemplate.execute(RENEW, List.of(LEASE_PREFIX + lease.key()),
+                            lease.owner(), String.valueOf(ttlMillis));
+                    if (renewed == null || renewed == 0) {
+                        System.err.println("Lost download lease for " + lease.key());
+                        held.remove(lease.owner());
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                } catch (Exception e) {
+                    System.err.println("Redis lease renewal failed: " + e.getMessage());
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,112 @@
+package com.antiz.metube.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.stereotype.Component;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Micrometer instruments for the download pipeline, published through Actuator at /actuator/prometheus.
+ */
+@Component
+public class DownloadMetrics {
+
+    public static final String PHASE_PROBE = "probe";
+    public static final String PHASE_DOWNLOAD = "download";
+    public static final String PHASE_MERGE = "merge";
+    public static final String PHASE_STREAM = "stream";
+    public static final String PHASE_DERIVE = "derive";
+    public static final String PHASE_HLS = "hls";
+
+    private final MeterRegistry registry;
+    private final Counter bytesServed;
+    private final DistributionSummary fragments;
+
+    public DownloadMetrics(MeterRegistry registry, DownloadScheduler downloadScheduler, FragmentTuner fragmentTuner,
+                           UpstreamGuard upstreamGuard) {
+        this.registry = registry;
+        this.bytesServed = Counter.builder("metube.bytes.served")
+                .baseUnit("bytes")
+                .description("Bytes sent to clients from cache files and live pipes")
+                .register(registry);
+
+        Gauge.builder("metube.downloads.active", downloadScheduler, DownloadScheduler::activeCount)
+                .description("yt-dlp jobs currently holding a scheduler slot")
+                .register(registry);
+        Gauge.builder("metube.downloads.queued", downloadScheduler, DownloadScheduler::queuedCount)
+                .description("Downloads waiting for a scheduler slot")
+                .register(registry);
+
+        this.fragments = DistributionSummary.builder("metube.download.fragments")
+                .description("Concurrent fragments (yt-dlp -N) chosen per download")
+                .register(registry);
+        Gauge.builder("metube.download.fragments.in_use", fragmentTuner, FragmentTuner::inUse)
+                .description("Fragment connections open across all running downloads")
+                .register(registry);
+        Gauge.builder("metube.upstream.circuit.state", upstreamGuard, guard -> guard.state().ordinal())
+                .description("Upstream circuit breaker: 0 closed, 1 open, 2 half-open")
+                .register(registry);
+        for (int level : fragmentTuner.levels()) {
+            Gauge.builder("metube.download.fragment.rate", fragmentTuner, tuner -> tuner.rate(level))
+                    .tag("fragments", String.valueOf(level))
+                    .baseUnit("bytes")
+                    .description("Average fetch rate measured per download at this fragment count, per second")
+                    .register(registry);
+        }
+    }
+
+    public void phase(String phase, long elapsedNanos, boolean success) {
+        registry.timer("metube.pipeline.phase", "phase", phase, "outcome", success ? "success" : "failure")
+                .record(elapsedNanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void fragmentsChosen(int count) {
+        fragments.record(count);
+    }
+
+    /**
+     * @param tier "local", "redis" or "none" for a miss
+     */
+    public void cacheLookup(String tier) {
+        registry.counter("metube.cache.lookups", "result", tier.equals("none") ? "miss" : "hit", "tier", tier)
+                .increment();
+    }
+
+    /**
+     * @param outcome near_hit, near_miss (a remembered miss), hit, miss, timeout or error
+     */
+    public void redisRead(String outcome) {
+        registry.counter("metube.redis.reads", "outcome", outcome).increment();
+    }
+
+    public void bytesServed(long bytes) {
+        if (bytes > 0) {
+            bytesServed.increment(bytes);
+        }
+    }
+
+    public void playerClientOutcome(String playerClient, String outcome) {
+        registry.counter("metube.player_client.runs", "client", playerClient, "outcome", outcome).increment();
+    }
+
+    // Labelled by proxy, never by its URL, so credentials don't end up in the metrics backend.
+    public void egressOutcome(String proxyLabel, String outcome) {
+        registry.counter("metube.egress.runs", "proxy", proxyLabel, "outcome", outcome).increment();
+    }
+
+    /**
+     * @param limit "rate" or "concurrency"
+     */
+    public void clientThrottled(String limit) {
+        registry.counter("metube.client.throttled", "limit", limit).increment();
+    }
+
+    public void failure(FailureCategory category) {
+        registry.counter("metube.download.failures", "category", category.name().toLowerCase(Locale.ROOT))
+                .increment();
+    }
+}
@@ -0,0 +1,67 @@
+package com.antiz.metube.service;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * One progress update for a download, parsed from yt-dlp's stdout or emitted by the scheduler.
+ */
+public record DownloadProgress(String phase, Double percent, String speed, String eta, Integer queuePosition) {
+
+    public static final String QUEUED = "queued";
+    public static final String DOWNLOADING = "downloading";
+    public static final String MERGING = "merging";
+    public static final String EXTRACTING_AUDIO = "extracting_audio";
+    public static final String CONVERTING = "converting";
+    public static final String WAITING_REMOTE = "waiting_remote";
+
+    private static final Pattern PERCENT = Pattern.compile("^\\[download]\\s+(\\d+(?:\\.\\d+)?)%");
+    private static final Pattern SPEED = Pattern.compile("\\bat\\s+(\\S+/s)");
+    private static final Pattern ETA = Pattern.compile("\\bETA\\s+(\\S+)");
+
+    public static DownloadProgress queued(int position) {
+        return new DownloadProgress(QUEUED, null, null, null, position);
+    }
+
+    public static DownloadProgress phase(String phase) {
+        return new DownloadProgress(phase, null, null, null, null);
+    }
+
+    /**
+     * Returns the progress described by one line of yt-dlp output (run with {@code --newline}),
+     * or null if the line carries no progress information.
+     */
+    public static DownloadProgress fromYtDlpLine(String line) {
+        if (line.startsWith("[Merger]") || line.startsWith("[VideoRemuxer]")) {
+            return phase(MERGING);
+        }
+        if (line.startsWith("[ExtractAudio]")) {
+            return phase(EXTRACTING_AUDIO);
+        }
+
+        Matcher percent = PERCENT.matcher(line);
+        if (!percent.find()) return null;
+
+        Matcher speed = SPEED.matcher(line);
+        Matcher eta = ETA.matcher(line);
+        return new DownloadProgress(
+                DOWNLOADING,
+                Double.parseDouble(percent.group(1)),
+                speed.find() ? speed.group(1) : null,
+                eta.find() ? eta.group(1) : null,
+                null
+        );
+    }
+
+    public Map<String, Object> toMap() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("phase", phase);
+        if (percent != null) map.put("percent", percent);
+        if (speed != null) map.put("speed", speed);
+        if (eta != null) map.put("eta", eta);
+        if (queuePosition != null) map.put("queuePosition", queuePosition);
+        return map;
+    }
+}
@@ -0,0 +1,207 @@
+package com.antiz.metube.service;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.IntConsumer;
+
+/**
+ * Limits how many yt-dlp jobs run at once. Callers beyond the slot count wait in a bounded,
+ * priority-ordered queue; once the queue is full new work is rejected with a 503 and a Retry-After hint.
+ */
+@Component
+public class DownloadScheduler {
+
+    public enum Priority { HIGH, NORMAL, LOW }
+
+    @FunctionalInterface
+    public interface DownloadTask<T> {
+        T run() throws IOException, InterruptedException;
+    }
+
+    private static final long MAX_RETRY_AFTER_SECONDS = 300;
+
+    private final int maxConcurrent;
+    private final int maxQueue;
+    private final long queueTimeoutNanos;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final PriorityQueue<Waiter> waiting = new PriorityQueue<>(
+            Comparator.comparing((Waiter w) -> w.priority).thenComparingLong(w -> w.sequence));
+    private int running;
+    private long nextSequence;
+    // Moving average of how long a slot stays busy, used to estimate Retry-After.
+    private double avgRunSeconds = 30;
+
+    public DownloadScheduler(@Value("${app.download.max-concurrent:2}") int maxConcurrent,
+                             @Value("${app.download.max-queue:20}") int maxQueue,
+                             @Value("${app.download.queue-timeout-seconds:120}") long queueTimeoutSeconds) {
+        this.maxConcurrent = Math.max(1, maxConcurrent);
+        this.maxQueue = Math.max(0, maxQueue);
+        this.queueTimeoutNanos = TimeUnit.SECONDS.toNanos(Math.max(1, queueTimeoutSeconds));
+    }
+
+    public <T> T run(Priority priority, DownloadTask<T> task) throws IOException, InterruptedException {
+        return run(priority, position -> {}, task);
+    }
+
+    /**
+     * Runs {@code task} on the calling thread once a slot is free. {@code onQueued} receives the
+     * 1-based queue position if the task has to wait.
+     */
+    public <T> T run(Priority priority, IntConsumer onQueued, DownloadTask<T> task)
+            throws IOException, InterruptedException {
+        acquire(priority, onQueued);
+        long started = System.nanoTime();
+        try {
+            return task.run();
+        } finally {
+            release(System.nanoTime() - started);
+        }
+    }
+
+    public Map<String, Object> status() {
+        lock.lock();
+        try {
+            Map<String, Object> status = new LinkedHashMap<>();
+            status.put("running", running);
+            status.put("queued", waiting.size());
+            status.put("maxConcurrent", maxConcurrent);
+            status.put("maxQueue", maxQueue);
+            status.put("estimatedWaitSeconds", estimateWaitSeconds(waiting.size()));
+            return status;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int activeCount() {
+        lock.lock();
+        try {
+            return running;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int queuedCount() {
+        lock.lock();
+        try {
+            return waiting.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void acquire(Priority priority, IntConsumer onQueued) throws InterruptedException {
+        int position;
+        Waiter waiter;
+        lock.lock();
+        try {
+            if (running < maxConcurrent && waiting.isEmpty()) {
+                running++;
+                return;
+            }
+            if (waiting.size() >= maxQueue) {
+                throw busy();
+            }
+            waiter = new Waiter(priority, nextSequence++, lock.newCondition());
+            waiting.add(waiter);
+            position = positionOf(waiter);
+        } finally {
+            lock.unlock();
+        }
+
+        onQueued.accept(position);
+
+        lock.lock();
+        try {
+            long remaining = queueTimeoutNanos;
+            while (!waiter.granted) {
+                if (remaining <= 0) {
+                    waiting.remove(waiter);
+                    throw busy();
+                }
+                try {
+                    remaining = waiter.condition.awaitNanos(remaining);
+                } catch (InterruptedException e) {
+                    if (waiter.granted) {
+                        handOff();
+                    } else {
+                        waiting.remove(waiter);
+                    }
+                    throw e;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void release(long elapsedNanos) {
+        lock.lock();
+        try {
+            double seconds = elapsedNanos / 1_000_000_000.0;
+            avgRunSeconds = avgRunSeconds * 0.8 + seconds * 0.2;
+            handOff();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Passes a finished slot straight to the next waiter, or frees it. Caller holds the lock.
+    private void handOff() {
+        Waiter next = waiting.poll();
+        if (next == null) {
+            running--;
+            return;
+        }
+        next.granted = true;
+        next.condition.signal();
+    }
+
+    private int positionOf(Waiter waiter) {
+        int ahead = 0;
+        for (Waiter other : waiting) {
+            if (other != waiter && waiting.comparator().compare(other, waiter) < 0) {
+                ahead++;
+            }
+        }
+        return ahead + 1;
+    }
+
+    private DownloadException busy() {
+        return new DownloadException(
+                "Server is busy with other downloads. Please retry shortly.",
+                503,
+                estimateWaitSeconds(waiting.size())
+        );
+    }
+
+    private long estimateWaitSeconds(int queued) {
+        double rounds = (queued + 1) / (double) maxConcurrent;
+        long seconds = (long) Math.ceil(rounds * avgRunSeconds);
+        return Math.max(1, Math.min(MAX_RETRY_AFTER_SECONDS, seconds));
+    }
+
+    private static final class Waiter {
+        private final Priority priority;
+        private final long sequence;
+        private final Condition condition;
+        private boolean granted;
+
+        private Waiter(Priority priority, long sequence, Condition condition) {
+            this.priority = priority;
+            this.sequence = sequence;
+            this.condition = condition;
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package com.antiz.metube.service;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Kills downloads that stopped making progress, instead of killing every download after a fixed time.
+ * Progress is whatever the caller's marker reports (for yt-dlp, the bytes of its working files on disk),
+ * so a slow but steady 4K download runs as long as it needs while a stuck connection is noticed quickly.
+ * A download that stays busy past the overall deadline is killed as well.
+ */
+@Component
+public class DownloadWatchdog {
+
+    private final long stallNanos;
+    private final long maxDurationNanos;
+    private final Set<Watch> watched = ConcurrentHashMap.newKeySet();
+
+    public DownloadWatchdog(@Value("${app.download.stall-timeout-seconds:60}") long stallTimeoutSeconds,
+                            @Value("${app.download.max-duration-minutes:60}") long maxDurationMinutes) {
+        this.stallNanos = TimeUnit.SECONDS.toNanos(Math.max(1, stallTimeoutSeconds));
+        this.maxDurationNanos = TimeUnit.MINUTES.toNanos(Math.max(1, maxDurationMinutes));
+    }
+
+    /**
+     * Deadline for a whole download, across player-client fallbacks and resumed attempts.
+     */
+    public long deadlineFromNow() {
+        return System.nanoTime() + maxDurationNanos;
+    }
+
+    /**
+     * Starts watching {@code process}. It is destroyed once {@code progressMarker} has returned the same
+     * value for the stall timeout, or at {@code deadlineNanos}; close the watch when the process has exited.
+     */
+    public Watch watch(Process process, LongSupplier progressMarker, long deadlineNanos) {
+        Watch watch = new Watch(process, progressMarker, deadlineNanos);
+        watched.add(watch);
+        return watch;
+    }
+
+    @Scheduled(fixedDelay = 1_000)
+    void check() {
+        long now = System.nanoTime();
+        for (Watch watch : watched) {
+            watch.check(now);
+        }
+    }
+
+    public final class Watch implements AutoCloseable {
+        private final Process process;
+        private final LongSupplier progressMarker;
+        private final long deadlineNanos;
+        private long lastMarker;
+        private long lastProgressAt;
+        private volatile String verdict;
+
+        private Watch(Process process, LongSupplier progressMarker, long deadlineNanos) {
+            this.process = process;
+            this.progressMarker = progressMarker;
+            this.deadlineNanos = deadlineNanos;
+            this.lastMarker = progressMarker.getAsLong();
+            this.lastProgressAt = System.nanoTime();
+        }
+
+        // Only called from the scheduler thread, one check at a time.
+        private void check(long now) {
+            if (verdict != null || !process.isAlive()) return;
+
+            long marker = progressMarker.getAsLong();
+            if (marker != lastMarker) {
+                lastMarker = marker;
+                lastProgressAt = now;
+            }
+
+            if (now - deadlineNanos >= 0) {
+                kill("ran past the overall limit of " + TimeUnit.NANOSECONDS.toMinutes(maxDurationNanos) + " minutes");
+            } else if (now - lastProgressAt > stallNanos) {
+                kill("made no progress for " + TimeUnit.NANOSECONDS.toSeconds(stallNanos) + " seconds");
+            }
+        }
+
+        private void kill(String reason) {
+            verdict = reason;
+            process.destroyForcibly();
+        }
+
+        /**
+         * Why the watchdog killed the process, or null if it didn't.
+         */
+        public String verdict() {
+            return verdict;
+        }
+
+        @Override
+        public void close() {
+            watched.remove(this);
+        }
+    }
+}
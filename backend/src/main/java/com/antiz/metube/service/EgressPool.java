@@ -0,0 +1,319 @@
+package com.antiz.metube.service;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The proxies and cookie files yt-dlp can go out with, and how well each has been working. Every run
+ * picks a proxy and a cookie file independently, weighted by recent success rate, latency and how often
+ * YouTube throttled it, so load spreads over the pool and one dead proxy only costs its share of traffic.
+ * <p>
+ * A bot check quarantines both the proxy and the cookie file that triggered it, since either may be what
+ * YouTube flagged; a geo block quarantines the proxy. The egress that last succeeded for a video is reused
+ * for that video's other formats and retries, as long as it is healthy.
+ * <p>
+ * Configured with {@code app.egress.proxies} and {@code app.egress.cookie-files}; the single
+ * {@code YTDLP_PROXY} and {@code YTDLP_COOKIES_B64} variables still work and join the pools. Cookie files
+ * are checked, and the legacy one written, on first use rather than during startup.
+ */
+@Component
+public class EgressPool {
+
+    private static final Path LEGACY_COOKIES_PATH = Paths.get("/tmp/yt_cookies.txt");
+    private static final String COOKIE_ENV = "YTDLP_COOKIES_B64";
+    private static final String PROXY_ENV = "YTDLP_PROXY";
+
+    private static final double SMOOTHING = 0.2;
+    private static final long THROTTLE_HALF_LIFE_MILLIS = TimeUnit.MINUTES.toMillis(5);
+    // A proxy throttled within about one half-life still counts as pushed back on.
+    private static final double PUSHBACK_THROTTLE_SCORE = 0.5;
+    private static final int MAX_AFFINITY_ENTRIES = 10_000;
+
+    /**
+     * What one yt-dlp run goes out with. Either part may be null: no proxy, or no cookies.
+     */
+    public record Egress(String proxy, String cookieFile) {
+        public static final Egress DIRECT = new Egress(null, null);
+    }
+
+    private final List<Endpoint> proxies = new ArrayList<>();
+    private final List<Endpoint> cookieFiles = new ArrayList<>();
+    private final List<String> cookiePaths;
+    private boolean cookiesLoaded;
+    private final long quarantineMillis;
+    private final long affinityMillis;
+
+    // Access-ordered, so iteration starts at the least recently used video.
+    private final LinkedHashMap<String, Affinity> affinity = new LinkedHashMap<>(256, 0.75f, true);
+
+    private record Affinity(Egress egress, long expiresAt) {
+    }
+
+    public EgressPool(@Value("${app.egress.proxies:}") List<String> proxyUrls,
+                      @Value("${app.egress.cookie-files:}") List<String> cookiePaths,
+                      @Value("${app.egress.quarantine-minutes:30}") long quarantineMinutes,
+                      @Value("${app.egress.affinity-minutes:60}") long affinityMinutes) {
+        this.quarantineMillis = TimeUnit.MINUTES.toMillis(quarantineMinutes);
+        this.affinityMillis = TimeUnit.MINUTES.toMillis(affinityMinutes);
+
+        Set<String> proxySet = new LinkedHashSet<>();
+        proxyUrls.stream().map(String::trim).filter(p -> !p.isEmpty()).forEach(proxySet::add);
+        String legacyProxy = System.getenv(PROXY_ENV);
+        if (legacyProxy != null && !legacyProxy.isBlank()) proxySet.add(legacyProxy.trim());
+        for (String proxy : proxySet) {
+            proxies.add(new Endpoint(proxy, "proxy-" + proxies.size() + ":" + hostOf(proxy)));
+        }
+
+        this.cookiePaths = cookiePaths.stream().map(String::trim).filter(p -> !p.isEmpty()).toList();
+    }
+
+    public boolean hasProxies() {
+        return !proxies.isEmpty();
+    }
+
+    public synchronized boolean hasCookies() {
+        loadCookies();
+        return !cookieFiles.isEmpty();
+    }
+
+    /**
+     * Egress for the next run concerning {@code videoId} (null when there is no single video, e.g. a playlist).
+     */
+    public synchronized Egress select(String videoId) {
+        loadCookies();
+        long now = System.currentTimeMillis();
+        if (videoId != null) {
+            Affinity sticky = affinity.get(videoId);
+            if (sticky != null && sticky.expiresAt() > now && usable(sticky.egress(), now)) {
+                return sticky.egress();
+            }
+        }
+        return new Egress(valueOf(pick(proxies, null, now)), valueOf(pick(cookieFiles, null, now)));
+    }
+
+    /**
+     * A different egress to retry with after {@code failure}, or null when switching wouldn't help or there
+     * is nothing else to switch to. Only failures tied to the egress itself qualify.
+     */
+    public synchronized Egress alternative(Egress failed, FailureCategory failure) {
+        boolean proxyFault = failure == FailureCategory.GEO_RESTRICTED || failure == FailureCategory.BOT_CHECK
+                || failure == FailureCategory.THROTTLED;
+        boolean cookieFault = failure == FailureCategory.BOT_CHECK || failure == FailureCategory.AUTH_REQUIRED;
+        if (!proxyFault && !cookieFault) return null;
+
+        loadCookies();
+        long now = System.currentTimeMillis();
+        String proxy = failed.proxy();
+        String cookieFile = failed.cookieFile();
+        if (proxyFault) {
+            Endpoint other = pick(proxies, failed.proxy(), now);
+            if (other != null) proxy = other.value;
+        }
+        if (cookieFault) {
+            Endpoint other = pick(cookieFiles, failed.cookieFile(), now);
+            if (other != null) cookieFile = other.value;
+        }
+        Egress next = new Egress(proxy, cookieFile);
+        return next.equals(failed) ? null : next;
+    }
+
+    /**
+     * Scores a finished run. {@code failure} is null for success; video-specific failures other than geo
+     * blocks say nothing about the egress and only count as a response.
+     * <p>
+     * Returns true when the failure is pushback and every proxy is now quarantined or recently throttled,
+     * so YouTube is refusing the server as a whole rather than one proxy. Going out directly, the one
+     * egress is the whole pool.
+     */
+    public synchronized boolean record(Egress egress, String videoId, FailureCategory failure, long latencyMillis) {
+        loadCookies();
+        long now = System.currentTimeMillis();
+        Endpoint proxy = find(proxies, egress.proxy());
+        Endpoint cookies = find(cookieFiles, egress.cookieFile());
+
+        boolean healthy = failure == null || (failure.isVideoSpecific()
+                && failure != FailureCategory.GEO_RESTRICTED && failure != FailureCategory.AUTH_REQUIRED);
+        for (Endpoint endpoint : new Endpoint[]{proxy, cookies}) {
+            if (endpoint != null) endpoint.observe(healthy, latencyMillis, failure != null && failure.isPushback(), now);
+        }
+
+        if (failure == FailureCategory.BOT_CHECK) {
+            quarantine(proxy, "bot check", now);
+            quarantine(cookies, "bot check", now);
+        } else if (failure == FailureCategory.GEO_RESTRICTED) {
+            quarantine(proxy, "geo block", now);
+        }
+
+        if (videoId != null) {
+            remember(videoId, egress, failure, healthy, now);
+        }
+        return failure != null && failure.isPushback() && pushbackEverywhere(now);
+    }
+
+    public synchronized String labelOf(String value) {
+        Endpoint endpoint = find(proxies, value);
+        if (endpoint == null) endpoint = find(cookieFiles, value);
+        return endpoint == null ? "direct" : endpoint.label;
+    }
+
+    // Caller holds the lock.
+    private void remember(String videoId, Egress egress, FailureCategory failure, boolean healthy, long now) {
+        if (failure == null) {
+            affinity.put(videoId, new Affinity(egress, now + affinityMillis));
+            Iterator<Affinity> eldest = affinity.values().iterator();
+            while (affinity.size() > MAX_AFFINITY_ENTRIES && eldest.hasNext()) {
+                eldest.next();
+                eldest.remove();
+            }
+        } else if (!healthy) {
+            affinity.remove(videoId);
+        }
+    }
+
+    // Caller holds the lock.
+    private boolean pushbackEverywhere(long now) {
+        for (Endpoint proxy : proxies) {
+            if (proxy.quarantinedUntil <= now && proxy.throttle(now) < PUSHBACK_THROTTLE_SCORE) return false;
+        }
+        return true;
+    }
+
+    // Caller holds the lock. Weighted random choice among healthy endpoints; if every one is quarantined,
+    // the one released soonest, so the service degrades instead of refusing to try at all.
+    private Endpoint pick(List<Endpoint> pool, String exclude, long now) {
+        double total = 0;
+        List<Endpoint> candidates = new ArrayList<>();
+        for (Endpoint endpoint : pool) {
+            if (endpoint.value.equals(exclude) || endpoint.quarantinedUntil > now) continue;
+            candidates.add(endpoint);
+            total += endpoint.weight(now);
+        }
+        if (candidates.isEmpty()) {
+            return pool.stream()
+                    .filter(endpoint -> !endpoint.value.equals(exclude))
+                    .min(Comparator.comparingLong(endpoint -> endpoint.quarantinedUntil))
+                    .orElse(null);
+        }
+
+        double ticket = ThreadLocalRandom.current().nextDouble(total);
+        for (Endpoint endpoint : candidates) {
+            ticket -= endpoint.weight(now);
+            if (ticket < 0) return endpoint;
+        }
+        return candidates.get(candidates.size() - 1);
+    }
+
+    private boolean usable(Egress egress, long now) {
+        Endpoint proxy = find(proxies, egress.proxy());
+        Endpoint cookies = find(cookieFiles, egress.cookieFile());
+        return (proxy == null || proxy.quarantinedUntil <= now) && (cookies == null || cookies.quarantinedUntil <= now);
+    }
+
+    private void quarantine(Endpoint endpoint, String reason, long now) {
+        // A pool of one has nothing to fall back to, so quarantining it would only skew the next pick.
+        if (endpoint == null || (proxies.contains(endpoint) ? proxies : cookieFiles).size() < 2) return;
+        endpoint.quarantinedUntil = now + quarantineMillis;
+        System.err.println("Quarantined " + endpoint.label + " for "
+                + TimeUnit.MILLISECONDS.toMinutes(quarantineMillis) + " minutes after a " + reason);
+    }
+
+    private static Endpoint find(List<Endpoint> pool, String value) {
+        if (value == null) return null;
+        for (Endpoint endpoint : pool) {
+            if (endpoint.value.equals(value)) return endpoint;
+        }
+        return null;
+    }
+
+    private static String valueOf(Endpoint endpoint) {
+        return endpoint == null ? null : endpoint.value;
+    }
+
+    private static String hostOf(String proxyUrl) {
+        try {
+            URI uri = URI.create(proxyUrl);
+            return uri.getHost() == null ? "unknown" : uri.getHost() + (uri.getPort() > 0 ? ":" + uri.getPort() : "");
+        } catch (IllegalArgumentException e) {
+            return "unknown";
+        }
+    }
+
+    // Caller holds the lock.
+    private void loadCookies() {
+        if (cookiesLoaded) return;
+        cookiesLoaded = true;
+
+        Set<String> cookieSet = new LinkedHashSet<>(cookiePaths);
+        if (writeLegacyCookies()) cookieSet.add(LEGACY_COOKIES_PATH.toString());
+        for (String path : cookieSet) {
+            if (!Files.isReadable(Paths.get(path))) {
+                System.err.println("Skipping unreadable cookie file " + path);
+                continue;
+            }
+            cookieFiles.add(new Endpoint(path, "cookies-" + cookieFiles.size()));
+        }
+        System.out.println("Egress pool: " + proxies.size() + " proxies, " + cookieFiles.size() + " cookie files");
+    }
+
+    private static boolean writeLegacyCookies() {
+        try {
+            String b64 = System.getenv(COOKIE_ENV);
+            if (b64 == null || b64.isBlank()) return false;
+
+            byte[] decoded = Base64.getDecoder().decode(b64);
+            Files.write(LEGACY_COOKIES_PATH, decoded, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+            LEGACY_COOKIES_PATH.toFile().setReadable(true, true);
+
+            System.out.println("Loaded YouTube cookies into " + LEGACY_COOKIES_PATH);
+            return true;
+        } catch (Exception e) {
+            System.err.println("Failed to load cookies: " + e.getMessage());
+            return false;
+        }
+    }
+
+    // Guarded by the pool's lock.
+    private static final class Endpoint {
+        private final String value;
+        private final String label;
+        private double successRate = 1.0;
+        private double latencyMillis;
+        private double throttleScore;
+        private long throttleAt;
+        private long quarantinedUntil;
+
+        private Endpoint(String value, String label) {
+            this.value = value;
+            this.label = label;
+        }
+
+        private void observe(boolean success, long latency, boolean throttled, long now) {
+            successRate = successRate * (1 - SMOOTHING) + (success ? SMOOTHING : 0);
+            latencyMillis = latencyMillis == 0 ? latency : latencyMillis * (1 - SMOOTHING) + latency * SMOOTHING;
+            if (throttled) {
+                throttleScore = throttle(now) + 1;
+                throttleAt = now;
+            }
+        }
+
+        // Throttling counts halve every few minutes, so a proxy recovers once YouTube eases off.
+        private double throttle(long now) {
+            if (throttleScore == 0) return 0;
+            return throttleScore * Math.pow(0.5, (now - throttleAt) / (double) THROTTLE_HALF_LIFE_MILLIS);
+        }
+
+        private double weight(long now) {
+            double latencyFactor = 1 / (1 + latencyMillis / 10_000);
+            return Math.max(0.01, successRate * successRate * latencyFactor / (1 + throttle(now)));
+        }
+    }
+}
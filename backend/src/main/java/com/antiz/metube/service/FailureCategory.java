@@ -0,0 +1,100 @@
+package com.antiz.metube.service;
+
+import java.util.Locale;
+
+/**
+ * Buckets for yt-dlp failures, recognised from its stderr output.
+ */
+public enum FailureCategory {
+    BOT_CHECK(false),
+    GEO_RESTRICTED(true),
+    AUTH_REQUIRED(true),
+    FORMAT_UNAVAILABLE(true),
+    VIDEO_UNAVAILABLE(true),
+    UNSUPPORTED_URL(true),
+    THROTTLED(false),
+    UPSTREAM_UNREACHABLE(false),
+    // Killed by the download watchdog: says nothing about the player client, egress or YouTube.
+    STALLED(false),
+    UNKNOWN(false);
+
+    private final boolean videoSpecific;
+
+    FailureCategory(boolean videoSpecific) {
+        this.videoSpecific = videoSpecific;
+    }
+
+    /**
+     * True when the failure is about the video itself, so retrying with another client or egress won't help.
+     */
+    public boolean isVideoSpecific() {
+        return videoSpecific;
+    }
+
+    /**
+     * True when YouTube is refusing us rather than failing: rate limiting or a bot check.
+     */
+    public boolean isPushback() {
+        return this == THROTTLED || this == BOT_CHECK;
+    }
+
+    /**
+     * True when another player client would get the same answer. A bot check follows the egress, not the
+     * client, and formats are listed per client, so a missing format is still worth another client.
+     */
+    public boolean endsClientRetries() {
+        return this == BOT_CHECK || (videoSpecific && this != FORMAT_UNAVAILABLE);
+    }
+
+    public static FailureCategory of(String msg) {
+        String lower = msg == null ? "" : msg.toLowerCase(Locale.ROOT);
+
+        if (lower.contains("stalled on server")) {
+            return STALLED;
+        }
+
+        if (lower.contains("sign in to confirm you’re not a bot")
+                || lower.contains("sign in to confirm you're not a bot")
+                || lower.contains("--cookies-from-browser")
+                || lower.contains("use --cookies")) {
+            return BOT_CHECK;
+        }
+
+        if (lower.contains("not made this video available in your country")
+                || lower.contains("this video is available in")) {
+            return GEO_RESTRICTED;
+        }
+
+        if (lower.contains("private video") || lower.contains("sign in to confirm your age")) {
+            return AUTH_REQUIRED;
+        }
+
+        if (lower.contains("requested format is not available")) {
+            return FORMAT_UNAVAILABLE;
+        }
+
+        if (lower.contains("video unavailable")
+                || lower.contains("this video is unavailable")
+                || lower.contains("copyright")
+                || lower.contains("removed by the uploader")) {
+            return VIDEO_UNAVAILABLE;
+        }
+
+        if (lower.contains("unsupported url")) {
+            return UNSUPPORTED_URL;
+        }
+
+        if (lower.contains("too many requests") || lower.contains("http error 429")) {
+            return THROTTLED;
+        }
+
+        if (lower.contains("timed out")
+                || lower.contains("temporary failure in name resolution")
+                || lower.contains("unable to download webpage")
+                || lower.contains("http error 5")) {
+            return UPSTREAM_UNREACHABLE;
+        }
+
+        return UNKNOWN;
+    }
+}
@@ -0,0 +1,121 @@
+package com.antiz.metube.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.concurrent.*;
+
+/**
+ * Caches probe results per video id with their own TTL, locally and (when enabled) in Redis.
+ * Concurrent probes of the same video share one yt-dlp run.
+ */
+@Component
+public class FormatProbeCache {
+
+    @FunctionalInterface
+    public interface Loader {
+        VideoFormats load() throws IOException, InterruptedException;
+    }
+
+    private static final int MAX_LOCAL_ENTRIES = 10_000;
+
+    private final long ttlMillis;
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final ConcurrentMap<String, Cached> local = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, CompletableFuture<VideoFormats>> inFlight = new ConcurrentHashMap<>();
+
+    @Autowired
+    private RedisCacheService redisCache;
+
+    private record Cached(VideoFormats formats, long expiresAt) {
+    }
+
+    public FormatProbeCache(@Value("${app.probe.ttl-minutes:60}") long ttlMinutes) {
+        this.ttlMillis = TimeUnit.MINUTES.toMillis(ttlMinutes);
+    }
+
+    /**
+     * Cached formats for {@code videoId}, or null. Never runs yt-dlp.
+     */
+    public VideoFormats peek(String videoId) {
+        Cached cached = local.get(videoId);
+        if (cached != null && cached.expiresAt() > System.currentTimeMillis()) {
+            return cached.formats();
+        }
+        VideoFormats shared = readRedis(videoId);
+        if (shared != null) {
+            remember(videoId, shared);
+        }
+        return shared;
+    }
+
+    public VideoFormats get(String videoId, Loader loader) throws IOException, InterruptedException {
+        VideoFormats cached = peek(videoId);
+        if (cached != null) return cached;
+
+        CompletableFuture<VideoFormats> pending = new CompletableFuture<>();
+        CompletableFuture<VideoFormats> running = inFlight.putIfAbsent(videoId, pending);
+        if (running != null) {
+            try {
+                return running.get();
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof DownloadException downloadException) throw downloadException;
+                if (e.getCause() instanceof IOException ioException) throw ioException;
+                throw new DownloadException("Could not read available formats for this video.", 502);
+            }
+        }
+
+        try {
+            VideoFormats formats = loader.load();
+            remember(videoId, formats);
+            writeRedis(videoId, formats);
+            pending.complete(formats);
+            return formats;
+        } catch (IOException | InterruptedException | RuntimeException e) {
+            pending.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(videoId, pending);
+        }
+    }
+
+    @Scheduled(fixedDelay = 300_000)
+    void purgeExpired() {
+        long now = System.currentTimeMillis();
+        local.values().removeIf(cached -> cached.expiresAt() <= now);
+    }
+
+    private void remember(String videoId, VideoFormats formats) {
+        if (local.size() >= MAX_LOCAL_ENTRIES) {
+            purgeExpired();
+        }
+        if (local.size() < MAX_LOCAL_ENTRIES) {
+            local.put(videoId, new Cached(formats, System.currentTimeMillis() + ttlMillis));
+        }
+    }
+
+    private VideoFormats readRedis(String videoId) {
+        String json = redisCache.get("formats:" + videoId);
+        if (json == null) return null;
+        try {
+            return objectMapper.readValue(json, VideoFormats.class);
+        } catch (Exception e) {
+            System.err.println("Redis format probe read failed: " + e.getMessage());
+            return null;
+        }
+    }
+
+    private void writeRedis(String videoId, VideoFormats formats) {
+        if (!redisCache.isEnabled()) return;
+        try {
+            redisCache.put("formats:" + videoId, objectMapper.writeValueAsString(formats), Duration.ofMillis(ttlMillis));
+        } catch (Exception e) {
+            System.err.println("Redis format probe write failed: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package com.antiz.metube.service;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Picks how many fragments yt-dlp fetches in parallel ({@code -N}) for each download. DASH formats come
+ * in many small fragments and YouTube paces every connection, so a lone download finishes much sooner
+ * with several at once; on a busy node the same sockets are better spread over the running downloads.
+ * <p>
+ * Every download is capped at an equal share of a node-wide connection budget, and a run that finds the
+ * budget used up waits for connections to come back rather than going over it. Within that cap the count
+ * comes from measured fetch rates: each level (1, 2, 4, ...) keeps a moving average of what it achieved,
+ * and the smallest level within 10% of the best wins. Unmeasured neighbours are tried first, so the tuner
+ * settles where extra connections stop paying off on this node's link.
+ */
+@Component
+public class FragmentTuner {
+
+    private static final double GOOD_ENOUGH = 0.9;
+    private static final double SMOOTHING = 0.3;
+    private static final long MIN_SAMPLE_BYTES = 1 << 20;
+    // Re-check the level above now and then, since the link and YouTube's pacing change over time.
+    private static final int EXPLORE_EVERY = 20;
+
+    private final DownloadScheduler downloadScheduler;
+    private final boolean enabled;
+    private final int maxTotal;
+    private final int[] levels;
+    private final double[] rates;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition released = lock.newCondition();
+    // Guarded by lock.
+    private int inUse;
+    private long acquisitions;
+
+    public FragmentTuner(DownloadScheduler downloadScheduler,
+                         @Value("${app.download.fragments.enabled:true}") boolean enabled,
+                         @Value("${app.download.fragments.max-per-download:8}") int maxPerDownload,
+                         @Value("${app.download.fragments.max-total:16}") int maxTotal) {
+        this.downloadScheduler = downloadScheduler;
+        this.enabled = enabled;
+        this.maxTotal = Math.max(1, maxTotal);
+
+        List<Integer> powers = new ArrayList<>();
+        for (int level = 1; level <= Math.max(1, maxPerDownload); level *= 2) {
+            powers.add(level);
+        }
+        this.levels = powers.stream().mapToInt(Integer::intValue).toArray();
+        this.rates = new double[levels.length];
+    }
+
+    /**
+     * Fragment count for a yt-dlp run that is about to start, waiting while the whole budget is in use.
+     * Pair with {@link #release}.
+     */
+    public int acquire() throws InterruptedException {
+        if (!enabled) return 1;
+        lock.lock();
+        try {
+            // Shares shrink as downloads start, but runs that began earlier keep their larger counts until
+            // they end; until then there may be nothing left, not even one connection.
+            while (inUse >= maxTotal) {
+                released.await();
+            }
+            int share = maxTotal / Math.max(1, downloadScheduler.activeCount());
+            int cap = Math.max(1, Math.min(share, maxTotal - inUse));
+            int fragments = levels[choose(floorIndex(cap))];
+            acquisitions++;
+            inUse += fragments;
+            return fragments;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns a run's connections to the budget, and learns from it if it fetched enough to say anything.
+     */
+    public void release(int fragments, long fetchedBytes, long fetchNanos) {
+        if (!enabled) return;
+        lock.lock();
+        try {
+            inUse -= fragments;
+            released.signalAll();
+            if (fetchedBytes < MIN_SAMPLE_BYTES || fetchNanos <= 0) return;
+
+            int index = floorIndex(fragments);
+            double rate = fetchedBytes / (fetchNanos / 1_000_000_000.0);
+            rates[index] = rates[index] == 0 ? rate : rates[index] * (1 - SMOOTHING) + rate * SMOOTHING;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int inUse() {
+        lock.lock();
+        try {
+            return inUse;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int[] levels() {
+        return levels.clone();
+    }
+
+    /**
+     * Average fetch rate in bytes per second measured with {@code fragments} connections, 0 if untried.
+     */
+    public double rate(int fragments) {
+        lock.lock();
+        try {
+            return rates[floorIndex(fragments)];
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Caller holds the lock. Levels above maxIndex don't fit the current share of the budget.
+    private int choose(int maxIndex) {
+        int best = -1;
+        for (int i = 0; i <= maxIndex; i++) {
+            if (rates[i] > 0 && (best < 0 || rates[i] > rates[best])) best = i;
+        }
+        // Nothing measured yet: an idle node wants speed, so start at the top.
+        if (best < 0) return maxIndex;
+
+        int chosen = best;
+        for (int i = 0; i < best; i++) {
+            if (rates[i] >= rates[best] * GOOD_ENOUGH) {
+                chosen = i;
+                break;
+            }
+        }
+
+        // Look below for a cheaper level that is as fast, and above while the best is at the top of what's tried.
+        if (chosen > 0 && rates[chosen - 1] == 0) return chosen - 1;
+        if (chosen == best && chosen < maxIndex
+                && (rates[chosen + 1] == 0 || acquisitions % EXPLORE_EVERY == 0)) {
+            return chosen + 1;
+        }
+        return chosen;
+    }
+
+    private int floorIndex(int fragments) {
+        int index = 0;
+        while (index + 1 < levels.length && levels[index + 1] <= fragments) {
+            index++;
+        }
+        return index;
+    }
+}
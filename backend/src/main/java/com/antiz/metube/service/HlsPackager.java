@@ -0,0 +1,389 @@
+package com.antiz.metube.service;
+
+import jakarta.annotation.PreDestroy;
+import jakarta.servlet.http.HttpServletResponse;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.task.VirtualThreadTaskExecutor;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Repackages a video's streams into HLS with fragmented-MP4 segments while ffmpeg is still reading them,
+ * so a player can start after the first segment instead of waiting for the whole download and remux.
+ * Nothing is re-encoded: ffmpeg copies the streams straight from YouTube's media URLs.
+ * <p>
+ * Sessions are keyed by video and quality, so concurrent and later viewers share one ffmpeg run and its
+ * segments. A finished session stays on disk for {@code ttl-hours} after its last request; one nobody is
+ * watching any more is stopped after {@code idle-minutes}. Sessions live on this node only.
+ * <p>
+ * Nothing here goes through the {@link DownloadScheduler}. The yt-dlp probe that resolves the media URLs is
+ * a short metadata run, like the one behind {@code /api/formats}, and only takes an upstream token. ffmpeg's
+ * own fetches run for as long as someone is watching, and holding a download slot that long would starve
+ * the download queue, so {@code max-sessions} is what bounds them.
+ */
+@Component
+public class HlsPackager {
+
+    public static final String PLAYLIST = "index.m3u8";
+    private static final String INIT_SEGMENT = "init.mp4";
+    private static final Pattern SESSION_ID = Pattern.compile("[0-9a-f]{24}");
+    private static final Pattern FILE_NAME = Pattern.compile("index\\.m3u8|init\\.mp4|seg_\\d{5}\\.m4s");
+    private static final long POLL_MILLIS = 200;
+
+    /**
+     * One media URL from yt-dlp with the HTTP headers it has to be fetched with.
+     */
+    public record Input(String url, Map<String, String> headers) {
+    }
+
+    /**
+     * What ffmpeg reads: a progressive stream, or separate video and audio. The URLs only work from the
+     * address they were issued to, so ffmpeg goes through the same proxy yt-dlp used, if any. ffmpeg only
+     * speaks HTTP proxies, so a source resolved through any other kind can't be played.
+     */
+    public record Source(List<Input> inputs, String proxy) {
+    }
+
+    @FunctionalInterface
+    public interface SourceLoader {
+        Source load() throws IOException, InterruptedException;
+    }
+
+    private final Path root;
+    private final ProcessStreams processStreams;
+    private final DownloadMetrics downloadMetrics;
+    private final int segmentSeconds;
+    private final int maxRunning;
+    private final long idleMillis;
+    private final long ttlMillis;
+    private final long startTimeoutMillis;
+    private final VirtualThreadTaskExecutor watchers = new VirtualThreadTaskExecutor("hls-ffmpeg-");
+    private final ConcurrentMap<String, Session> sessions = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, CompletableFuture<Session>> starting = new ConcurrentHashMap<>();
+
+    private static final class Session {
+        private final String id;
+        private final Path dir;
+        private final Process process;
+        private volatile long lastAccess = System.currentTimeMillis();
+        private volatile boolean finished;
+        private volatile boolean failed;
+
+        private Session(String id, Path dir, Process process) {
+            this.id = id;
+            this.dir = dir;
+            this.process = process;
+        }
+
+        private void touch() {
+            lastAccess = System.currentTimeMillis();
+        }
+    }
+
+    public HlsPackager(ProcessStreams processStreams, DownloadMetrics downloadMetrics,
+                       @Value("${app.cache.dir:/tmp/metube-cache}") String cacheDir,
+                       @Value("${app.hls.segment-seconds:4}") int segmentSeconds,
+                       @Value("${app.hls.max-sessions:4}") int maxRunning,
+                       @Value("${app.hls.idle-minutes:5}") long idleMinutes,
+                       @Value("${app.hls.ttl-hours:6}") long ttlHours,
+                       @Value("${app.hls.start-timeout-seconds:30}") long startTimeoutSeconds) {
+        this.root = Paths.get(cacheDir, "hls");
+        this.processStreams = processStreams;
+        this.downloadMetrics = downloadMetrics;
+        this.segmentSeconds = Math.max(1, segmentSeconds);
+        this.maxRunning = Math.max(1, maxRunning);
+        this.idleMillis = TimeUnit.MINUTES.toMillis(Math.max(1, idleMinutes));
+        this.ttlMillis = TimeUnit.HOURS.toMillis(Math.max(1, ttlHours));
+        this.startTimeoutMillis = TimeUnit.SECONDS.toMillis(Math.max(1, startTimeoutSeconds));
+    }
+
+    /**
+     * Returns the session id for {@code key}, starting ffmpeg on what {@code loader} resolves unless a
+     * session is already running or finished. {@code clientSlot} is closed when the ffmpeg run this call
+     * started exits, or right away when it started none.
+     */
+    public String open(String key, SourceLoader loader, String ffmpegPath, ClientThrottle.Slot clientSlot)
+            throws IOException, InterruptedException {
+        String id = sessionId(key);
+        Session existing = sessions.get(id);
+        if (existing != null && !existing.failed) {
+            clientSlot.close();
+            existing.touch();
+            return id;
+        }
+
+        CompletableFuture<Session> pending = new CompletableFuture<>();
+        CompletableFuture<Session> running = starting.putIfAbsent(id, pending);
+        if (running != null) {
+            clientSlot.close();
+            try {
+                running.get();
+                return id;
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof DownloadException downloadException) throw downloadException;
+                if (e.getCause() instanceof IOException ioException) throw ioException;
+                throw new DownloadException("Could not start playback for this video.", 502);
+            }
+        }
+
+        try {
+            // A start that finished between our first look and winning the placeholder left its session here;
+            // starting again would delete its directory and orphan its ffmpeg.
+            Session live = sessions.get(id);
+            if (live != null && !live.failed) {
+                clientSlot.close();
+                live.touch();
+                pending.complete(live);
+                return id;
+            }
+            // Our own placeholder is in starting already.
+            if (starting.size() - 1 + runningSessions() >= maxRunning) {
+                throw new DownloadException("Too many videos are being prepared for playback. Please retry shortly.",
+                        503, 30);
+            }
+            Session session = start(id, loader.load(), ffmpegPath, clientSlot);
+            sessions.put(id, session);
+            pending.complete(session);
+            return id;
+        } catch (IOException | InterruptedException | RuntimeException e) {
+            clientSlot.close();
+            pending.completeExceptionally(e);
+            throw e;
+        } finally {
+            starting.remove(id, pending);
+        }
+    }
+
+    /**
+     * Sends one file of a session. The playlist is waited for until ffmpeg has written the first segment.
+     */
+    public void serve(String id, String fileName, HttpServletResponse response)
+            throws IOException, InterruptedException {
+        if (!SESSION_ID.matcher(id).matches() || !FILE_NAME.matcher(fileName).matches()) {
+            throw new DownloadException("Not found.", 404);
+        }
+        Session session = sessions.get(id);
+        if (session == null) {
+            throw new DownloadException("This stream has expired. Please start playback again.", 404);
+        }
+        session.touch();
+
+        Path file = session.dir.resolve(fileName);
+        boolean playlist = fileName.equals(PLAYLIST);
+        if (playlist) {
+            awaitPlaylist(session, file);
+        }
+        if (!Files.exists(file)) {
+            throw new DownloadException("Segment is not available yet.", 404);
+        }
+
+        response.setStatus(200);
+        response.setContentType(playlist ? "application/vnd.apple.mpegurl"
+                : fileName.equals(INIT_SEGMENT) ? "video/mp4" : "video/iso.segment");
+        // Segments never change once written; the playlist grows until ffmpeg is done.
+        response.setHeader("Cache-Control", playlist && !session.finished ? "no-cache"
+                : "max-age=" + TimeUnit.MILLISECONDS.toSeconds(ttlMillis));
+        response.setContentLengthLong(Files.size(file));
+        Files.copy(file, response.getOutputStream());
+    }
+
+    @Scheduled(fixedDelay = 60_000)
+    void purge() {
+        long now = System.currentTimeMillis();
+        for (Session session : sessions.values()) {
+            long idle = now - session.lastAccess;
+            boolean expired = session.failed || (session.finished ? idle > ttlMillis : idle > idleMillis);
+            if (!expired) continue;
+            if (sessions.remove(session.id, session)) {
+                session.process.destroyForcibly();
+                deleteDirectory(session.dir);
+            }
+        }
+
+        // Left behind by a previous run of the service, or by a session that failed to start.
+        if (!Files.isDirectory(root)) return;
+        try (DirectoryStream<Path> dirs = Files.newDirectoryStream(root)) {
+            for (Path dir : dirs) {
+                String id = dir.getFileName().toString();
+                if (!sessions.containsKey(id) && !starting.containsKey(id)) {
+                    deleteDirectory(dir);
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Failed to sweep HLS directory: " + e.getMessage());
+        }
+    }
+
+    @PreDestroy
+    void stop() {
+        sessions.values().forEach(session -> session.process.destroyForcibly());
+    }
+
+    private Session start(String id, Source source, String ffmpegPath, ClientThrottle.Slot clientSlot)
+            throws IOException, InterruptedException {
+        if (source.proxy() != null && !source.proxy().startsWith("http://")) {
+            throw new DownloadException("Playback isn't available through this server's proxy. "
+                    + "Download the video instead.", 501);
+        }
+        Path dir = root.resolve(id);
+        deleteDirectory(dir);
+        Files.createDirectories(dir);
+
+        Process process;
+        try {
+            // Relative names, so the playlist and the init segment reference each other without paths.
+            process = processStreams.start(new ProcessBuilder(buildCommand(source, ffmpegPath))
+                    .directory(dir.toFile())
+                    .redirectOutput(ProcessBuilder.Redirect.DISCARD));
+        } catch (IOException e) {
+            deleteDirectory(dir);
+            throw new DownloadException("ffmpeg is not available for playback.", 500);
+        } catch (InterruptedException e) {
+            deleteDirectory(dir);
+            throw e;
+        }
+        System.out.println("Packaging HLS session " + id);
+
+        Session session = new Session(id, dir, process);
+        ProcessStreams.Capture stderr = processStreams.drainStderr(process, "ffmpeg err: ");
+        long started = System.nanoTime();
+        watchers.execute(() -> {
+            try (clientSlot) {
+                int exit = process.waitFor();
+                stderr.await();
+                session.failed = exit != 0;
+                session.finished = true;
+                downloadMetrics.phase(DownloadMetrics.PHASE_HLS, System.nanoTime() - started, exit == 0);
+                if (exit != 0 && sessions.get(id) == session) {
+                    System.err.println("HLS packaging of " + id + " failed (exit " + exit + "): " + stderr);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        return session;
+    }
+
+    private void awaitPlaylist(Session session, Path playlist) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + startTimeoutMillis;
+        while (!Files.exists(playlist)) {
+            if (session.failed) {
+                sessions.remove(session.id, session);
+                throw new DownloadException("Could not prepare this video for playback. Please retry.", 502);
+            }
+            if (session.finished || System.currentTimeMillis() > deadline) {
+                throw new DownloadException("Playback is taking too long to start. Please retry.", 504);
+            }
+            Thread.sleep(POLL_MILLIS);
+        }
+    }
+
+    private List<String> buildCommand(Source source, String ffmpegPath) {
+        List<String> args = new ArrayList<>();
+        args.add(ffmpegPath);
+        args.add("-hide_banner");
+        args.add("-nostdin");
+        args.add("-loglevel");
+        args.add("error");
+
+        for (Input input : source.inputs()) {
+            if (source.proxy() != null) {
+                args.add("-http_proxy");
+                args.add(source.proxy());
+            }
+            if (!input.headers().isEmpty()) {
+                StringBuilder headers = new StringBuilder();
+                input.headers().forEach((name, value) -> headers.append(name).append(": ").append(value).append("\r\n"));
+                args.add("-headers");
+                args.add(headers.toString());
+            }
+            args.add("-i");
+            args.add(input.url());
+        }
+
+        if (source.inputs().size() > 1) {
+            args.add("-map");
+            args.add("0:v:0");
+            args.add("-map");
+            args.add("1:a:0");
+        } else {
+            args.add("-map");
+            args.add("0:v:0");
+            args.add("-map");
+            args.add("0:a:0?");
+        }
+        args.add("-c");
+        args.add("copy");
+        args.add("-f");
+        args.add("hls");
+        args.add("-hls_time");
+        args.add(String.valueOf(segmentSeconds));
+        // "event" keeps every segment in the playlist, so a finished session is a complete VOD.
+        args.add("-hls_playlist_type");
+        args.add("event");
+        args.add("-hls_segment_type");
+        args.add("fmp4");
+        args.add("-hls_fmp4_init_filename");
+        args.add(INIT_SEGMENT);
+        // temp_file: segments appear under their final name only when complete.
+        args.add("-hls_flags");
+        args.add("independent_segments+temp_file");
+        args.add("-hls_segment_filename");
+        args.add("seg_%05d.m4s");
+        args.add(PLAYLIST);
+        return args;
+    }
+
+    private int runningSessions() {
+        int count = 0;
+        for (Session session : sessions.values()) {
+            if (!session.finished) count++;
+        }
+        return count;
+    }
+
+    private static String sessionId(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(digest, 0, 12);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void deleteDirectory(Path dir) {
+        if (!Files.exists(dir)) return;
+        try (Stream<Path> paths = Files.walk(dir)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> {
+                try {
+                    Files.deleteIfExists(path);
+                } catch (IOException e) {
+                    System.err.println("Failed to delete " + path + ": " + e.getMessage());
+                }
+            });
+        } catch (IOException e) {
+            System.err.println("Failed to delete " + dir + ": " + e.getMessage());
+        }
+    }
+}
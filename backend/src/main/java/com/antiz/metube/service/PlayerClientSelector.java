@@ -0,0 +1,121 @@
+package com.antiz.metube.service;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Orders yt-dlp player clients by how well they have worked recently. A client whose success rate drops
+ * below the threshold is skipped, except for an occasional probe request that tries it first so it can be
+ * promoted again once YouTube stops breaking it.
+ */
+@Component
+public class PlayerClientSelector {
+
+    private static final int MIN_SAMPLES = 5;
+
+    private final List<String> clients;
+    private final int windowSize;
+    private final long windowMillis;
+    private final double demoteBelow;
+    private final long probeIntervalMillis;
+
+    private final Map<String, Deque<Outcome>> outcomes = new HashMap<>();
+    private final Map<String, Long> lastProbe = new HashMap<>();
+
+    private record Outcome(long at, boolean success, long latencyMillis) {
+    }
+
+    public record ClientStats(String client, int samples, double successRate, long avgLatencyMillis,
+                              boolean demoted) {
+    }
+
+    public PlayerClientSelector(@Value("${app.player-clients.order:android,web}") List<String> clients,
+                                @Value("${app.player-clients.window-size:20}") int windowSize,
+                                @Value("${app.player-clients.window-minutes:15}") long windowMinutes,
+                                @Value("${app.player-clients.demote-below:0.5}") double demoteBelow,
+                                @Value("${app.player-clients.probe-interval-seconds:60}") long probeIntervalSeconds) {
+        this.clients = List.copyOf(clients);
+        this.windowSize = Math.max(MIN_SAMPLES, windowSize);
+        this.windowMillis = TimeUnit.MINUTES.toMillis(windowMinutes);
+        this.demoteBelow = demoteBelow;
+        this.probeIntervalMillis = TimeUnit.SECONDS.toMillis(probeIntervalSeconds);
+        for (String client : this.clients) {
+            outcomes.put(client, new ArrayDeque<>());
+        }
+    }
+
+    /**
+     * Player clients to try for the next yt-dlp run, best first. Never empty.
+     */
+    public synchronized List<String> order() {
+        long now = System.currentTimeMillis();
+        List<ClientStats> stats = new ArrayList<>();
+        for (String client : clients) {
+            stats.add(statsFor(client, now));
+        }
+
+        // Stable sort keeps the configured order between clients with equal records.
+        stats.sort(Comparator.comparingDouble((ClientStats s) -> -score(s))
+                .thenComparingLong(s -> s.samples() == 0 ? Long.MAX_VALUE : s.avgLatencyMillis()));
+
+        List<String> healthy = new ArrayList<>();
+        List<String> demoted = new ArrayList<>();
+        for (ClientStats s : stats) {
+            (s.demoted() ? demoted : healthy).add(s.client());
+        }
+        if (healthy.isEmpty()) {
+            return demoted;
+        }
+
+        for (String client : demoted) {
+            if (now - lastProbe.getOrDefault(client, 0L) >= probeIntervalMillis) {
+                lastProbe.put(client, now);
+                List<String> probing = new ArrayList<>();
+                probing.add(client);
+                probing.addAll(healthy);
+                return probing;
+            }
+        }
+        return healthy;
+    }
+
+    public synchronized void record(String client, boolean success, long latencyMillis) {
+        Deque<Outcome> window = outcomes.get(client);
+        if (window == null) return;
+        window.addLast(new Outcome(System.currentTimeMillis(), success, latencyMillis));
+        while (window.size() > windowSize) {
+            window.removeFirst();
+        }
+    }
+
+    // Smoothed success rate, so a single early failure or success doesn't dominate a nearly empty window.
+    private static double score(ClientStats stats) {
+        return (stats.successRate() * stats.samples() + 1) / (stats.samples() + 2);
+    }
+
+    // Caller holds the lock.
+    private ClientStats statsFor(String client, long now) {
+        Deque<Outcome> window = outcomes.get(client);
+        while (!window.isEmpty() && now - window.peekFirst().at() > windowMillis) {
+            window.removeFirst();
+        }
+
+        int samples = window.size();
+        if (samples == 0) {
+            return new ClientStats(client, 0, 1.0, 0, false);
+        }
+
+        int successes = 0;
+        long latency = 0;
+        for (Outcome outcome : window) {
+            if (outcome.success()) successes++;
+            latency += outcome.latencyMillis();
+        }
+        double rate = successes / (double) samples;
+        boolean demoted = samples >= MIN_SAMPLES && rate < demoteBelow;
+        return new ClientStats(client, samples, rate, latency / samples, demoted);
+    }
+}
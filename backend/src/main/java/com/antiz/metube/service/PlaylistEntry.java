@@ -0,0 +1,11 @@
+package com.antiz.metube.service;
+
+/**
+ * One video of a playlist as listed by yt-dlp's flat extraction.
+ */
+public record PlaylistEntry(String videoId, String title) {
+
+    public String url() {
+        return "https://www.youtube.com/watch?v=" + videoId;
+    }
+}
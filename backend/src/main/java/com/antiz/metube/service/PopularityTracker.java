@@ -0,0 +1,56 @@
+package com.antiz.metube.service;
+
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+/**
+ * Approximate request counts per cache key in a fixed amount of memory (a count-min sketch). Counts are
+ * halved every window, so an estimate reflects recent demand rather than all-time totals, and a key
+ * nobody asked for in a couple of windows reads as zero. Estimates can overcount on hash collisions but
+ * never undercount.
+ */
+@Component
+public class PopularityTracker {
+
+    private static final int DEPTH = 4;
+    private static final int WIDTH = 4096;
+    private static final int[] SEEDS = {0x9E3779B9, 0x85EBCA6B, 0xC2B2AE35, 0x27D4EB2F};
+
+    private final int[][] counters = new int[DEPTH][WIDTH];
+
+    public synchronized void record(String key) {
+        int hash = key.hashCode();
+        for (int row = 0; row < DEPTH; row++) {
+            int[] counts = counters[row];
+            int column = column(hash, row);
+            if (counts[column] < Integer.MAX_VALUE) {
+                counts[column]++;
+            }
+        }
+    }
+
+    public synchronized int estimate(String key) {
+        int hash = key.hashCode();
+        int min = Integer.MAX_VALUE;
+        for (int row = 0; row < DEPTH; row++) {
+            min = Math.min(min, counters[row][column(hash, row)]);
+        }
+        return min;
+    }
+
+    @Scheduled(fixedDelayString = "#{${app.popularity.window-minutes:60} * 60000}",
+            initialDelayString = "#{${app.popularity.window-minutes:60} * 60000}")
+    synchronized void decay() {
+        for (int[] counts : counters) {
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] >>>= 1;
+            }
+        }
+    }
+
+    private static int column(int hash, int row) {
+        int mixed = (hash ^ SEEDS[row]) * 0x45D9F3B;
+        mixed ^= mixed >>> 16;
+        return (mixed & Integer.MAX_VALUE) % WIDTH;
+    }
+}
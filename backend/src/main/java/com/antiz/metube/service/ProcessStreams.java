@@ -0,0 +1,114 @@
+package com.antiz.metube.service;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.task.VirtualThreadTaskExecutor;
+import org.springframework.stereotype.Component;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Reads the stderr of yt-dlp and ffmpeg processes on virtual threads. Every running process needs a
+ * reader, so this used to be one platform thread each. {@link #start} caps how many processes have readers
+ * at once: new processes wait for a slot before they start, rather than growing the thread count without
+ * limit. Waiting any later would leave a started process writing into pipes nobody drains.
+ */
+@Component
+public class ProcessStreams {
+
+    // Only the tail of a failed run matters for error messages and failure classification.
+    static final int MAX_CAPTURED_CHARS = 64 * 1024;
+
+    private final VirtualThreadTaskExecutor executor = new VirtualThreadTaskExecutor("process-io-");
+    private final Semaphore slots;
+
+    public ProcessStreams(@Value("${app.process-io.max-readers:512}") int maxReaders) {
+        this.slots = new Semaphore(Math.max(1, maxReaders));
+    }
+
+    /**
+     * Starts {@code builder} once a reader slot is free. The slot is held until the process exits, so the
+     * readers started for it by {@link #drainStderr} and {@link #readStdout} never have to wait.
+     */
+    public Process start(ProcessBuilder builder) throws IOException, InterruptedException {
+        slots.acquire();
+        try {
+            Process process = builder.start();
+            process.onExit().whenComplete((exited, e) -> slots.release());
+            return process;
+        } catch (IOException | RuntimeException e) {
+            slots.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Starts draining {@code process}'s stderr, echoing it to the server log and keeping the last
+     * {@link #MAX_CAPTURED_CHARS} characters for {@link Capture#text()}.
+     */
+    public Capture drainStderr(Process process, String logPrefix) {
+        Capture capture = new Capture();
+        capture.future = executor.submit(() -> {
+            try (BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(process.getErrorStream(), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    System.err.println(logPrefix + line);
+                    capture.append(line);
+                }
+            } catch (IOException ignored) {}
+        });
+        return capture;
+    }
+
+    /**
+     * Reads all of {@code process}'s stdout in the background, so the caller can bound its wait for the
+     * process instead of blocking on the read.
+     */
+    public Future<byte[]> readStdout(Process process) {
+        return executor.submit(() -> {
+            try (InputStream in = process.getInputStream()) {
+                return in.readAllBytes();
+            }
+        });
+    }
+
+    public static final class Capture {
+        private final StringBuilder text = new StringBuilder();
+        private Future<?> future;
+
+        private synchronized void append(String line) {
+            text.append(line).append(System.lineSeparator());
+            int overflow = text.length() - MAX_CAPTURED_CHARS;
+            if (overflow > 0) {
+                text.delete(0, overflow);
+            }
+        }
+
+        /**
+         * Waits until the process has closed stderr. Call after the process has exited or been destroyed.
+         */
+        public void await() throws InterruptedException {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                System.err.println("stderr reader failed: " + e.getCause());
+            }
+        }
+
+        public synchronized String text() {
+            return text.toString();
+        }
+
+        @Override
+        public String toString() {
+            return text();
+        }
+    }
+}
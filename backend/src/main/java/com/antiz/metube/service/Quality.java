@@ -0,0 +1,69 @@
+package com.antiz.metube.service;
+
+import java.util.Locale;
+
+/**
+ * Quality values accepted by the API. Video entries cap the height, audio entries set the mp3 bitrate;
+ * anything unrecognised means "best".
+ */
+public enum Quality {
+    BEST("best", 0, null),
+    P144("144p", 144, null),
+    P240("240p", 240, null),
+    P360("360p", 360, null),
+    P480("480p", 480, null),
+    P720("720p", 720, null),
+    P1080("1080p", 1080, null),
+    P1440("1440p", 1440, null),
+    P2160("2160p", 2160, null),
+    K64("64k", 0, "64K"),
+    K128("128k", 0, "128K"),
+    K192("192k", 0, "192K"),
+    K256("256k", 0, "256K"),
+    K320("320k", 0, "320K");
+
+    private final String label;
+    private final int maxHeight;
+    private final String audioBitrate;
+
+    Quality(String label, int maxHeight, String audioBitrate) {
+        this.label = label;
+        this.maxHeight = maxHeight;
+        this.audioBitrate = audioBitrate;
+    }
+
+    public static Quality parse(String raw) {
+        if (raw == null || raw.isBlank()) return BEST;
+        String value = raw.trim().toLowerCase(Locale.ROOT);
+        if (value.equals("4k")) return P2160;
+        for (Quality quality : values()) {
+            if (quality.label.equals(value)) return quality;
+        }
+        return BEST;
+    }
+
+    /**
+     * Collapses values that make no difference for {@code format}, e.g. a bitrate on an mp4 request,
+     * so equivalent requests share one cache entry.
+     */
+    public Quality effectiveFor(String format) {
+        boolean audio = format.equals("mp3");
+        if (audio && maxHeight > 0) return BEST;
+        if (!audio && audioBitrate != null) return BEST;
+        return this;
+    }
+
+    public String label() {
+        return label;
+    }
+
+    /** Height cap in pixels, or 0 for no cap. */
+    public int maxHeight() {
+        return maxHeight;
+    }
+
+    /** yt-dlp {@code --audio-quality} value; "0" means best VBR. */
+    public String audioBitrate() {
+        return audioBitrate == null ? "0" : audioBitrate;
+    }
+}
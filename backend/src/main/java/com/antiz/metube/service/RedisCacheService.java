@@ -1,31 +1,215 @@
 package com.antiz.metube.service;
 
-import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
-import org.springframework.data.redis.core.RedisTemplate;
-import org.springframework.stereotype.Service;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.ReactiveRedisConnectionFactory;
+import org.springframework.data.redis.core.ReactiveStringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.ReactiveRedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+import reactor.core.Disposable;
+import reactor.core.scheduler.Schedulers;
+import reactor.util.retry.Retry;
 
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
-@Service
-@ConditionalOnProperty(name = "app.redis.enabled", havingValue = "true")
+/**
+ * String values shared through Redis, with a bounded in-process near cache in front. Recent hits and
+ * recent misses are answered from memory; only a near miss goes to Redis, asynchronously and with a
+ * short deadline, so a slow or unreachable Redis reads as a cache miss instead of stalling the request.
+ * A reply that arrives after the deadline still fills the near cache for the next caller, unless the key
+ * was written, deleted or invalidated while it was in flight.
+ * <p>
+ * Writes go to Redis in the background and are announced on a pub/sub channel, so other nodes drop their
+ * near copy (a remembered miss, usually) right away. While the subscription is down, near entries are
+ * only as stale as their TTL allows.
+ */
+@Component
 public class RedisCacheService {
 
-    private final RedisTemplate<String, Object> redisTemplate;
+    private static final String INVALIDATION_CHANNEL = "metube:cache-invalidations";
 
-    public RedisCacheService(RedisTemplate<String, Object> redisTemplate) {
-        this.redisTemplate = redisTemplate;
+    @Autowired(required = false)
+    private ReactiveStringRedisTemplate redisTemplate;
+
+    @Autowired(required = false)
+    private ReactiveRedisConnectionFactory connectionFactory;
+
+    @Autowired
+    private DownloadMetrics downloadMetrics;
+
+    @Value("${app.redis.enabled:false}")
+    private boolean redisEnabled;
+
+    private final int maxEntries;
+    private final long nearTtlMillis;
+    private final long missTtlMillis;
+    private final long readTimeoutMillis;
+    // Tags our own invalidations so we don't drop what we just wrote.
+    private final String origin = UUID.randomUUID().toString();
+
+    // Access-ordered, so iteration starts at the least recently used entry.
+    private final LinkedHashMap<String, Near> near = new LinkedHashMap<>(256, 0.75f, true);
+
+    private ReactiveRedisMessageListenerContainer listenerContainer;
+    private Disposable invalidations;
+
+    // A null value is a remembered miss.
+    private record Near(String value, long expiresAt) {
     }
 
-    public void save(String key, String value, long ttlMinutes) {
-        redisTemplate.opsForValue().set(key, value, ttlMinutes, TimeUnit.MINUTES);
+    public RedisCacheService(@Value("${app.redis.near-cache.max-entries:10000}") int maxEntries,
+                             @Value("${app.redis.near-cache.ttl-seconds:30}") long nearTtlSeconds,
+                             @Value("${app.redis.near-cache.miss-ttl-seconds:5}") long missTtlSeconds,
+                             @Value("${app.redis.read-timeout-ms:150}") long readTimeoutMillis) {
+        this.maxEntries = Math.max(1, maxEntries);
+        this.nearTtlMillis = TimeUnit.SECONDS.toMillis(nearTtlSeconds);
+        this.missTtlMillis = TimeUnit.SECONDS.toMillis(missTtlSeconds);
+        this.readTimeoutMillis = Math.max(1, readTimeoutMillis);
     }
 
+    public boolean isEnabled() {
+        return redisEnabled && redisTemplate != null;
+    }
+
+    @PostConstruct
+    void subscribe() {
+        if (!isEnabled() || connectionFactory == null) return;
+        listenerContainer = new ReactiveRedisMessageListenerContainer(connectionFactory);
+        invalidations = listenerContainer.receive(ChannelTopic.of(INVALIDATION_CHANNEL))
+                .map(message -> message.getMessage())
+                .retryWhen(Retry.backoff(Long.MAX_VALUE, Duration.ofSeconds(1)).maxBackoff(Duration.ofMinutes(1)))
+                .subscribeOn(Schedulers.boundedElastic())
+                .subscribe(this::onInvalidation,
+                        e -> System.err.println("Redis invalidation subscription ended: " + e.getMessage()));
+    }
+
+    @PreDestroy
+    void unsubscribe() {
+        if (invalidations != null) invalidations.dispose();
+        if (listenerContainer != null) listenerContainer.destroyLater().subscribe();
+    }
+
+    /**
+     * The value for {@code key}, or null when it is absent, Redis is disabled, or Redis didn't answer in time.
+     */
     public String get(String key) {
-        Object value = redisTemplate.opsForValue().get(key);
-        return value != null ? value.toString() : null;
+        if (!isEnabled()) return null;
+
+        Near cached = nearLookup(key);
+        if (cached != null) {
+            downloadMetrics.redisRead(cached.value() == null ? "near_miss" : "near_hit");
+            return cached.value();
+        }
+
+        // Holds the key's place while the read is in flight. A put, delete or invalidation replaces it, and the
+        // reply is then dropped rather than reinstating a value from before the change.
+        Near pending = new Near(null, 0);
+        store(key, pending);
+        CompletableFuture<String> reply;
+        try {
+            reply = redisTemplate.opsForValue().get(key).toFuture();
+        } catch (Exception e) {
+            downloadMetrics.redisRead("error");
+            System.err.println("Redis read failed, continuing without cache: " + e.getMessage());
+            return null;
+        }
+        reply.thenAccept(value -> rememberIfUnchanged(key, pending, value));
+
+        try {
+            String value = reply.get(readTimeoutMillis, TimeUnit.MILLISECONDS);
+            downloadMetrics.redisRead(value == null ? "miss" : "hit");
+            return value;
+        } catch (TimeoutException e) {
+            downloadMetrics.redisRead("timeout");
+            return null;
+        } catch (ExecutionException e) {
+            downloadMetrics.redisRead("error");
+            System.err.println("Redis read failed, continuing without cache: " + e.getCause().getMessage());
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    /**
+     * Stores {@code value} locally at once and in Redis in the background, then tells other nodes.
+     */
+    public void put(String key, String value, Duration ttl) {
+        if (!isEnabled()) return;
+        remember(key, value, Math.min(nearTtlMillis, ttl.toMillis()));
+        try {
+            redisTemplate.opsForValue().set(key, value, ttl)
+                    .then(redisTemplate.convertAndSend(INVALIDATION_CHANNEL, origin + "\n" + key))
+                    .subscribe(published -> {},
+                            e -> System.err.println("Redis write failed, continuing without cache: " + e.getMessage()));
+        } catch (Exception e) {
+            System.err.println("Redis write failed, continuing without cache: " + e.getMessage());
+        }
     }
 
     public void delete(String key) {
-        redisTemplate.delete(key);
+        if (!isEnabled()) return;
+        remember(key, null, missTtlMillis);
+        try {
+            redisTemplate.delete(key)
+                    .then(redisTemplate.convertAndSend(INVALIDATION_CHANNEL, origin + "\n" + key))
+                    .subscribe(published -> {},
+                            e -> System.err.println("Redis delete failed: " + e.getMessage()));
+        } catch (Exception e) {
+            System.err.println("Redis delete failed: " + e.getMessage());
+        }
+    }
+
+    private void onInvalidation(String message) {
+        int newline = message.indexOf('\n');
+        if (newline < 0 || message.substring(0, newline).equals(origin)) return;
+        synchronized (near) {
+            near.remove(message.substring(newline + 1));
+        }
+    }
+
+    private Near nearLookup(String key) {
+        synchronized (near) {
+            Near cached = near.get(key);
+            if (cached == null) return null;
+            if (cached.expiresAt() <= System.currentTimeMillis()) {
+                near.remove(key);
+                return null;
+            }
+            return cached;
+        }
+    }
+
+    private void remember(String key, String value, long ttlMillis) {
+        store(key, new Near(value, System.currentTimeMillis() + (value == null ? missTtlMillis : ttlMillis)));
+    }
+
+    private void rememberIfUnchanged(String key, Near pending, String value) {
+        synchronized (near) {
+            if (near.get(key) != pending) return;
+            remember(key, value, nearTtlMillis);
+        }
+    }
+
+    private void store(String key, Near entry) {
+        synchronized (near) {
+            near.put(key, entry);
+            Iterator<Near> eldest = near.values().iterator();
+            while (near.size() > maxEntries && eldest.hasNext()) {
+                eldest.next();
+                eldest.remove();
+            }
+        }
     }
 }
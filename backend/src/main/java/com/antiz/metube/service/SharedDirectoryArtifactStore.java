@@ -0,0 +1,218 @@
+package com.antiz.metube.service;
+
+import jakarta.annotation.PostConstruct;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Primary;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.UUID;
+import java.util.stream.Stream;
+
+/**
+ * Artifact store on a directory every instance mounts (NFS, a shared volume), so a video downloaded by
+ * one node can be served by all of them. Each key gets its own subdirectory holding the single published
+ * file, which makes lookups a tiny directory listing instead of a scan. Partial downloads are kept per
+ * node under {@code partial/<node>} on the same file system, so publishing is still an atomic rename.
+ * <p>
+ * There is no shared access log, so eviction is by age: entries past the TTL are removed, and when the
+ * directory grows past its limit the oldest entries go first.
+ */
+@Component
+@Primary
+@ConditionalOnProperty(name = "app.store.type", havingValue = "shared-dir")
+public class SharedDirectoryArtifactStore implements ArtifactStore {
+
+    private static final String PARTIAL_DIR = "partial";
+    private static final String RESUMABLE_PREFIX = "r-";
+    private static final Duration STALE_PARTIAL_AGE = Duration.ofDays(1);
+
+    private final Path root;
+    private final Path partialDir;
+    private final long maxBytes;
+    private final Duration ttl;
+
+    private record Stored(Path dir, Path file, long size, long createdAt) {
+    }
+
+    public SharedDirectoryArtifactStore(@Value("${app.store.shared-dir}") String dir,
+                                        @Value("${app.node-id:}") String nodeId,
+                                        @Value("${app.cache.max-size:5GB}") DataSize maxSize,
+                                        @Value("${app.cache.ttl-hours:6}") long ttlHours) {
+        this.root = Paths.get(dir).toAbsolutePath();
+        String node = nodeId == null || nodeId.isBlank() ? UUID.randomUUID().toString() : nodeId;
+        this.partialDir = root.resolve(PARTIAL_DIR).resolve(node);
+        this.maxBytes = maxSize.toBytes();
+        this.ttl = Duration.ofHours(ttlHours);
+    }
+
+    @PostConstruct
+    void init() throws IOException {
+        Files.createDirectories(partialDir);
+        // Only our own partials: other nodes may be writing theirs right now. Keyed ones are kept for resuming.
+        try (Stream<Path> files = Files.list(partialDir)) {
+            files.filter(file -> !file.getFileName().toString().startsWith(RESUMABLE_PREFIX))
+                    .forEach(this::deleteQuietly);
+        }
+        System.out.println("Shared artifact store ready in " + root);
+    }
+
+    @Override
+    public String lookup(String key) {
+        Path dir = root.resolve(ArtifactCache.encodeKey(key));
+        Path file = publishedFile(dir);
+        if (file == null) return null;
+        try {
+            if (isExpired(Files.getLastModifiedTime(file), System.currentTimeMillis())) {
+                return null;
+            }
+        } catch (IOException e) {
+            return null;
+        }
+        return file.toString();
+    }
+
+    @Override
+    public Path newPartialFile(String extension) {
+        return partialDir.resolve(UUID.randomUUID() + "." + extension);
+    }
+
+    /**
+     * Keyed partials stay in this node's own directory: a node that lost its lease may still be writing
+     * while the new holder starts, and the two must not share working files.
+     */
+    @Override
+    public Path partialFileFor(String key, String extension) {
+        return partialDir.resolve(RESUMABLE_PREFIX + ArtifactCache.sha256(key) + "." + extension);
+    }
+
+    @Override
+    public String publish(String key, Path completed) throws IOException {
+        String encoded = ArtifactCache.encodeKey(key);
+        Path dir = Files.createDirectories(root.resolve(encoded));
+        Path target = dir.resolve(encoded + ArtifactCache.extensionOf(completed));
+
+        Path previous = publishedFile(dir);
+        try {
+            Files.move(completed, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (NoSuchFileException e) {
+            // Another node's sweep removed the directory as empty between our mkdir and the rename.
+            Files.createDirectories(dir);
+            Files.move(completed, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        }
+        if (previous != null && !previous.equals(target)) {
+            deleteQuietly(previous);
+        }
+        return target.toString();
+    }
+
+    @Override
+    public void remove(String key) {
+        Path dir = root.resolve(ArtifactCache.encodeKey(key));
+        Path file = publishedFile(dir);
+        if (file != null) {
+            deleteQuietly(file);
+        }
+        deleteQuietly(dir);
+    }
+
+    @Override
+    public boolean isShared() {
+        return true;
+    }
+
+    /**
+     * Deletes expired entries, then the oldest ones while the store is over its size limit. Every node runs
+     * this; deleting an already deleted file is harmless, and a reader that already opened a file keeps it.
+     */
+    @Scheduled(fixedDelayString = "${app.store.sweep-interval-ms:300000}")
+    public void sweep() {
+        long now = System.currentTimeMillis();
+        List<Stored> live = new ArrayList<>();
+        long total = 0;
+
+        try (DirectoryStream<Path> dirs = Files.newDirectoryStream(root)) {
+            for (Path dir : dirs) {
+                if (!Files.isDirectory(dir) || dir.getFileName().toString().equals(PARTIAL_DIR)) continue;
+                Path file = publishedFile(dir);
+                if (file == null) {
+                    deleteQuietly(dir);
+                    continue;
+                }
+                FileTime modified = Files.getLastModifiedTime(file);
+                if (isExpired(modified, now)) {
+                    deleteQuietly(file);
+                    deleteQuietly(dir);
+                    continue;
+                }
+                long size = Files.size(file);
+                live.add(new Stored(dir, file, size, modified.toMillis()));
+                total += size;
+            }
+        } catch (IOException e) {
+            System.err.println("Shared artifact store sweep failed: " + e.getMessage());
+            return;
+        }
+
+        live.sort(Comparator.comparingLong(Stored::createdAt));
+        Iterator<Stored> oldestFirst = live.iterator();
+        while (total > maxBytes && oldestFirst.hasNext()) {
+            Stored stored = oldestFirst.next();
+            deleteQuietly(stored.file());
+            deleteQuietly(stored.dir());
+            total -= stored.size();
+        }
+
+        sweepStalePartials(now);
+    }
+
+    // Partials left behind by nodes that crashed or were scaled away.
+    private void sweepStalePartials(long now) {
+        try (Stream<Path> files = Files.walk(root.resolve(PARTIAL_DIR), 2)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                if (Files.isRegularFile(file)
+                        && now - Files.getLastModifiedTime(file).toMillis() > STALE_PARTIAL_AGE.toMillis()) {
+                    deleteQuietly(file);
+                }
+            }
+        } catch (IOException | UncheckedIOException e) {
+            System.err.println("Shared artifact store partial sweep failed: " + e.getMessage());
+        }
+    }
+
+    private boolean isExpired(FileTime modified, long now) {
+        return modified.toMillis() + ttl.toMillis() <= now;
+    }
+
+    private Path publishedFile(Path dir) {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+            for (Path file : files) {
+                if (Files.isRegularFile(file)) return file;
+            }
+        } catch (IOException e) {
+            // Missing directory: nothing published under this key.
+        }
+        return null;
+    }
+
+    private void deleteQuietly(Path path) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (DirectoryNotEmptyException e) {
+            // A node published into this directory while we were sweeping it; leave it.
+        } catch (IOException e) {
+            System.err.println("Failed to delete shared artifact " + path + ": " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package com.antiz.metube.service;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Gate in front of every request that talks to YouTube. A token bucket caps how fast requests start, and a
+ * circuit breaker stops them entirely after a burst of "too many requests" or bot-check failures: hammering
+ * YouTube at that point only extends the throttling and burns the reputation of our IP and cookies.
+ * <p>
+ * While the breaker is open every fetch fails fast with a 503, so only cached videos can be served. When
+ * the open period ends a single probe run is let through; success closes the breaker, another throttling
+ * failure opens it again for twice as long (up to a maximum).
+ */
+@Component
+public class UpstreamGuard {
+
+    public enum State { CLOSED, OPEN, HALF_OPEN }
+
+    private final double tokensPerNano;
+    private final double burst;
+    private final long maxWaitNanos;
+    private final int tripThreshold;
+    private final long tripWindowNanos;
+    private final long baseOpenNanos;
+    private final long maxOpenNanos;
+    private final long probeTimeoutNanos;
+    private final LongSupplier nanoClock;
+
+    private double tokens;
+    private long refilledAt;
+
+    private State state = State.CLOSED;
+    private final Deque<Long> pushbacks = new ArrayDeque<>();
+    private long openNanos;
+    private long openUntil;
+    private long probeStartedAt;
+    private boolean probeInFlight;
+
+    @Autowired
+    public UpstreamGuard(@Value("${app.upstream.rate-per-minute:30}") double ratePerMinute,
+                         @Value("${app.upstream.burst:10}") int burst,
+                         @Value("${app.upstream.max-wait-seconds:20}") long maxWaitSeconds,
+                         @Value("${app.upstream.breaker.failures:5}") int tripThreshold,
+                         @Value("${app.upstream.breaker.window-seconds:60}") long tripWindowSeconds,
+                         @Value("${app.upstream.breaker.open-seconds:120}") long openSeconds,
+                         @Value("${app.upstream.breaker.max-open-seconds:900}") long maxOpenSeconds) {
+        this(ratePerMinute, burst, maxWaitSeconds, tripThreshold, tripWindowSeconds, openSeconds, maxOpenSeconds,
+                System::nanoTime);
+    }
+
+    // Package-private so tests can drive the clock.
+    UpstreamGuard(double ratePerMinute, int burst, long maxWaitSeconds, int tripThreshold, long tripWindowSeconds,
+                  long openSeconds, long maxOpenSeconds, LongSupplier nanoClock) {
+        this.nanoClock = nanoClock;
+        this.tokensPerNano = Math.max(0.001, ratePerMinute) / TimeUnit.MINUTES.toNanos(1);
+        this.burst = Math.max(1, burst);
+        this.maxWaitNanos = TimeUnit.SECONDS.toNanos(Math.max(0, maxWaitSeconds));
+        this.tripThreshold = Math.max(1, tripThreshold);
+        this.tripWindowNanos = TimeUnit.SECONDS.toNanos(Math.max(1, tripWindowSeconds));
+        this.baseOpenNanos = TimeUnit.SECONDS.toNanos(Math.max(1, openSeconds));
+        this.maxOpenNanos = Math.max(baseOpenNanos, TimeUnit.SECONDS.toNanos(maxOpenSeconds));
+        this.probeTimeoutNanos = TimeUnit.MINUTES.toNanos(5);
+        this.tokens = this.burst;
+        this.refilledAt = nanoClock.getAsLong();
+        this.openNanos = baseOpenNanos;
+    }
+
+    /**
+     * Waits for permission to start one upstream request, before it takes a scheduler slot: the player
+     * client and egress fallbacks inside it share this one token. Throws a 503 with Retry-After when the
+     * breaker is open or the wait for a token would be longer than the configured maximum.
+     */
+    public void acquire() throws InterruptedException {
+        long waitNanos;
+        synchronized (this) {
+            long now = nanoClock.getAsLong();
+            admit(now);
+
+            refill(now);
+            double deficit = 1 - tokens;
+            if (deficit > 0 && deficit / tokensPerNano > maxWaitNanos) {
+                throw new DownloadException("Server is pacing requests to YouTube. Please retry shortly.",
+                        503, Math.max(1, TimeUnit.NANOSECONDS.toSeconds((long) (deficit / tokensPerNano))));
+            }
+            // Taking the token now reserves our place; a negative balance is the queue of reserved waits.
+            tokens -= 1;
+            waitNanos = tokens >= 0 ? 0 : (long) (-tokens / tokensPerNano);
+        }
+        if (waitNanos > 0) {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        }
+    }
+
+    /**
+     * Checks the breaker before each yt-dlp run of a request that already holds a token, so a request
+     * stops falling back once the breaker has opened. Takes no token and never waits.
+     */
+    public synchronized void checkOpen() {
+        long now = nanoClock.getAsLong();
+        if (state == State.OPEN && now - openUntil < 0) {
+            throw rejected(openUntil - now);
+        }
+    }
+
+    /**
+     * Feeds the outcome of an upstream run into the breaker. Null means the run succeeded. Callers only pass
+     * pushback that spans the whole egress pool; one throttled proxy is for {@link EgressPool} to route around.
+     */
+    public synchronized void record(FailureCategory failure) {
+        long now = nanoClock.getAsLong();
+        boolean pushback = failure != null && failure.isPushback();
+
+        if (state == State.HALF_OPEN && probeInFlight) {
+            probeInFlight = false;
+            if (pushback) {
+                open(now, Math.min(maxOpenNanos, openNanos * 2));
+            } else {
+                state = State.CLOSED;
+                openNanos = baseOpenNanos;
+                pushbacks.clear();
+                System.out.println("Upstream circuit closed: probe succeeded");
+            }
+            return;
+        }
+
+        if (!pushback || state != State.CLOSED) return;
+        pushbacks.addLast(now);
+        while (!pushbacks.isEmpty() && now - pushbacks.peekFirst() > tripWindowNanos) {
+            pushbacks.removeFirst();
+        }
+        if (pushbacks.size() >= tripThreshold) {
+            open(now, openNanos);
+        }
+    }
+
+    public synchronized State state() {
+        return state;
+    }
+
+    // Caller holds the lock. Lets the run through, turns it into the half-open probe, or rejects it.
+    private void admit(long now) {
+        if (state == State.OPEN && now - openUntil >= 0) {
+            state = State.HALF_OPEN;
+            probeInFlight = false;
+        }
+        if (state == State.HALF_OPEN) {
+            // A probe whose outcome never came back (the run threw before reporting) mustn't block forever.
+            if (!probeInFlight || now - probeStartedAt > probeTimeoutNanos) {
+                probeInFlight = true;
+                probeStartedAt = now;
+                return;
+            }
+            throw rejected(TimeUnit.SECONDS.toNanos(10));
+        }
+        if (state == State.OPEN) {
+            throw rejected(openUntil - now);
+        }
+    }
+
+    private void open(long now, long duration) {
+        state = State.OPEN;
+        openNanos = duration;
+        openUntil = now + duration;
+        pushbacks.clear();
+        System.err.println("Upstream circuit opened for " + TimeUnit.NANOSECONDS.toSeconds(duration)
+                + "s after repeated throttling or bot checks; serving cached videos only");
+    }
+
+    private DownloadException rejected(long retryAfterNanos) {
+        return new DownloadException(
+                "YouTube is rate-limiting this server, so only already cached videos are available right now.",
+                503, Math.max(1, TimeUnit.NANOSECONDS.toSeconds(retryAfterNanos)));
+    }
+
+    private void refill(long now) {
+        tokens = Math.min(burst, tokens + (now - refilledAt) * tokensPerNano);
+        refilledAt = now;
+    }
+}
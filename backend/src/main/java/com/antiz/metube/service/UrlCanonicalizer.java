@@ -0,0 +1,108 @@
+package com.antiz.metube.service;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.Locale;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Reduces the many spellings of a YouTube link (youtu.be, m., music., /shorts/, /embed/, extra query
+ * parameters) to the video id, so they share cache entries and in-flight downloads.
+ */
+public final class UrlCanonicalizer {
+
+    private static final Pattern VIDEO_ID = Pattern.compile("[A-Za-z0-9_-]{11}");
+    private static final Pattern PLAYLIST_ID = Pattern.compile("[A-Za-z0-9_-]{2,64}");
+    private static final Set<String> YOUTUBE_HOSTS = Set.of(
+            "youtube.com", "m.youtube.com", "music.youtube.com", "youtube-nocookie.com");
+    private static final Set<String> ID_PATH_PREFIXES = Set.of("shorts", "embed", "live", "v", "e");
+
+    private UrlCanonicalizer() {
+    }
+
+    /**
+     * Returns the 11-character video id, or null if {@code url} is not a recognisable YouTube video link.
+     */
+    public static String videoId(String url) {
+        URI uri = parse(url);
+        if (uri == null) return null;
+        String host = hostOf(uri);
+
+        String[] segments = uri.getPath() == null ? new String[0] : uri.getPath().split("/");
+
+        if (host.equals("youtu.be")) {
+            return segments.length > 1 ? validId(segments[1]) : null;
+        }
+        if (!YOUTUBE_HOSTS.contains(host)) return null;
+
+        if (segments.length > 1 && segments[1].equals("watch")) {
+            return validId(queryParam(uri.getRawQuery(), "v"));
+        }
+        if (segments.length > 2 && ID_PATH_PREFIXES.contains(segments[1])) {
+            return validId(segments[2]);
+        }
+        return null;
+    }
+
+    /**
+     * Canonical watch URL for YouTube links; other URLs are returned trimmed and otherwise untouched.
+     */
+    public static String canonicalUrl(String url) {
+        String id = videoId(url);
+        return id == null ? url.trim() : "https://www.youtube.com/watch?v=" + id;
+    }
+
+    /**
+     * Stable identity used in cache keys: "yt:&lt;id&gt;" for YouTube videos, the trimmed URL otherwise.
+     */
+    public static String cacheIdentity(String url) {
+        String id = videoId(url);
+        return id == null ? url.trim() : "yt:" + id;
+    }
+
+    /**
+     * Returns the list id of a playlist link such as youtube.com/playlist?list=..., or null. A watch link that
+     * also carries a list parameter is treated as the single video, matching the rest of the API.
+     */
+    public static String playlistId(String url) {
+        URI uri = parse(url);
+        if (uri == null || !YOUTUBE_HOSTS.contains(hostOf(uri)) || videoId(url) != null) return null;
+        String list = queryParam(uri.getRawQuery(), "list");
+        return list != null && PLAYLIST_ID.matcher(list).matches() ? list : null;
+    }
+
+    private static URI parse(String url) {
+        if (url == null) return null;
+        String trimmed = url.trim();
+        if (!trimmed.contains("://")) {
+            trimmed = "https://" + trimmed;
+        }
+        try {
+            URI uri = new URI(trimmed);
+            return uri.getHost() == null ? null : uri;
+        } catch (URISyntaxException e) {
+            return null;
+        }
+    }
+
+    private static String hostOf(URI uri) {
+        String host = uri.getHost().toLowerCase(Locale.ROOT);
+        return host.startsWith("www.") ? host.substring(4) : host;
+    }
+
+    private static String queryParam(String rawQuery, String name) {
+        if (rawQuery == null) return null;
+        for (String pair : rawQuery.split("&")) {
+            int eq = pair.indexOf('=');
+            if (eq > 0 && pair.substring(0, eq).equals(name)) {
+                return pair.substring(eq + 1);
+            }
+        }
+        return null;
+    }
+
+    private static String validId(String candidate) {
+        return candidate != null && VIDEO_ID.matcher(candidate).matches() ? candidate : null;
+    }
+}
@@ -0,0 +1,181 @@
+package com.antiz.metube.service;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Builds a requested variant from a larger one that is already in the artifact cache, so an mp3 or a
+ * lower resolution of a video we already hold doesn't need another trip to YouTube. Audio is extracted
+ * from any cached mp4 (or re-encoded from a best-quality mp3), and video is copied from a cached mp4 when
+ * the probe shows both qualities resolve to the same stream. Anything that would mean re-encoding video
+ * is downloaded instead: scaling with libx264 costs more CPU time than the download saves.
+ */
+@Component
+public class VariantDeriver {
+
+    private static final long DERIVE_TIMEOUT_MINUTES = 10;
+
+    private final ArtifactStore artifactStore;
+    private final FormatProbeCache formatProbeCache;
+    private final ProcessStreams processStreams;
+    private final DownloadMetrics downloadMetrics;
+    private final boolean enabled;
+
+    public record Source(String key, String path, String format, Quality quality) {
+    }
+
+    public VariantDeriver(ArtifactStore artifactStore, FormatProbeCache formatProbeCache,
+                          ProcessStreams processStreams, DownloadMetrics downloadMetrics,
+                          @Value("${app.derive.enabled:true}") boolean enabled) {
+        this.artifactStore = artifactStore;
+        this.formatProbeCache = formatProbeCache;
+        this.processStreams = processStreams;
+        this.downloadMetrics = downloadMetrics;
+        this.enabled = enabled;
+    }
+
+    /**
+     * Returns a cached artifact of the same video that {@code format}/{@code quality} can be produced from
+     * without re-encoding video, cheapest to read first, or null.
+     */
+    public Source findSource(String url, String format, Quality quality) {
+        if (!enabled) return null;
+
+        for (Source candidate : candidates(format, quality)) {
+            if (format.equals("mp4") && !sameVideoStream(url, candidate.quality(), quality)) continue;
+            String key = YoutubeDownloadService.artifactKey(UrlCanonicalizer.cacheIdentity(url),
+                    candidate.format(), candidate.quality());
+            // Only looking: a source we end up not using mustn't look popular to eviction.
+            String path = artifactStore.peek(key);
+            if (path != null) {
+                return new Source(key, path, candidate.format(), candidate.quality());
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Runs ffmpeg on {@code source} and returns the path of the new file in the cache's partial directory.
+     */
+    public String derive(Source source, String format, Quality quality, String ffmpegPath,
+                         Consumer<DownloadProgress> progress) throws IOException, InterruptedException {
+        Path output = artifactStore.newPartialFile(format);
+        List<String> command = buildCommand(source, format, quality, ffmpegPath, output);
+        System.out.println("Deriving " + format + " " + quality.label() + " locally from " + source.key());
+        progress.accept(DownloadProgress.phase(DownloadProgress.CONVERTING));
+
+        long started = System.nanoTime();
+        Process process;
+        try {
+            process = processStreams.start(new ProcessBuilder(command)
+                    .redirectOutput(ProcessBuilder.Redirect.DISCARD));
+        } catch (IOException e) {
+            throw new DownloadException("ffmpeg is not available for local conversion.", 500);
+        }
+        ProcessStreams.Capture stderr = processStreams.drainStderr(process, "ffmpeg err: ");
+
+        boolean finished = process.waitFor(DERIVE_TIMEOUT_MINUTES, TimeUnit.MINUTES);
+        if (!finished) {
+            process.destroyForcibly();
+        }
+        stderr.await();
+
+        boolean success = finished && process.exitValue() == 0 && Files.size(output) > 0;
+        downloadMetrics.phase(DownloadMetrics.PHASE_DERIVE, System.nanoTime() - started, success);
+        if (!success) {
+            Files.deleteIfExists(output);
+            throw new DownloadException(finished
+                    ? "ffmpeg failed (exit " + process.exitValue() + "): " + stderr
+                    : "ffmpeg timed out converting " + source.key(), 500);
+        }
+        return output.toString();
+    }
+
+    private static List<Source> candidates(String format, Quality quality) {
+        List<Source> candidates = new ArrayList<>();
+        if (format.equals("mp3")) {
+            if (quality != Quality.BEST) {
+                candidates.add(new Source(null, null, "mp3", Quality.BEST));
+            }
+            // Every mp4 carries the same best audio stream, so the smallest one is the cheapest to read.
+            for (Quality video : videoQualitiesAscending()) {
+                candidates.add(new Source(null, null, "mp4", video));
+            }
+            return candidates;
+        }
+
+        // Any other quality qualifies if it resolved to the same stream, smaller or not.
+        for (Quality video : videoQualitiesAscending()) {
+            if (video != quality) {
+                candidates.add(new Source(null, null, "mp4", video));
+            }
+        }
+        return candidates;
+    }
+
+    // Height-capped qualities from smallest to largest, then uncapped.
+    private static List<Quality> videoQualitiesAscending() {
+        List<Quality> qualities = new ArrayList<>();
+        for (Quality quality : Quality.values()) {
+            if (quality.maxHeight() > 0) qualities.add(quality);
+        }
+        qualities.add(Quality.BEST);
+        return qualities;
+    }
+
+    private List<String> buildCommand(Source source, String format, Quality quality, String ffmpegPath,
+                                      Path output) {
+        List<String> args = new ArrayList<>();
+        args.add(ffmpegPath);
+        args.add("-hide_banner");
+        args.add("-nostdin");
+        args.add("-loglevel");
+        args.add("error");
+        args.add("-y");
+        args.add("-i");
+        args.add(source.path());
+        args.add("-map_metadata");
+        args.add("0");
+
+        if (format.equals("mp3")) {
+            args.add("-vn");
+            args.add("-c:a");
+            args.add("libmp3lame");
+            String bitrate = quality.audioBitrate();
+            if (bitrate.equals("0")) {
+                args.add("-q:a");
+                args.add("0");
+            } else {
+                args.add("-b:a");
+                args.add(bitrate.toLowerCase(Locale.ROOT));
+            }
+        } else {
+            args.add("-c");
+            args.add("copy");
+            args.add("-movflags");
+            args.add("+faststart");
+        }
+
+        args.add(output.toString());
+        return args;
+    }
+
+    // A 1080p request for a video that tops out at 720p downloads the same stream as a 720p request.
+    private boolean sameVideoStream(String url, Quality sourceQuality, Quality requested) {
+        String videoId = UrlCanonicalizer.videoId(url);
+        VideoFormats probed = videoId == null ? null : formatProbeCache.peek(videoId);
+        if (probed == null) return false;
+        String sourceFormat = probed.videoFormatFor(sourceQuality);
+        return sourceFormat != null && Objects.equals(sourceFormat, probed.videoFormatFor(requested));
+    }
+}
@@ -1,29 +0,0 @@
-package com.antiz.metube.service;
-
-import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
-import org.springframework.data.redis.core.RedisTemplate;
-import org.springframework.stereotype.Service;
-import java.util.concurrent.TimeUnit;
-
-@Service
-@ConditionalOnProperty(name = "app.redis.enabled", havingValue = "true")
-public class VideoCacheService {
-
-    private final RedisTemplate<String, Object> redisTemplate;
-
-    public VideoCacheService(RedisTemplate<String, Object> redisTemplate) {
-        this.redisTemplate = redisTemplate;
-    }
-
-    public void save(String key, Object value, long ttlMinutes) {
-        redisTemplate.opsForValue().set(key, value, ttlMinutes, TimeUnit.MINUTES);
-    }
-
-    public Object get(String key) {
-        return redisTemplate.opsForValue().get(key);
-    }
-
-    public void delete(String key) {
-        redisTemplate.delete(key);
-    }
-}
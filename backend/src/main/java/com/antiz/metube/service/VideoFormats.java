@@ -0,0 +1,92 @@
+package com.antiz.metube.service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * The formats yt-dlp reports for one video, trimmed down from its {@code -J} info JSON. Format ids are
+ * only valid for the player client that produced them; other clients list different ids.
+ */
+public record VideoFormats(String videoId, String title, Long durationSeconds, List<Format> formats,
+                           List<String> qualities, String playerClient) {
+
+    public record Format(String formatId, String ext, Integer height, Double fps, String vcodec, String acodec,
+                        Long filesize, Double tbr) {
+
+        boolean hasVideo() {
+            return vcodec != null && !vcodec.equals("none");
+        }
+
+        boolean hasAudio() {
+            return acodec != null && !acodec.equals("none");
+        }
+    }
+
+    public static VideoFormats fromInfoJson(JsonNode info, String playerClient) {
+        List<Format> formats = new ArrayList<>();
+        for (JsonNode node : info.path("formats")) {
+            String protocol = node.path("protocol").asText("");
+            // Storyboards and manifests are not downloadable media.
+            if (node.path("format_note").asText("").equals("storyboard") || protocol.startsWith("mhtml")) continue;
+            formats.add(new Format(
+                    node.path("format_id").asText(),
+                    textOrNull(node, "ext"),
+                    node.hasNonNull("height") ? node.get("height").asInt() : null,
+                    node.hasNonNull("fps") ? node.get("fps").asDouble() : null,
+                    textOrNull(node, "vcodec"),
+                    textOrNull(node, "acodec"),
+                    node.hasNonNull("filesize") ? node.get("filesize").asLong()
+                            : node.hasNonNull("filesize_approx") ? node.get("filesize_approx").asLong() : null,
+                    node.hasNonNull("tbr") ? node.get("tbr").asDouble() : null
+            ));
+        }
+
+        List<String> qualities = new ArrayList<>();
+        qualities.add(Quality.BEST.label());
+        for (Quality quality : Quality.values()) {
+            if (quality.maxHeight() == 0) continue;
+            boolean available = formats.stream()
+                    .anyMatch(f -> f.hasVideo() && f.height() != null && f.height() >= quality.maxHeight());
+            if (available) qualities.add(quality.label());
+        }
+
+        return new VideoFormats(
+                textOrNull(info, "id"),
+                textOrNull(info, "title"),
+                info.hasNonNull("duration") ? info.get("duration").asLong() : null,
+                formats,
+                qualities,
+                playerClient
+        );
+    }
+
+    /**
+     * The exact video format id to request for {@code quality}: the tallest video stream within the cap
+     * (highest bitrate on ties), or the smallest one if every stream is above the cap. Null if none is known.
+     */
+    public String videoFormatFor(Quality quality) {
+        Comparator<Format> byHeightThenBitrate = Comparator
+                .comparing((Format f) -> f.height())
+                .thenComparing(f -> f.tbr() == null ? 0.0 : f.tbr());
+
+        List<Format> video = formats.stream()
+                .filter(f -> f.hasVideo() && f.height() != null)
+                .toList();
+        if (video.isEmpty()) return null;
+
+        int cap = quality.maxHeight();
+        return video.stream()
+                .filter(f -> cap == 0 || f.height() <= cap)
+                .max(byHeightThenBitrate)
+                .or(() -> video.stream().min(byHeightThenBitrate))
+                .map(Format::formatId)
+                .orElse(null);
+    }
+
+    private static String textOrNull(JsonNode node, String field) {
+        return node.hasNonNull(field) ? node.get(field).asText() : null;
+    }
+}
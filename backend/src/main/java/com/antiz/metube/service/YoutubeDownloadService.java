@@ -1,20 +1,37 @@
 package com.antiz.metube.service;
 
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.*;
 import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.util.ArrayList;
-import java.util.Base64;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
-import java.util.UUID;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
 
 @Service
 public class YoutubeDownloadService {
@@ -25,85 +42,367 @@ public class YoutubeDownloadService {
     private static final String FALLBACK_FFMPEG = "ffmpeg";
     private static final long CACHE_TTL_HOURS = 6;
 
-    private static final Path COOKIES_PATH = Paths.get("/tmp/yt_cookies.txt");
-    private static final String COOKIE_ENV = "YTDLP_COOKIES_B64";
-    private static final String PROXY_ENV = "YTDLP_PROXY";
     private static final String GEO_COUNTRY_ENV = "YTDLP_GEO_BYPASS_COUNTRY";
     private static final String FORCE_IPV4_ENV = "YTDLP_FORCE_IPV4";
-    private static final long YTDLP_TIMEOUT_SECONDS = 180;
+    private static final long PROBE_TIMEOUT_SECONDS = 180;
+    // FailureCategory recognises stalls by this text.
+    private static final String STALL_MESSAGE =
+            "Download stalled on server. Progress was kept, so retrying will resume where it stopped.";
+    // Retries on another proxy or cookie file per request, on top of the player-client fallback.
+    private static final int MAX_EGRESS_SWITCHES = 2;
 
-    @Autowired(required = false)
-    private StringRedisTemplate redisTemplate;
+    private static final String SENDFILE_SUPPORT_ATTR = "org.apache.tomcat.sendfile.support";
+    private static final String SENDFILE_FILENAME_ATTR = "org.apache.tomcat.sendfile.filename";
+    private static final String SENDFILE_START_ATTR = "org.apache.tomcat.sendfile.start";
+    private static final String SENDFILE_END_ATTR = "org.apache.tomcat.sendfile.end";
 
-    @Value("${app.redis.enabled:false}")
-    private boolean redisEnabled;
+    @Autowired
+    private DownloadScheduler downloadScheduler;
 
-    public YoutubeDownloadService() {
-        writeCookiesIfPresent();
-    }
+    @Autowired
+    private ArtifactStore artifactStore;
 
-    private void writeCookiesIfPresent() {
-        try {
-            String b64 = System.getenv(COOKIE_ENV);
-            if (b64 == null || b64.isBlank()) return;
+    @Autowired
+    private FormatProbeCache formatProbeCache;
+
+    @Autowired
+    private RedisCacheService redisCache;
+
+    @Autowired
+    private PlayerClientSelector playerClientSelector;
+
+    @Autowired
+    private DownloadMetrics downloadMetrics;
+
+    @Autowired
+    private ProcessStreams processStreams;
+
+    @Autowired
+    private VariantDeriver variantDeriver;
+
+    @Autowired
+    private DownloadLease downloadLease;
+
+    @Autowired
+    private PopularityTracker popularityTracker;
 
-            byte[] decoded = Base64.getDecoder().decode(b64);
-            Files.write(COOKIES_PATH, decoded, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
-            COOKIES_PATH.toFile().setReadable(true, true);
+    @Autowired
+    private DownloadWatchdog downloadWatchdog;
 
-            System.out.println("Loaded YouTube cookies into /tmp/yt_cookies.txt");
+    @Autowired
+    private FragmentTuner fragmentTuner;
 
-        } catch (Exception e) {
-            System.err.println("Failed to load cookies: " + e.getMessage());
+    @Autowired
+    private UpstreamGuard upstreamGuard;
+
+    @Autowired
+    private EgressPool egressPool;
+
+    @Autowired
+    private HlsPackager hlsPackager;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    // Downloads currently running, keyed by cache key, so identical concurrent requests share one yt-dlp run.
+    private final ConcurrentMap<String, InFlightDownload> inFlight = new ConcurrentHashMap<>();
+
+    public void handleVideoRequest(String url, String format, String quality, boolean progressive,
+                                   HttpServletRequest request, HttpServletResponse response)
+            throws IOException, InterruptedException {
+        if (url == null || url.isBlank()) {
+            throw new DownloadException("Missing YouTube URL", 400);
         }
+
+        String normalizedFormat = normalizeFormat(format);
+        Quality normalizedQuality = Quality.parse(quality).effectiveFor(normalizedFormat);
+        String canonicalUrl = UrlCanonicalizer.canonicalUrl(url);
+        String cacheKey = cacheKeyFor(url, normalizedFormat, normalizedQuality);
+
+        // Audio extraction and video+audio merges need the whole file on disk, so only progressive mp4 is piped.
+        if (progressive && normalizedFormat.equals("mp4")) {
+            chargeUnlessCached(request, cacheKey + ":progressive");
+            AtomicBoolean piped = new AtomicBoolean(false);
+            String filePath = resolveArtifact(cacheKey + ":progressive", normalizedFormat, normalizedQuality,
+                    false, progress -> {}, progress -> {
+                        piped.set(true);
+                        return pipeVideo(canonicalUrl, normalizedQuality, response);
+                    });
+            if (!piped.get()) {
+                streamFromFile(filePath, normalizedFormat, request, response);
+            }
+            return;
+        }
+
+        chargeUnlessCached(request, cacheKey);
+        String filePath = prepareArtifact(url, normalizedFormat, quality, progress -> {});
+        streamFromFile(filePath, normalizedFormat, request, response);
     }
 
-    public void handleVideoRequest(String url, String format, String quality, HttpServletResponse response)
+    // Only a request that has to fetch counts against the client's throttle. An entry evicted right after
+    // the peek gets downloaded uncharged, which is rare and harmless.
+    private void chargeUnlessCached(HttpServletRequest request, String cacheKey) {
+        if (artifactStore.peek(cacheKey) == null) {
+            ClientThrottle.charge(request);
+        }
+    }
+
+    /**
+     * Makes sure the requested artifact exists locally and returns its path, reporting progress along the way.
+     * Used by the asynchronous job API, which serves the file in a later request.
+     */
+    public String prepareArtifact(String url, String format, String quality, Consumer<DownloadProgress> listener)
             throws IOException, InterruptedException {
         if (url == null || url.isBlank()) {
             throw new DownloadException("Missing YouTube URL", 400);
         }
 
         String normalizedFormat = normalizeFormat(format);
-        String normalizedQuality = normalizeQuality(quality);
-        String cacheKey = "video:" + url + ":" + normalizedFormat + ":" + normalizedQuality;
-        String cachedPath = getCachedPath(cacheKey);
+        Quality normalizedQuality = Quality.parse(quality).effectiveFor(normalizedFormat);
+        String canonicalUrl = UrlCanonicalizer.canonicalUrl(url);
+        String cacheKey = cacheKeyFor(url, normalizedFormat, normalizedQuality);
 
-        if (cachedPath != null && Files.exists(Paths.get(cachedPath))) {
-            streamFromFile(cachedPath, normalizedFormat, response);
-            return;
+        return resolveArtifact(cacheKey, normalizedFormat, normalizedQuality, true, listener,
+                progress -> deriveOrDownload(cacheKey, canonicalUrl, normalizedFormat, normalizedQuality, progress));
+    }
+
+    /**
+     * Lists the formats available for a video using yt-dlp's info extraction, cached per video id.
+     */
+    public VideoFormats probeFormats(String url) throws IOException, InterruptedException {
+        String videoId = UrlCanonicalizer.videoId(url);
+        if (videoId == null) {
+            throw new DownloadException("Unsupported or invalid YouTube URL.", 400);
+        }
+        String canonicalUrl = UrlCanonicalizer.canonicalUrl(url);
+        return formatProbeCache.get(videoId, () -> runProbe(canonicalUrl));
+    }
+
+    /**
+     * Starts HLS packaging of a video, or joins the session already packaging it, and returns the session
+     * id. Segments are served by {@link HlsPackager#serve} as ffmpeg writes them. {@code clientSlot} is
+     * held while the session this call started is packaging, and closed right away otherwise.
+     */
+    public String startHls(String url, String quality, ClientThrottle.Slot clientSlot)
+            throws IOException, InterruptedException {
+        if (UrlCanonicalizer.videoId(url) == null) {
+            clientSlot.close();
+            throw new DownloadException("Unsupported or invalid YouTube URL.", 400);
+        }
+        Quality normalizedQuality = Quality.parse(quality).effectiveFor("mp4");
+        String canonicalUrl = UrlCanonicalizer.canonicalUrl(url);
+        String sessionKey = artifactKey(UrlCanonicalizer.cacheIdentity(url), "hls", normalizedQuality);
+        return hlsPackager.open(sessionKey, () -> resolveHlsSource(canonicalUrl, normalizedQuality),
+                resolveFfmpegPath(), clientSlot);
+    }
+
+    /**
+     * Lists up to {@code limit} videos of a playlist without resolving their formats.
+     */
+    public List<PlaylistEntry> expandPlaylist(String url, int limit) throws IOException, InterruptedException {
+        String playlistId = UrlCanonicalizer.playlistId(url);
+        if (playlistId == null) {
+            throw new DownloadException("Unsupported or invalid YouTube playlist URL.", 400);
+        }
+        // --yes-playlist comes after the base command's --no-playlist and overrides it.
+        JsonNode info = runInfoJson("https://www.youtube.com/playlist?list=" + playlistId,
+                List.of("--flat-playlist", "--yes-playlist", "--playlist-end", String.valueOf(limit)));
+
+        List<PlaylistEntry> entries = new ArrayList<>();
+        for (JsonNode entry : info.path("entries")) {
+            String videoId = entry.path("id").asText(null);
+            if (videoId == null || entries.size() >= limit) continue;
+            entries.add(new PlaylistEntry(videoId, entry.path("title").asText(videoId)));
         }
+        return entries;
+    }
 
-        String filePath = downloadVideo(url, normalizedFormat, normalizedQuality);
-        putCachedPath(cacheKey, filePath);
-        streamFromFile(filePath, normalizedFormat, response);
+    /**
+     * Downloads a fresh copy of a cached artifact at low priority and republishes it under the same key.
+     * Returns false for keys that can't be rebuilt from a video id, including progressive variants.
+     */
+    public boolean refreshArtifact(String cacheKey) throws IOException, InterruptedException {
+        String prefix = "video:yt:";
+        if (!cacheKey.startsWith(prefix)) return false;
+        String[] parts = cacheKey.substring(prefix.length()).split(":");
+        if (parts.length != 3) return false;
+
+        String url = "https://www.youtube.com/watch?v=" + parts[0];
+        String format = parts[1];
+        Quality quality = Quality.parse(parts[2]);
+        upstreamGuard.acquire();
+        // A random partial name: a user download of the same key may be resuming the keyed one right now.
+        String downloaded = downloadScheduler.run(DownloadScheduler.Priority.LOW,
+                () -> downloadVideo(url, format, quality, artifactStore.newPartialFile(format), progress -> {}));
+        putCachedPath(cacheKey, artifactStore.publish(cacheKey, Paths.get(downloaded)));
+        return true;
     }
 
-    private String downloadVideo(String url, String format, String quality)
+    public void serveArtifact(String filePath, String format, HttpServletRequest request,
+                              HttpServletResponse response) throws IOException {
+        streamFromFile(filePath, normalizeFormat(format), request, response);
+    }
+
+    // A download that isn't retryable has already sent its bytes somewhere, as a progressive pipe does.
+    private String resolveArtifact(String cacheKey, String format, Quality quality, boolean retryable,
+                                   Consumer<DownloadProgress> listener, ArtifactDownload download)
             throws IOException, InterruptedException {
+        popularityTracker.record(cacheKey);
+        String cachedPath = getCachedPath(cacheKey);
+        if (cachedPath != null) {
+            return cachedPath;
+        }
+
+        InFlightDownload flight = new InFlightDownload();
+        InFlightDownload running = inFlight.putIfAbsent(cacheKey, flight);
+        if (running != null) {
+            running.subscribe(listener);
+            return awaitInFlight(running.result);
+        }
+        flight.subscribe(listener);
 
-        String videoId = UUID.randomUUID().toString();
-        String outputFile = "/tmp/" + videoId + "." + format;
+        try {
+            // A previous leader may have published between our cache check and registering as in-flight.
+            String published = artifactStore.lookup(cacheKey);
+            if (published != null) {
+                flight.result.complete(published);
+                return published;
+            }
+
+            while (true) {
+                // Other instances sharing the artifact store may be downloading the same key already.
+                DownloadLease.Claim claim = downloadLease.claim(cacheKey, () -> artifactStore.lookup(cacheKey),
+                        () -> flight.publish(DownloadProgress.phase(DownloadProgress.WAITING_REMOTE)));
+                if (claim.publishedPath() != null) {
+                    flight.result.complete(claim.publishedPath());
+                    return claim.publishedPath();
+                }
 
-        String qualityArg = selectFormat(quality, format);
-        List<List<String>> commands = buildCommandVariants(url, format, qualityArg, quality, outputFile);
+                try {
+                    // Before the slot: waiting for a token mustn't keep a slot from downloads that have one.
+                    upstreamGuard.acquire();
+                    String downloaded = downloadScheduler.run(priorityFor(format, quality),
+                            position -> flight.publish(DownloadProgress.queued(position)),
+                            () -> download.run(flight::publish));
+                    if (!downloadLease.isCurrent(claim.lease())) {
+                        // We stalled and lost the lease; the newer holder publishes instead.
+                        Files.deleteIfExists(Paths.get(downloaded));
+                        if (!retryable) {
+                            // Our own response is complete; only joiners still need a file, so send them back.
+                            flight.result.completeExceptionally(new DownloadException(
+                                    "Download was taken over by another server. Please retry shortly.", 503, 5));
+                            return downloaded;
+                        }
+                        continue;
+                    }
+                    String filePath = artifactStore.publish(cacheKey, Paths.get(downloaded));
+                    putCachedPath(cacheKey, filePath);
+                    flight.result.complete(filePath);
+                    return filePath;
+                } finally {
+                    downloadLease.release(claim.lease());
+                }
+            }
+        } catch (IOException | InterruptedException | RuntimeException e) {
+            flight.result.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(cacheKey, flight);
+        }
+    }
+
+    private String awaitInFlight(CompletableFuture<String> running) throws IOException, InterruptedException {
+        try {
+            return running.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof DownloadException downloadException) throw downloadException;
+            if (cause instanceof IOException ioException) throw ioException;
+            throw new DownloadException("Download failed. Please try a different video or quality.", 502);
+        }
+    }
+
+    // Converting a cached superset locally is far cheaper than another upstream fetch, and can't hit a bot check.
+    private String deriveOrDownload(String cacheKey, String url, String format, Quality quality,
+                                    Consumer<DownloadProgress> progress) throws IOException, InterruptedException {
+        VariantDeriver.Source source = variantDeriver.findSource(url, format, quality);
+        if (source != null) {
+            try {
+                return variantDeriver.derive(source, format, quality, resolveFfmpegPath(), progress);
+            } catch (DownloadException e) {
+                System.err.println("Local conversion failed, downloading instead: " + e.getMessage());
+            }
+        }
+        // Only single-flight downloads get the keyed partial: one writer per key on this node.
+        return downloadVideo(url, format, quality, artifactStore.partialFileFor(cacheKey, format), progress);
+    }
+
+    /**
+     * Downloads into {@code outputPath}. yt-dlp resumes from the working files a previous attempt left beside
+     * it, so a stall that kills one player client's run, or a whole failed request, doesn't cost the bytes
+     * already fetched. Those files are only discarded when the failure is about the video itself.
+     */
+    private String downloadVideo(String url, String format, Quality quality, Path outputPath,
+                                 Consumer<DownloadProgress> progress) throws IOException, InterruptedException {
+
+        String outputFile = outputPath.toString();
+
+        String videoId = UrlCanonicalizer.videoId(url);
+        VideoFormats probed = videoId == null ? null : formatProbeCache.peek(videoId);
+        long deadline = downloadWatchdog.deadlineFromNow();
+
+        EgressPool.Egress egress = egressPool.select(videoId);
+        int egressSwitches = 0;
 
         String lastError = null;
-        for (List<String> command : commands) {
+        DownloadException stalled = null;
+        List<String> playerClients = playerClientSelector.order();
+        for (int attempt = 0; attempt < playerClients.size(); attempt++) {
+            String playerClient = playerClients.get(attempt);
+            if (System.nanoTime() - deadline >= 0) break;
+            // Outside the try: an open breaker must reach the caller as a 503, not become the next lastError.
+            upstreamGuard.checkOpen();
+            int fragments = fragmentTuner.acquire();
+            downloadMetrics.fragmentsChosen(fragments);
+            List<String> command = buildCommand(url, format, selectFormat(quality, format, probed, playerClient),
+                    quality, outputFile, playerClient, egress, fragments);
+            long started = System.nanoTime();
+            Fetch fetch = null;
             try {
-                runCommand(command);
+                fetch = runCommand(command, outputPath, deadline, progress);
+                recordClientOutcome(playerClient, egress, videoId, null, started);
                 lastError = null;
+                stalled = null;
                 break;
             } catch (RuntimeException ex) {
                 lastError = ex.getMessage();
+                stalled = ex instanceof DownloadException e && e.getStatusCode() == 504 ? e : null;
+                recordClientOutcome(playerClient, egress, videoId, lastError, started);
+                // A blocked proxy or cookie file is retried elsewhere with the same player client.
+                EgressPool.Egress next = egressSwitches < MAX_EGRESS_SWITCHES
+                        ? egressPool.alternative(egress, FailureCategory.of(lastError))
+                        : null;
+                if (next != null) {
+                    egress = next;
+                    egressSwitches++;
+                    attempt--;
+                    continue;
+                }
                 // Some failures won't be fixed by trying another player client.
                 if (isUnrecoverableFailure(lastError)) {
                     break;
                 }
+            } finally {
+                fragmentTuner.release(fragments, fetch == null ? 0 : fetch.bytes(), fetch == null ? 0 : fetch.nanos());
             }
         }
 
+        if (stalled != null) {
+            throw stalled;
+        }
         if (lastError != null) {
+            if (FailureCategory.of(lastError).isVideoSpecific()) {
+                artifactStore.discardPartial(outputPath);
+            }
             throw classifyFailure(lastError);
         }
 
@@ -113,54 +412,217 @@ public class YoutubeDownloadService {
         return path.toAbsolutePath().toString();
     }
 
-    private List<List<String>> buildCommandVariants(String url, String format, String qualityArg,
-                                                    String requestedAudioQuality, String outputFile) {
-        return List.of(
-                buildCommand(url, format, qualityArg, requestedAudioQuality, outputFile, "android"),
-                buildCommand(url, format, qualityArg, requestedAudioQuality, outputFile, "web")
-        );
+    /**
+     * Runs yt-dlp with output on stdout and copies each chunk to the client and to a cache file at the
+     * same time. Player-client fallback is only possible until the first byte has been sent.
+     */
+    private String pipeVideo(String url, Quality quality, HttpServletResponse response)
+            throws IOException, InterruptedException {
+
+        Path partPath = artifactStore.newPartialFile("mp4");
+        String selector = selectProgressiveFormat(quality);
+
+        // No switching here: a blocked pipe falls back to the cached path, which does switch.
+        String videoId = UrlCanonicalizer.videoId(url);
+        EgressPool.Egress egress = egressPool.select(videoId);
+        long deadline = downloadWatchdog.deadlineFromNow();
+
+        String lastError = null;
+        for (String playerClient : playerClientSelector.order()) {
+            upstreamGuard.checkOpen();
+            long started = System.nanoTime();
+            Process process = startProcess(buildPipeCommand(url, selector, playerClient, egress));
+            ProcessStreams.Capture stderr = processStreams.drainStderr(process, "yt-dlp err: ");
+            // Progress is what came through the pipe, so a client that stops reading for the stall timeout
+            // counts as a stall too.
+            AtomicLong piped = new AtomicLong();
+            try (DownloadWatchdog.Watch watch = downloadWatchdog.watch(process, piped::get, deadline)) {
+                InputStream in = process.getInputStream();
+                byte[] buffer = new byte[64 * 1024];
+                int read = in.read(buffer);
+                if (read < 0) {
+                    process.waitFor();
+                    stderr.await();
+                    if (watch.verdict() != null) {
+                        System.err.println("Killed yt-dlp: it " + watch.verdict());
+                        lastError = STALL_MESSAGE;
+                    } else {
+                        lastError = "yt-dlp failed (exit " + process.exitValue() + "): " + stderr;
+                    }
+                    recordClientOutcome(playerClient, egress, videoId, lastError, started);
+                    if (isUnrecoverableFailure(lastError)) break;
+                    continue;
+                }
+                piped.addAndGet(read);
+                recordClientOutcome(playerClient, egress, videoId, null, started);
+
+                writeDownloadHeaders(response, "mp4", partPath.getFileName().toString());
+                OutputStream client = response.getOutputStream();
+                boolean clientGone = false;
+                long sent = 0;
+
+                try (OutputStream file = Files.newOutputStream(partPath)) {
+                    while (read >= 0) {
+                        file.write(buffer, 0, read);
+                        if (!clientGone) {
+                            try {
+                                client.write(buffer, 0, read);
+                                sent += read;
+                            } catch (IOException e) {
+                                // Keep downloading into the cache file so the next request is a hit.
+                                clientGone = true;
+                            }
+                        }
+                        read = in.read(buffer);
+                        if (read > 0) piped.addAndGet(read);
+                    }
+                } catch (IOException e) {
+                    process.destroyForcibly();
+                    Files.deleteIfExists(partPath);
+                    downloadMetrics.bytesServed(sent);
+                    downloadMetrics.phase(DownloadMetrics.PHASE_STREAM, System.nanoTime() - started, false);
+                    throw e;
+                }
+
+                int exit = process.waitFor();
+                stderr.await();
+                downloadMetrics.bytesServed(sent);
+                downloadMetrics.phase(DownloadMetrics.PHASE_STREAM, System.nanoTime() - started, exit == 0);
+                if (exit != 0) {
+                    Files.deleteIfExists(partPath);
+                    if (watch.verdict() != null) {
+                        System.err.println("Killed yt-dlp: it " + watch.verdict());
+                        throw new DownloadException(STALL_MESSAGE, 504);
+                    }
+                    throw new IOException("yt-dlp stream aborted (exit " + exit + "): " + stderr);
+                }
+
+                if (!clientGone) {
+                    client.flush();
+                }
+                return partPath.toString();
+            }
+        }
+
+        throw classifyFailure(lastError);
     }
 
-    private List<String> buildCommand(String url, String format, String qualityArg,
-                                      String requestedAudioQuality, String outputFile, String playerClient) {
-        List<String> args = new ArrayList<>();
-        args.add(resolveYtDlpPath());
-        args.add("--extractor-args");
-        args.add("youtube:player_client=" + playerClient);
-        args.add("--no-check-certificates");
-        args.add("--geo-bypass");
-        args.add("--no-playlist");
-        args.add("--no-warnings");
-        args.add("--socket-timeout");
-        args.add("20");
-        args.add("--retries");
-        args.add("2");
-        args.add("--fragment-retries");
-        args.add("2");
+    private static byte[] awaitStdout(Future<byte[]> stdout) throws IOException, InterruptedException {
+        try {
+            return stdout.get();
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException io ? io : new IOException(e.getCause());
+        }
+    }
 
-        String geoBypassCountry = envOrBlank(GEO_COUNTRY_ENV);
-        if (!geoBypassCountry.isBlank()) {
-            args.add("--geo-bypass-country");
-            args.add(geoBypassCountry);
+    private VideoFormats runProbe(String url) throws IOException, InterruptedException {
+        InfoJson info = fetchInfoJson(url, List.of("--skip-download"));
+        return VideoFormats.fromInfoJson(info.json(), info.playerClient());
+    }
+
+    // Media URLs of the chosen formats, for ffmpeg to read directly.
+    private HlsPackager.Source resolveHlsSource(String url, Quality quality) throws IOException, InterruptedException {
+        InfoJson info = fetchInfoJson(url, List.of("--skip-download", "-f", selectHlsFormat(quality)));
+        JsonNode requested = info.json().path("requested_formats");
+        List<JsonNode> formats = new ArrayList<>();
+        if (requested.isArray() && !requested.isEmpty()) {
+            requested.forEach(formats::add);
+        } else {
+            formats.add(info.json());
         }
 
-        String proxy = envOrBlank(PROXY_ENV);
-        if (!proxy.isBlank()) {
-            args.add("--proxy");
-            args.add(proxy);
+        List<HlsPackager.Input> inputs = new ArrayList<>();
+        for (JsonNode format : formats) {
+            String mediaUrl = format.path("url").asText(null);
+            if (mediaUrl == null) {
+                throw new DownloadException("No playable stream found for this video.", 502);
+            }
+            Map<String, String> headers = new LinkedHashMap<>();
+            format.path("http_headers").fields().forEachRemaining(h -> headers.put(h.getKey(), h.getValue().asText()));
+            inputs.add(new HlsPackager.Input(mediaUrl, headers));
         }
+        return new HlsPackager.Source(inputs, info.egress().proxy());
+    }
 
-        if (Boolean.parseBoolean(envOrBlank(FORCE_IPV4_ENV))) {
-            args.add("-4");
+    // H.264 and AAC play through Media Source Extensions in every browser; VP9 and AV1 don't on Safari.
+    private String selectHlsFormat(Quality quality) {
+        String height = quality.maxHeight() == 0 ? "" : "[height<=" + quality.maxHeight() + "]";
+        return "bestvideo[vcodec^=avc1]" + height + "+bestaudio[ext=m4a]"
+                + "/best[ext=mp4][vcodec^=avc1]" + height + "/best[ext=mp4]";
+    }
+
+    private JsonNode runInfoJson(String url, List<String> options) throws IOException, InterruptedException {
+        return fetchInfoJson(url, options).json();
+    }
+
+    private record InfoJson(JsonNode json, EgressPool.Egress egress, String playerClient) {
+    }
+
+    // yt-dlp -J: metadata as one JSON document on stdout, with the usual player-client fallback.
+    private InfoJson fetchInfoJson(String url, List<String> options) throws IOException, InterruptedException {
+        String videoId = UrlCanonicalizer.videoId(url);
+        EgressPool.Egress egress = egressPool.select(videoId);
+        int egressSwitches = 0;
+
+        upstreamGuard.acquire();
+        String lastError = null;
+        List<String> playerClients = playerClientSelector.order();
+        for (int attempt = 0; attempt < playerClients.size(); attempt++) {
+            String playerClient = playerClients.get(attempt);
+            upstreamGuard.checkOpen();
+            long started = System.nanoTime();
+            List<String> command = buildBaseCommand(playerClient, egress);
+            command.add("-J");
+            command.addAll(options);
+            command.add(url);
+
+            Process process = startProcess(command);
+            ProcessStreams.Capture stderr = processStreams.drainStderr(process, "yt-dlp err: ");
+            // Read on the side: a blocking read here would wait for yt-dlp however long it hangs.
+            Future<byte[]> stdout = processStreams.readStdout(process);
+
+            boolean finished = process.waitFor(PROBE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            if (!finished) {
+                process.destroyForcibly();
+                stderr.await();
+                downloadMetrics.phase(DownloadMetrics.PHASE_PROBE, System.nanoTime() - started, false);
+                throw new DownloadException("yt-dlp timed out while reading video information.", 504);
+            }
+            stderr.await();
+            downloadMetrics.phase(DownloadMetrics.PHASE_PROBE, System.nanoTime() - started, process.exitValue() == 0);
+
+            if (process.exitValue() == 0) {
+                recordClientOutcome(playerClient, egress, videoId, null, started);
+                return new InfoJson(objectMapper.readTree(awaitStdout(stdout)), egress, playerClient);
+            }
+            lastError = "yt-dlp failed (exit " + process.exitValue() + "): " + stderr;
+            recordClientOutcome(playerClient, egress, videoId, lastError, started);
+            EgressPool.Egress next = egressSwitches < MAX_EGRESS_SWITCHES
+                    ? egressPool.alternative(egress, FailureCategory.of(lastError))
+                    : null;
+            if (next != null) {
+                egress = next;
+                egressSwitches++;
+                attempt--;
+                continue;
+            }
+            if (isUnrecoverableFailure(lastError)) break;
         }
+        throw classifyFailure(lastError);
+    }
 
-        if (Files.exists(COOKIES_PATH)) {
-            args.add("--cookies");
-            args.add(COOKIES_PATH.toString());
+    List<String> buildCommand(String url, String format, String qualityArg, Quality quality,
+                              String outputFile, String playerClient, EgressPool.Egress egress, int fragments) {
+        List<String> args = buildBaseCommand(playerClient, egress);
+        // Resume from .part files a previous attempt left behind (the default, but we depend on it).
+        args.add("--continue");
+        if (fragments > 1) {
+            args.add("--concurrent-fragments");
+            args.add(String.valueOf(fragments));
         }
 
         if (format.equals("mp3")) {
-            String bitrate = mapBitrate(requestedAudioQuality);
+            String bitrate = quality.audioBitrate();
             args.add("--extract-audio");
             args.add("--audio-format");
             args.add("mp3");
@@ -172,8 +634,14 @@ public class YoutubeDownloadService {
             return args;
         }
 
+        // If the preferred stream is missing, the closest video stream to the cap; a progressive stream only
+        // for videos that have no separate streams at all.
         args.add("-f");
-        args.add(qualityArg + "+bestaudio/best");
+        args.add(qualityArg + "+bestaudio/bestvideo+bestaudio/best");
+        if (quality.maxHeight() > 0) {
+            args.add("-S");
+            args.add("res:" + quality.maxHeight());
+        }
         args.add("--merge-output-format");
         args.add("mp4");
         args.add("--remux-video");
@@ -186,159 +654,243 @@ public class YoutubeDownloadService {
         return args;
     }
 
-    private String mapBitrate(String q) {
-        if (q == null) return "0";
-        return switch (q.toLowerCase()) {
-            case "320k" -> "320K";
-            case "256k" -> "256K";
-            case "192k" -> "192K";
-            case "128k" -> "128K";
-            case "64k" -> "64K";
-            default -> "0";
-        };
+    private List<String> buildPipeCommand(String url, String selector, String playerClient,
+                                          EgressPool.Egress egress) {
+        List<String> args = buildBaseCommand(playerClient, egress);
+        args.add("-f");
+        args.add(selector);
+        args.add("-o");
+        args.add("-");
+        args.add(url);
+        return args;
     }
 
-    private String selectFormat(String quality, String format) {
+    private List<String> buildBaseCommand(String playerClient, EgressPool.Egress egress) {
+        List<String> args = new ArrayList<>();
+        args.add(resolveYtDlpPath());
+        args.add("--extractor-args");
+        args.add("youtube:player_client=" + playerClient);
+        args.add("--no-check-certificates");
+        args.add("--geo-bypass");
+        args.add("--no-playlist");
+        args.add("--no-warnings");
+        args.add("--newline");
+        args.add("--socket-timeout");
+        args.add("20");
+        args.add("--retries");
+        args.add("2");
+        args.add("--fragment-retries");
+        args.add("2");
 
-        if (format.equals("mp3")) return "bestaudio";
+        String geoBypassCountry = envOrBlank(GEO_COUNTRY_ENV);
+        if (!geoBypassCountry.isBlank()) {
+            args.add("--geo-bypass-country");
+            args.add(geoBypassCountry);
+        }
 
-        return switch (quality.toLowerCase(Locale.ROOT)) {
-            case "144p" -> "bestvideo[height<=144]";
-            case "240p" -> "bestvideo[height<=240]";
-            case "360p" -> "bestvideo[height<=360]";
-            case "480p" -> "bestvideo[height<=480]";
-            case "720p" -> "bestvideo[height<=720]";
-            case "1080p" -> "bestvideo[height<=1080]";
-            case "1440p" -> "bestvideo[height<=1440]";
-            case "2160p", "4k" -> "bestvideo[height<=2160]";
-            default -> "bestvideo";
-        };
+        if (egress.proxy() != null) {
+            args.add("--proxy");
+            args.add(egress.proxy());
+        }
+
+        if (Boolean.parseBoolean(envOrBlank(FORCE_IPV4_ENV))) {
+            args.add("-4");
+        }
+
+        if (egress.cookieFile() != null) {
+            args.add("--cookies");
+            args.add(egress.cookieFile());
+        }
+        return args;
     }
 
-    private void runCommand(List<String> command) throws InterruptedException {
-        Process process;
-        try {
-            ProcessBuilder pb = new ProcessBuilder(command);
-            pb.redirectErrorStream(false);
-            process = pb.start();
-        } catch (IOException e) {
-            String message = e.getMessage() == null ? "" : e.getMessage();
-            if (message.contains("Cannot run program")) {
-                throw new DownloadException(
-                        "yt-dlp is not installed on server. Install yt-dlp or set YT_DLP_PATH.",
-                        500
-                );
-            }
-            throw new DownloadException("Failed to start yt-dlp process.", 500);
+    private String selectFormat(Quality quality, String format, VideoFormats probed, String playerClient) {
+
+        if (format.equals("mp3")) return "bestaudio";
+
+        // With a probe on hand, ask for the exact stream instead of letting yt-dlp fail on a missing height.
+        // Format ids differ between player clients, so only the client that did the probe can use them.
+        if (probed != null && playerClient.equals(probed.playerClient())) {
+            String formatId = probed.videoFormatFor(quality);
+            if (formatId != null) return formatId;
         }
 
-        ByteArrayOutputStream stderr = new ByteArrayOutputStream();
+        if (quality.maxHeight() == 0) return "bestvideo";
+        return "bestvideo[height<=" + quality.maxHeight() + "]";
+    }
 
-        Thread errThread = new Thread(() -> {
-            try (BufferedReader reader = new BufferedReader(
-                    new InputStreamReader(process.getErrorStream(), StandardCharsets.UTF_8))) {
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    System.err.println("yt-dlp err: " + line);
-                    stderr.write((line + System.lineSeparator()).getBytes(StandardCharsets.UTF_8));
-                }
-            } catch (IOException ignored) {}
-        });
+    // Progressive mp4 carries audio and video in one file; YouTube rarely offers it above 360p.
+    private String selectProgressiveFormat(Quality quality) {
+        String single = "best[ext=mp4][vcodec!=none][acodec!=none]";
+        if (quality.maxHeight() == 0) return single;
+        return single + "[height<=" + quality.maxHeight() + "]/" + single;
+    }
 
-        errThread.start();
+    private Fetch runCommand(List<String> command, Path outputPath, long deadlineNanos,
+                             Consumer<DownloadProgress> progress) throws InterruptedException {
+        return awaitYtDlp(startProcess(command), () -> artifactStore.partialBytes(outputPath), deadlineNanos, progress);
+    }
 
-        try (BufferedReader reader = new BufferedReader(
-                new InputStreamReader(process.getInputStream()))) {
+    /**
+     * Consumes one yt-dlp run and returns what its network phase fetched, which excludes bytes a resumed
+     * run found on disk and the time spent merging.
+     * Package-private so the benchmarks can drive it with a canned process.
+     */
+    Fetch awaitYtDlp(Process process, LongSupplier bytesOnDisk, long deadlineNanos,
+                     Consumer<DownloadProgress> progress) throws InterruptedException {
+        ProcessStreams.Capture stderr = processStreams.drainStderr(process, "yt-dlp err: ");
+        long started = System.nanoTime();
+        long postProcessingStarted = -1;
+        long bytesAtStart = bytesOnDisk.getAsLong();
+        long fetchedBytes = 0;
+
+        // Merges and audio extraction write to disk too, so growth covers every phase, not just the fetch.
+        try (DownloadWatchdog.Watch watch = downloadWatchdog.watch(process, bytesOnDisk, deadlineNanos);
+             BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
 
             String line;
             while ((line = reader.readLine()) != null) {
-                System.out.println("yt-dlp: " + line);
+                DownloadProgress update = DownloadProgress.fromYtDlpLine(line);
+                // --newline prints a percentage line per tick; those go to listeners, not the log.
+                if (update == null || !update.phase().equals(DownloadProgress.DOWNLOADING)) {
+                    System.out.println("yt-dlp: " + line);
+                }
+                if (update != null) {
+                    // The first merge/extract line marks the end of the network phase.
+                    if (postProcessingStarted < 0 && !update.phase().equals(DownloadProgress.DOWNLOADING)) {
+                        postProcessingStarted = System.nanoTime();
+                        fetchedBytes = bytesOnDisk.getAsLong() - bytesAtStart;
+                        downloadMetrics.phase(DownloadMetrics.PHASE_DOWNLOAD, postProcessingStarted - started, true);
+                    }
+                    progress.accept(update);
+                }
             }
+
+            // The watchdog still covers a process that closed stdout but hasn't exited.
+            int exit = process.waitFor();
+            stderr.await();
+            if (watch.verdict() != null) {
+                recordRunPhase(started, postProcessingStarted, false);
+                System.err.println("Killed yt-dlp: it " + watch.verdict());
+                throw new DownloadException(STALL_MESSAGE, 504);
+            }
+            recordRunPhase(started, postProcessingStarted, exit == 0);
+
+            if (exit != 0) {
+                String err = stderr.toString();
+                throw new RuntimeException("yt-dlp failed (exit " + exit + "): " + err);
+            }
+            if (postProcessingStarted < 0) {
+                return new Fetch(bytesOnDisk.getAsLong() - bytesAtStart, System.nanoTime() - started);
+            }
+            return new Fetch(fetchedBytes, postProcessingStarted - started);
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
+    }
 
-        boolean finished = process.waitFor(YTDLP_TIMEOUT_SECONDS, TimeUnit.SECONDS);
-        if (!finished) {
-            process.destroyForcibly();
-            errThread.join();
-            throw new DownloadException(
-                    "yt-dlp timed out on server. Try another video, lower quality, or retry shortly.",
-                    504
-            );
-        }
-
-        int exit = process.exitValue();
-        errThread.join();
-
-        if (exit != 0) {
-            String err = stderr.toString();
-            throw new RuntimeException("yt-dlp failed (exit " + exit + "): " + err);
+    private void recordRunPhase(long started, long postProcessingStarted, boolean success) {
+        long now = System.nanoTime();
+        if (postProcessingStarted < 0) {
+            downloadMetrics.phase(DownloadMetrics.PHASE_DOWNLOAD, now - started, success);
+        } else {
+            downloadMetrics.phase(DownloadMetrics.PHASE_MERGE, now - postProcessingStarted, success);
         }
     }
 
-    private RuntimeException classifyFailure(String msg) {
-        String lower = msg.toLowerCase(Locale.ROOT);
-
-        if (lower.contains("sign in to confirm you’re not a bot")
-                || lower.contains("sign in to confirm you're not a bot")
-                || lower.contains("--cookies-from-browser")
-                || lower.contains("use --cookies")) {
-            String hint = envOrBlank(COOKIE_ENV).isBlank()
-                    ? " Set YTDLP_COOKIES_B64 with exported YouTube cookies."
-                    : " Verify YTDLP_COOKIES_B64 contains fresh, valid YouTube cookies.";
-            if (envOrBlank(PROXY_ENV).isBlank()) {
-                hint += " You may also need a residential proxy via YTDLP_PROXY.";
+    private Process startProcess(List<String> command) throws InterruptedException {
+        try {
+            ProcessBuilder pb = new ProcessBuilder(command);
+            pb.redirectErrorStream(false);
+            return processStreams.start(pb);
+        } catch (IOException e) {
+            String message = e.getMessage() == null ? "" : e.getMessage();
+            if (message.contains("Cannot run program")) {
+                throw new DownloadException(
+                        "yt-dlp is not installed on server. Install yt-dlp or set YT_DLP_PATH.",
+                        500
+                );
             }
-            return new DownloadException("YouTube bot verification blocked this request." + hint, 422);
+            throw new DownloadException("Failed to start yt-dlp process.", 500);
         }
+    }
 
-        if (lower.contains("not made this video available in your country")
-                || lower.contains("this video is available in")) {
-            String proxyHint = envOrBlank(PROXY_ENV).isBlank()
-                    ? " Set YTDLP_PROXY to a proxy in an allowed country."
-                    : "";
-            return new DownloadException("Video is geo-restricted for server region." + proxyHint, 422);
-        }
+    RuntimeException classifyFailure(String msg) {
+        FailureCategory category = FailureCategory.of(msg);
+        downloadMetrics.failure(category);
+
+        return switch (category) {
+            case BOT_CHECK -> {
+                String hint = !egressPool.hasCookies()
+                        ? " Set YTDLP_COOKIES_B64 with exported YouTube cookies."
+                        : " Verify YTDLP_COOKIES_B64 contains fresh, valid YouTube cookies.";
+                if (!egressPool.hasProxies()) {
+                    hint += " You may also need a residential proxy via YTDLP_PROXY.";
+                }
+                yield new DownloadException("YouTube bot verification blocked this request." + hint, 422);
+            }
+            case GEO_RESTRICTED -> {
+                String proxyHint = !egressPool.hasProxies()
+                        ? " Set YTDLP_PROXY to a proxy in an allowed country."
+                        : "";
+                yield new DownloadException("Video is geo-restricted for server region." + proxyHint, 422);
+            }
+            case AUTH_REQUIRED ->
+                    new DownloadException("This video requires authentication/cookies to download.", 422);
+            case FORMAT_UNAVAILABLE ->
+                    new DownloadException("Requested quality/format is unavailable for this video. Try Best or lower quality.", 422);
+            case VIDEO_UNAVAILABLE -> new DownloadException("This video is unavailable for download.", 422);
+            case UNSUPPORTED_URL -> new DownloadException("Unsupported or invalid YouTube URL.", 400);
+            case THROTTLED, UPSTREAM_UNREACHABLE ->
+                    new DownloadException("YouTube is temporarily unreachable from server. Please retry in a minute.", 502);
+            case STALLED -> new DownloadException(STALL_MESSAGE, 504);
+            case UNKNOWN -> new DownloadException("Download failed. Please try a different video or quality.", 502);
+        };
+    }
 
-        if (lower.contains("private video") || lower.contains("sign in to confirm your age")) {
-            return new DownloadException("This video requires authentication/cookies to download.", 422);
-        }
+    private boolean isUnrecoverableFailure(String msg) {
+        return FailureCategory.of(msg).endsClientRetries();
+    }
 
-        if (lower.contains("requested format is not available")) {
-            return new DownloadException("Requested quality/format is unavailable for this video. Try Best or lower quality.", 422);
+    // Errors about the video itself say nothing about the player client, so they don't count against it.
+    private void recordClientOutcome(String playerClient, EgressPool.Egress egress, String videoId, String error,
+                                     long startedNanos) {
+        FailureCategory category = error == null ? null : FailureCategory.of(error);
+        if (category == FailureCategory.STALLED) {
+            // A hung connection is as likely ours as YouTube's; no scorer learns anything from it.
+            downloadMetrics.playerClientOutcome(playerClient, "stalled");
+            downloadMetrics.egressOutcome(egressPool.labelOf(egress.proxy()), "stalled");
+            return;
         }
-
-        if (lower.contains("video unavailable")
-                || lower.contains("this video is unavailable")
-                || lower.contains("copyright")
-                || lower.contains("removed by the uploader")) {
-            return new DownloadException("This video is unavailable for download.", 422);
+        long latencyMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedNanos);
+        boolean poolWide = egressPool.record(egress, videoId, category, latencyMillis);
+        // Pushback on one proxy is routed around by the pool; the breaker only trips when it comes from all of them.
+        if (category == null || !category.isPushback() || poolWide) {
+            upstreamGuard.record(category);
         }
+        String outcome = category == null ? "success" : category.isVideoSpecific() ? "video_error" : "failure";
+        downloadMetrics.playerClientOutcome(playerClient, outcome);
+        downloadMetrics.egressOutcome(egressPool.labelOf(egress.proxy()), outcome);
+        if (category != null && category.isVideoSpecific()) return;
 
-        if (lower.contains("unsupported url")) {
-            return new DownloadException("Unsupported or invalid YouTube URL.", 400);
-        }
+        playerClientSelector.record(playerClient, category == null, latencyMillis);
+    }
 
-        if (lower.contains("timed out")
-                || lower.contains("temporary failure in name resolution")
-                || lower.contains("unable to download webpage")
-                || lower.contains("http error 5")
-                || lower.contains("too many requests")) {
-            return new DownloadException("YouTube is temporarily unreachable from server. Please retry in a minute.", 502);
-        }
+    // Audio and small videos finish quickly, so let them jump ahead of long high-resolution merges.
+    private DownloadScheduler.Priority priorityFor(String format, Quality quality) {
+        if (format.equals("mp3")) return DownloadScheduler.Priority.HIGH;
+        if (quality == Quality.BEST || quality.maxHeight() > 1080) return DownloadScheduler.Priority.LOW;
+        if (quality.maxHeight() <= 480) return DownloadScheduler.Priority.HIGH;
+        return DownloadScheduler.Priority.NORMAL;
+    }
 
-        return new DownloadException("Download failed. Please try a different video or quality.", 502);
+    // Keyed by video id rather than the raw URL so youtu.be, /shorts/, m. and tracking-parameter variants collide.
+    private String cacheKeyFor(String url, String format, Quality quality) {
+        return artifactKey(UrlCanonicalizer.cacheIdentity(url), format, quality);
     }
 
-    private boolean isUnrecoverableFailure(String msg) {
-        String lower = msg == null ? "" : msg.toLowerCase(Locale.ROOT);
-        return lower.contains("sign in to confirm you’re not a bot")
-                || lower.contains("sign in to confirm you're not a bot")
-                || lower.contains("use --cookies")
-                || lower.contains("private video")
-                || lower.contains("unsupported url")
-                || lower.contains("not made this video available in your country");
+    static String artifactKey(String cacheIdentity, String format, Quality quality) {
+        return "video:" + cacheIdentity + ":" + format + ":" + quality.label();
     }
 
     private String normalizeFormat(String format) {
@@ -347,32 +899,20 @@ public class YoutubeDownloadService {
         return normalized.equals("mp3") ? "mp3" : "mp4";
     }
 
-    private String normalizeQuality(String quality) {
-        if (quality == null || quality.isBlank()) return "best";
-        return quality;
-    }
-
     private String getCachedPath(String cacheKey) {
-        if (!redisEnabled || redisTemplate == null) {
-            return null;
-        }
-        try {
-            return redisTemplate.opsForValue().get(cacheKey);
-        } catch (Exception e) {
-            System.err.println("Redis read failed, continuing without cache: " + e.getMessage());
-            return null;
+        String localPath = artifactStore.lookup(cacheKey);
+        if (localPath != null) {
+            downloadMetrics.cacheLookup("local");
+            return localPath;
         }
+        String redisPath = redisCache.get(cacheKey);
+        boolean usable = redisPath != null && Files.exists(Paths.get(redisPath));
+        downloadMetrics.cacheLookup(usable ? "redis" : "none");
+        return usable ? redisPath : null;
     }
 
     private void putCachedPath(String cacheKey, String filePath) {
-        if (!redisEnabled || redisTemplate == null) {
-            return;
-        }
-        try {
-            redisTemplate.opsForValue().set(cacheKey, filePath, CACHE_TTL_HOURS, TimeUnit.HOURS);
-        } catch (Exception e) {
-            System.err.println("Redis write failed, continuing without cache: " + e.getMessage());
-        }
+        redisCache.put(cacheKey, filePath, Duration.ofHours(CACHE_TTL_HOURS));
     }
 
     private String resolveYtDlpPath() {
@@ -412,22 +952,181 @@ public class YoutubeDownloadService {
         return value == null ? "" : value.trim();
     }
 
-    private void streamFromFile(String filePath, String format, HttpServletResponse response)
-            throws IOException {
+    /**
+     * Serves a finished artifact with Range, ETag and If-Range support. When Tomcat advertises sendfile the
+     * bytes go straight from the page cache to the socket; otherwise they are copied with
+     * {@link FileChannel#transferTo}.
+     */
+    private void streamFromFile(String filePath, String format, HttpServletRequest request,
+                                HttpServletResponse response) throws IOException {
 
         File file = new File(filePath);
         if (!file.exists()) throw new IOException("Missing file: " + filePath);
 
+        long length = file.length();
+        long lastModified = file.lastModified();
+        String etag = "\"" + Long.toHexString(length) + "-" + Long.toHexString(lastModified) + "\"";
+
+        writeDownloadHeaders(response, format, file.getName());
+        response.setHeader("Accept-Ranges", "bytes");
+        response.setHeader("ETag", etag);
+        response.setDateHeader("Last-Modified", lastModified);
+
+        // POST /api/stream starts a download; conditional and partial responses only make sense for reads.
+        boolean read = "GET".equals(request.getMethod()) || "HEAD".equals(request.getMethod());
+        if (read && etagMatches(request.getHeader("If-None-Match"), etag)) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+
+        long start = 0;
+        long end = length - 1;
+        String range = request.getHeader("Range");
+        if (range != null && read && ifRangeHolds(request, etag, lastModified)) {
+            long[] bounds = parseRange(range, length);
+            if (bounds != null && bounds.length == 0) {
+                response.setHeader("Content-Range", "bytes */" + length);
+                response.setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+                return;
+            }
+            if (bounds != null) {
+                start = bounds[0];
+                end = bounds[1];
+                response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+                response.setHeader("Content-Range", "bytes " + start + "-" + end + "/" + length);
+            }
+        }
+
+        response.setContentLengthLong(end - start + 1);
+        if ("HEAD".equals(request.getMethod()) || length == 0) {
+            return;
+        }
+
+        if (Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORT_ATTR))) {
+            downloadMetrics.bytesServed(end - start + 1);
+            request.setAttribute(SENDFILE_FILENAME_ATTR, file.getAbsolutePath());
+            request.setAttribute(SENDFILE_START_ATTR, start);
+            request.setAttribute(SENDFILE_END_ATTR, end + 1);
+            return;
+        }
+
+        long started = System.nanoTime();
+        long position = start;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+             OutputStream out = response.getOutputStream()) {
+            WritableByteChannel target = Channels.newChannel(out);
+            while (position <= end) {
+                long sent = channel.transferTo(position, end + 1 - position, target);
+                if (sent <= 0) break;
+                position += sent;
+            }
+            // transferTo may stop making progress into a stream-backed channel; finish with plain reads.
+            ByteBuffer buffer = position <= end ? ByteBuffer.allocate(64 * 1024) : null;
+            while (position <= end) {
+                buffer.clear().limit((int) Math.min(buffer.capacity(), end + 1 - position));
+                int chunk = channel.read(buffer, position);
+                if (chunk < 0) throw new EOFException("File shrank while serving: " + filePath);
+                out.write(buffer.array(), 0, chunk);
+                position += chunk;
+            }
+            out.flush();
+        } finally {
+            downloadMetrics.bytesServed(position - start);
+            downloadMetrics.phase(DownloadMetrics.PHASE_STREAM, System.nanoTime() - started, position > end);
+        }
+    }
+
+    /**
+     * Parses a single-range {@code bytes=} header. Returns {start, end} for a satisfiable range, an empty
+     * array for an unsatisfiable one, and null when the header should be ignored (malformed or multi-range).
+     * Package-private for tests, as are etagMatches and ifRangeHolds.
+     */
+    static long[] parseRange(String header, long length) {
+        if (!header.startsWith("bytes=") || header.contains(",")) return null;
+        String spec = header.substring("bytes=".length()).trim();
+        int dash = spec.indexOf('-');
+        if (dash < 0) return null;
+
+        try {
+            String first = spec.substring(0, dash).trim();
+            String last = spec.substring(dash + 1).trim();
+            if (first.isEmpty()) {
+                if (last.isEmpty()) return null;
+                long suffix = Long.parseLong(last);
+                if (suffix <= 0) return new long[0];
+                return new long[]{Math.max(0, length - suffix), length - 1};
+            }
+            long start = Long.parseLong(first);
+            long end = last.isEmpty() ? length - 1 : Math.min(Long.parseLong(last), length - 1);
+            if (start >= length) return new long[0];
+            if (end < start) return null;
+            return new long[]{start, end};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    static boolean etagMatches(String header, String etag) {
+        if (header == null) return false;
+        for (String candidate : header.split(",")) {
+            String tag = candidate.trim();
+            if (tag.equals("*")) return true;
+            if (tag.startsWith("W/")) tag = tag.substring(2);
+            if (tag.equals(etag)) return true;
+        }
+        return false;
+    }
+
+    static boolean ifRangeHolds(HttpServletRequest request, String etag, long lastModified) {
+        String ifRange = request.getHeader("If-Range");
+        if (ifRange == null) return true;
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+            return ifRange.equals(etag);
+        }
+        try {
+            return lastModified / 1000 <= request.getDateHeader("If-Range") / 1000;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    private void writeDownloadHeaders(HttpServletResponse response, String format, String fileName) {
         response.setHeader("Access-Control-Allow-Origin", "*");
-        response.setHeader("Access-Control-Expose-Headers", "Content-Disposition");
+        response.setHeader("Access-Control-Expose-Headers",
+                "Content-Disposition, Content-Length, Content-Range, Accept-Ranges, ETag");
         response.setContentType(format.equals("mp3") ? "audio/mpeg" : "video/mp4");
 
         response.setHeader("Content-Disposition",
-                "attachment; filename=\"" + file.getName() + "\"");
+                "attachment; filename=\"" + fileName + "\"");
+    }
 
-        try (OutputStream out = response.getOutputStream()) {
-            Files.copy(file.toPath(), out);
-            out.flush();
+    record Fetch(long bytes, long nanos) {
+    }
+
+    @FunctionalInterface
+    private interface ArtifactDownload {
+        String run(Consumer<DownloadProgress> progress) throws IOException, InterruptedException;
+    }
+
+    // A running download plus everyone waiting on it; late subscribers get the latest progress immediately.
+    private static final class InFlightDownload {
+        private final CompletableFuture<String> result = new CompletableFuture<>();
+        private final List<Consumer<DownloadProgress>> listeners = new CopyOnWriteArrayList<>();
+        private volatile DownloadProgress latest;
+
+        private void subscribe(Consumer<DownloadProgress> listener) {
+            listeners.add(listener);
+            DownloadProgress current = latest;
+            if (current != null) {
+                listener.accept(current);
+            }
+        }
+
+        private void publish(DownloadProgress progress) {
+            latest = progress;
+            for (Consumer<DownloadProgress> listener : listeners) {
+                listener.accept(progress);
+            }
         }
     }
 }
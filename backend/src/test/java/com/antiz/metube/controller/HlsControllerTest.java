@@ -0,0 +1,43 @@
+package com.antiz.metube.controller;
+
+import com.antiz.metube.service.ClientThrottle;
+import com.antiz.metube.service.YoutubeDownloadService;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.web.context.request.RequestContextHolder;
+import org.springframework.web.context.request.ServletRequestAttributes;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class HlsControllerTest {
+
+	@AfterEach
+	void tearDown() {
+		RequestContextHolder.resetRequestAttributes();
+	}
+
+	@Test
+	void redirectKeepsTheContextPath() throws Exception {
+		YoutubeDownloadService service = mock(YoutubeDownloadService.class);
+		when(service.startHls(eq("https://youtu.be/dQw4w9WgXcQ"), eq("720p"), any(ClientThrottle.Slot.class)))
+				.thenReturn("0123456789abcdef01234567");
+		HlsController controller = new HlsController();
+		ReflectionTestUtils.setField(controller, "youtubeDownloadService", service);
+
+		MockHttpServletRequest request = new MockHttpServletRequest("GET", "/metube/api/hls");
+		request.setContextPath("/metube");
+		RequestContextHolder.setRequestAttributes(new ServletRequestAttributes(request));
+
+		String location = controller.start("https://youtu.be/dQw4w9WgXcQ", "720p", request)
+				.getHeaders().getFirst(HttpHeaders.LOCATION);
+
+		assertThat(location).isEqualTo("http://localhost/metube/api/hls/0123456789abcdef01234567/index.m3u8");
+	}
+}
@@ -0,0 +1,131 @@
+package com.antiz.metube.service;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.util.unit.DataSize;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ArtifactCacheTest {
+
+	@TempDir
+	Path dir;
+
+	@Test
+	void evictsTheLeastRecentlyUsedEntryWhenFull() throws IOException {
+		ArtifactCache cache = start(30);
+		String a = publish(cache, "video:yt:a:mp4:720p", 10);
+		String b = publish(cache, "video:yt:b:mp4:720p", 10);
+		publish(cache, "video:yt:c:mp4:720p", 10);
+
+		assertThat(cache.lookup("video:yt:a:mp4:720p")).isEqualTo(a);
+		publish(cache, "video:yt:d:mp4:720p", 10);
+
+		assertThat(cache.lookup("video:yt:b:mp4:720p")).isNull();
+		assertThat(Path.of(b)).doesNotExist();
+		assertThat(cache.lookup("video:yt:a:mp4:720p")).isEqualTo(a);
+		assertThat(cache.snapshot()).extracting(ArtifactCache.Entry::key)
+				.containsExactlyInAnyOrder("video:yt:a:mp4:720p", "video:yt:c:mp4:720p", "video:yt:d:mp4:720p");
+	}
+
+	@Test
+	void keepsTheNewestEntryEvenIfItAloneIsTooBig() throws IOException {
+		ArtifactCache cache = start(10);
+		publish(cache, "video:yt:a:mp4:720p", 5);
+		String big = publish(cache, "video:yt:big:mp4:2160p", 50);
+
+		assertThat(cache.lookup("video:yt:a:mp4:720p")).isNull();
+		assertThat(cache.lookup("video:yt:big:mp4:2160p")).isEqualTo(big);
+	}
+
+	@Test
+	void peekDoesNotCountAsUse() throws IOException {
+		ArtifactCache cache = start(20);
+		publish(cache, "video:yt:a:mp4:720p", 10);
+		publish(cache, "video:yt:b:mp4:720p", 10);
+
+		assertThat(cache.peek("video:yt:a:mp4:720p")).isNotNull();
+		publish(cache, "video:yt:c:mp4:720p", 10);
+
+		assertThat(cache.peek("video:yt:a:mp4:720p")).isNull();
+		assertThat(cache.peek("video:yt:b:mp4:720p")).isNotNull();
+	}
+
+	@Test
+	void reloadKeepsAccessHistoryFromTheIndex() throws IOException, InterruptedException {
+		ArtifactCache cache = start(100);
+		publish(cache, "video:yt:a:mp4:720p", 10);
+		publish(cache, "video:yt:b:mp4:720p", 10);
+		// Reload orders by last access time, so keep it from tying with b's.
+		Thread.sleep(5);
+		cache.lookup("video:yt:a:mp4:720p");
+		cache.flush();
+
+		ArtifactCache reloaded = start(100);
+
+		assertThat(reloaded.snapshot()).extracting(ArtifactCache.Entry::key)
+				.containsExactly("video:yt:b:mp4:720p", "video:yt:a:mp4:720p");
+		assertThat(reloaded.snapshot()).filteredOn(entry -> entry.key().equals("video:yt:a:mp4:720p"))
+				.extracting(ArtifactCache.Entry::hits).containsExactly(1L);
+	}
+
+	@Test
+	void reloadRebuildsShortKeysFromFileNamesWithoutAnIndex() throws IOException {
+		ArtifactCache cache = start(1000);
+		String longKey = "video:" + "x".repeat(300) + ":mp4:720p";
+		String shortPath = publish(cache, "video:yt:a:mp4:720p", 10);
+		String longPath = publish(cache, longKey, 10);
+		cache.flush();
+		Files.delete(dir.resolve("index.json"));
+
+		ArtifactCache reloaded = start(1000);
+
+		assertThat(reloaded.lookup("video:yt:a:mp4:720p")).isEqualTo(shortPath);
+		// A hashed name can't be turned back into its key, so without the index the file is dropped.
+		assertThat(reloaded.lookup(longKey)).isNull();
+		assertThat(Path.of(longPath)).doesNotExist();
+	}
+
+	@Test
+	void encodesShortKeysReversiblyAndHashesLongOnes() {
+		assertThat(ArtifactCache.encodeKey("video:yt:a:mp4:720p")).startsWith("k-").doesNotContain("/", ":");
+		String hashed = ArtifactCache.encodeKey("video:" + "x".repeat(300));
+		assertThat(hashed).startsWith("h-").hasSize(2 + 64);
+		assertThat(ArtifactCache.encodeKey("a")).isNotEqualTo(ArtifactCache.encodeKey("b"));
+	}
+
+	@Test
+	void startupClearsOrphanedPartialsButKeepsResumableOnes() throws IOException {
+		Path partials = Files.createDirectories(dir.resolve("partial"));
+		FileTime earlier = FileTime.from(Instant.now().minus(1, ChronoUnit.HOURS));
+		Path orphan = Files.write(partials.resolve("0b1e.mp4"), new byte[]{1});
+		Path resumable = Files.write(partials.resolve("r-abc.mp4"), new byte[]{1});
+		Files.setLastModifiedTime(orphan, earlier);
+		Files.setLastModifiedTime(resumable, earlier);
+
+		ArtifactCache cache = start(100);
+		cache.snapshot();
+
+		assertThat(orphan).doesNotExist();
+		assertThat(resumable).exists();
+	}
+
+	private ArtifactCache start(long maxBytes) throws IOException {
+		ArtifactCache cache = new ArtifactCache(dir.toString(), DataSize.ofBytes(maxBytes), 6);
+		cache.start();
+		return cache;
+	}
+
+	private static String publish(ArtifactCache cache, String key, int size) throws IOException {
+		Path partial = cache.newPartialFile("mp4");
+		Files.write(partial, new byte[size]);
+		return cache.publish(key, partial);
+	}
+}
@@ -0,0 +1,109 @@
+package com.antiz.metube.service;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class CacheWarmerTest {
+
+	private static final long MINUTE = TimeUnit.MINUTES.toMillis(1);
+	private static final long HOUR = TimeUnit.HOURS.toMillis(1);
+
+	private final ArtifactCache artifactCache = mock(ArtifactCache.class);
+	private final ArtifactStore artifactStore = mock(ArtifactStore.class);
+	private final DownloadScheduler downloadScheduler = mock(DownloadScheduler.class);
+	private final YoutubeDownloadService youtubeDownloadService = mock(YoutubeDownloadService.class);
+	private final PopularityTracker popularityTracker = new PopularityTracker();
+	// ttl 6h, hot at 5 requests, max age 48h, refresh 30 min ahead, 30 min grace for cold entries.
+	private final CacheWarmer warmer = new CacheWarmer(artifactCache, artifactStore, popularityTracker,
+			downloadScheduler, youtubeDownloadService, 6, 5, 48, 30, 30, 2);
+
+	@BeforeEach
+	void setUp() {
+		when(artifactStore.isShared()).thenReturn(false);
+	}
+
+	@Test
+	void hotEntriesLiveLongerAndColdOnesExpireEarly() throws Exception {
+		long now = System.currentTimeMillis();
+		ArtifactCache.Entry hot = entry("hot", now - HOUR, now + 5 * HOUR, now - MINUTE);
+		ArtifactCache.Entry cold = entry("cold", now - 3 * HOUR, now + 3 * HOUR, now - 2 * HOUR);
+		ArtifactCache.Entry recent = entry("recent", now - 3 * HOUR, now + 3 * HOUR, now - 10 * MINUTE);
+		ArtifactCache.Entry lukewarm = entry("lukewarm", now - 3 * HOUR, now + 3 * HOUR, now - 2 * HOUR);
+		when(artifactCache.snapshot()).thenReturn(List.of(hot, cold, recent, lukewarm));
+		request("hot", 5);
+		request("lukewarm", 2);
+
+		Map<String, Long> expiries = rebalance();
+
+		assertThat(expiries).containsOnlyKeys("hot", "cold");
+		assertThat(expiries.get("hot")).isBetween(now + 6 * HOUR, System.currentTimeMillis() + 6 * HOUR);
+		assertThat(expiries.get("cold")).isBetween(now + 30 * MINUTE, System.currentTimeMillis() + 30 * MINUTE);
+		verify(youtubeDownloadService, never()).refreshArtifact(anyString());
+	}
+
+	@Test
+	void hotEntryNearItsMaxAgeIsRefreshedInTheBackground() throws Exception {
+		long now = System.currentTimeMillis();
+		long created = now - 48 * HOUR + 10 * MINUTE;
+		when(artifactCache.snapshot()).thenReturn(List.of(entry("old", created, now + 5 * MINUTE, now)));
+		request("old", 5);
+
+		Map<String, Long> expiries = rebalance();
+
+		assertThat(expiries).containsEntry("old", created + 48 * HOUR);
+		verify(youtubeDownloadService, timeout(2000)).refreshArtifact("old");
+	}
+
+	@Test
+	void noRefreshWhileUsersAreQueued() throws Exception {
+		long now = System.currentTimeMillis();
+		when(artifactCache.snapshot()).thenReturn(List.of(entry("old", now - 48 * HOUR, now + MINUTE, now)));
+		when(downloadScheduler.queuedCount()).thenReturn(1);
+		request("old", 5);
+
+		rebalance();
+
+		Thread.sleep(100);
+		verify(youtubeDownloadService, never()).refreshArtifact(anyString());
+	}
+
+	@Test
+	void sharedStoreIsLeftAlone() {
+		when(artifactStore.isShared()).thenReturn(true);
+
+		warmer.rebalance();
+
+		verify(artifactCache, never()).snapshot();
+	}
+
+	@SuppressWarnings("unchecked")
+	private Map<String, Long> rebalance() {
+		warmer.rebalance();
+		ArgumentCaptor<Map<String, Long>> expiries = ArgumentCaptor.forClass(Map.class);
+		verify(artifactCache).updateExpiries(expiries.capture());
+		return expiries.getValue();
+	}
+
+	private void request(String key, int times) {
+		for (int i = 0; i < times; i++) {
+			popularityTracker.record(key);
+		}
+	}
+
+	private static ArtifactCache.Entry entry(String key, long createdAt, long expiresAt, long lastAccess) {
+		return new ArtifactCache.Entry(key, key + ".mp4", 10, createdAt, expiresAt, lastAccess, 0);
+	}
+}
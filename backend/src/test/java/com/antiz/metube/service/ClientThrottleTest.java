@@ -0,0 +1,133 @@
+package com.antiz.metube.service;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.catchThrowableOfType;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+class ClientThrottleTest {
+
+	private final DownloadMetrics downloadMetrics = mock(DownloadMetrics.class);
+
+	private ClientThrottle throttle(double ratePerMinute, int burst, int maxConcurrent) {
+		ClientThrottle throttle = new ClientThrottle(true, ratePerMinute, burst, maxConcurrent, 90);
+		ReflectionTestUtils.setField(throttle, "downloadMetrics", downloadMetrics);
+		return throttle;
+	}
+
+	@Test
+	void burstIsAdmittedThenRateLimited() {
+		ClientThrottle throttle = throttle(1, 2, 10);
+
+		throttle.admit("ip:a").close();
+		throttle.admit("ip:a").close();
+		DownloadException rejected = catchThrowableOfType(DownloadException.class, () -> throttle.admit("ip:a"));
+
+		assertThat(rejected.getStatusCode()).isEqualTo(429);
+		assertThat(rejected.getRetryAfterSeconds()).isBetween(55L, 60L);
+		verify(downloadMetrics).clientThrottled("rate");
+		// Every client has a bucket of its own.
+		throttle.admit("ip:b").close();
+	}
+
+	@Test
+	void concurrencyCapHoldsUntilSlotCloses() {
+		ClientThrottle throttle = throttle(600, 10, 1);
+
+		ClientThrottle.Slot slot = throttle.admit("ip:a");
+		DownloadException rejected = catchThrowableOfType(DownloadException.class, () -> throttle.admit("ip:a"));
+		assertThat(rejected.getStatusCode()).isEqualTo(429);
+		verify(downloadMetrics).clientThrottled("concurrency");
+
+		slot.close();
+		throttle.admit("ip:a");
+	}
+
+	@Test
+	void closingSlotTwiceFreesItOnce() {
+		ClientThrottle throttle = throttle(600, 10, 2);
+
+		ClientThrottle.Slot first = throttle.admit("ip:a");
+		first.close();
+		first.close();
+		throttle.admit("ip:a");
+		throttle.admit("ip:a");
+
+		assertThat(catchThrowableOfType(DownloadException.class, () -> throttle.admit("ip:a"))).isNotNull();
+	}
+
+	@Test
+	void slotTakenOverOutlivesRequest() {
+		ClientThrottle throttle = throttle(600, 10, 1);
+		MockHttpServletRequest request = new MockHttpServletRequest();
+
+		ClientThrottle.Slot held = ClientThrottle.holdFor(request, throttle.admit("ip:a"));
+		ClientThrottle.Slot job = ClientThrottle.takeOver(request);
+		held.close();
+		assertThat(catchThrowableOfType(DownloadException.class, () -> throttle.admit("ip:a"))).isNotNull();
+
+		job.close();
+		throttle.admit("ip:a");
+	}
+
+	@Test
+	void slotNotTakenOverIsFreedWithRequest() {
+		ClientThrottle throttle = throttle(600, 10, 1);
+		MockHttpServletRequest request = new MockHttpServletRequest();
+
+		ClientThrottle.holdFor(request, throttle.admit("ip:a")).close();
+
+		throttle.admit("ip:a");
+	}
+
+	@Test
+	void deferredRequestsCostNothingUntilCharged() {
+		ClientThrottle throttle = throttle(1, 1, 1);
+
+		for (int i = 0; i < 5; i++) {
+			MockHttpServletRequest cachedRead = new MockHttpServletRequest();
+			ClientThrottle.deferFor(cachedRead, () -> throttle.admit("ip:a")).close();
+		}
+
+		MockHttpServletRequest download = new MockHttpServletRequest();
+		ClientThrottle.Slot held = ClientThrottle.deferFor(download, () -> throttle.admit("ip:a"));
+		ClientThrottle.charge(download);
+		ClientThrottle.charge(download);
+		assertThat(catchThrowableOfType(DownloadException.class, () -> throttle.admit("ip:a")).getStatusCode())
+				.isEqualTo(429);
+
+		held.close();
+		// The one token went to the download; the slot came back with the request.
+		assertThat(catchThrowableOfType(DownloadException.class, () -> throttle.admit("ip:a")).getMessage())
+				.contains("slow down");
+	}
+
+	@Test
+	void purgeDropsOnlyIdleClientsWithFullBuckets() {
+		ClientThrottle throttle = throttle(600, 10, 4);
+		throttle.admit("ip:open");
+		throttle.admit("ip:done").close();
+		// 600 a minute refills the spent token well within this sleep.
+		sleep(150);
+
+		throttle.purgeIdle();
+
+		@SuppressWarnings("unchecked")
+		Map<String, ?> clients = (Map<String, ?>) ReflectionTestUtils.getField(throttle, "clients");
+		assertThat(clients).containsOnlyKeys("ip:open");
+	}
+
+	private static void sleep(long millis) {
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -0,0 +1,52 @@
+package com.antiz.metube.service;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ValueOperations;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class DownloadLeaseTest {
+
+	private final StringRedisTemplate redisTemplate = mock(StringRedisTemplate.class);
+	@SuppressWarnings("unchecked")
+	private final ValueOperations<String, String> values = mock(ValueOperations.class);
+	private final DownloadLease downloadLease = new DownloadLease();
+
+	@BeforeEach
+	void setUp() {
+		when(redisTemplate.opsForValue()).thenReturn(values);
+		ReflectionTestUtils.setField(downloadLease, "redisTemplate", redisTemplate);
+	}
+
+	@Test
+	void expiredLeaseNobodyTookOverIsStillCurrent() {
+		// The lease key is gone, but no other node acquired since: the fence still holds our token.
+		when(values.get("lease-fence:video:yt:abc:mp4:720p")).thenReturn("7");
+
+		assertThat(downloadLease.isCurrent(new DownloadLease.Lease("video:yt:abc:mp4:720p", "node-a:1", 7))).isTrue();
+	}
+
+	@Test
+	void supersededLeaseIsNotCurrent() {
+		when(values.get("lease-fence:video:yt:abc:mp4:720p")).thenReturn("8");
+
+		assertThat(downloadLease.isCurrent(new DownloadLease.Lease("video:yt:abc:mp4:720p", "node-a:1", 7))).isFalse();
+	}
+
+	@Test
+	void expiredFenceCountsAsUnchanged() {
+		when(values.get("lease-fence:video:yt:abc:mp4:720p")).thenReturn(null);
+
+		assertThat(downloadLease.isCurrent(new DownloadLease.Lease("video:yt:abc:mp4:720p", "node-a:1", 7))).isTrue();
+	}
+
+	@Test
+	void noLeaseMeansNoCoordination() {
+		assertThat(downloadLease.isCurrent(null)).isTrue();
+	}
+}
@@ -0,0 +1,51 @@
+package com.antiz.metube.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class DownloadProgressTest {
+
+	@Test
+	void parsesDownloadLines() {
+		DownloadProgress progress = DownloadProgress.fromYtDlpLine(
+				"[download]  42.7% of ~  88.51MiB at    3.21MiB/s ETA 00:17 (frag 12/40)");
+
+		assertThat(progress).isEqualTo(
+				new DownloadProgress(DownloadProgress.DOWNLOADING, 42.7, "3.21MiB/s", "00:17", null));
+	}
+
+	@Test
+	void speedAndEtaAreOptional() {
+		assertThat(DownloadProgress.fromYtDlpLine("[download] 100% of   12.00MiB in 00:00:04"))
+				.isEqualTo(new DownloadProgress(DownloadProgress.DOWNLOADING, 100.0, null, null, null));
+		assertThat(DownloadProgress.fromYtDlpLine("[download]   0.0% of 12.00MiB at  Unknown B/s ETA Unknown"))
+				.extracting(DownloadProgress::percent, DownloadProgress::eta)
+				.containsExactly(0.0, "Unknown");
+	}
+
+	@Test
+	void postProcessingLinesChangePhase() {
+		assertThat(DownloadProgress.fromYtDlpLine("[Merger] Merging formats into \"video.mp4\""))
+				.isEqualTo(DownloadProgress.phase(DownloadProgress.MERGING));
+		assertThat(DownloadProgress.fromYtDlpLine("[VideoRemuxer] Remuxing video from webm to mp4"))
+				.isEqualTo(DownloadProgress.phase(DownloadProgress.MERGING));
+		assertThat(DownloadProgress.fromYtDlpLine("[ExtractAudio] Destination: audio.mp3"))
+				.isEqualTo(DownloadProgress.phase(DownloadProgress.EXTRACTING_AUDIO));
+	}
+
+	@Test
+	void otherLinesCarryNoProgress() {
+		assertThat(DownloadProgress.fromYtDlpLine("[youtube] dQw4w9WgXcQ: Downloading webpage")).isNull();
+		assertThat(DownloadProgress.fromYtDlpLine("[download] Destination: video.f137.mp4")).isNull();
+		assertThat(DownloadProgress.fromYtDlpLine("WARNING: 50% of something")).isNull();
+		assertThat(DownloadProgress.fromYtDlpLine("")).isNull();
+	}
+
+	@Test
+	void mapLeavesOutMissingFields() {
+		assertThat(DownloadProgress.queued(3).toMap()).isEqualTo(Map.of("phase", "queued", "queuePosition", 3));
+	}
+}
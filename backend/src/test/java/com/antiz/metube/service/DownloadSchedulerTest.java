@@ -0,0 +1,136 @@
+package com.antiz.metube.service;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class DownloadSchedulerTest {
+
+	private final CountDownLatch holderDone = new CountDownLatch(1);
+	private final ExecutorService threads = Executors.newVirtualThreadPerTaskExecutor();
+
+	@AfterEach
+	void tearDown() {
+		holderDone.countDown();
+		threads.close();
+	}
+
+	@Test
+	void queuedWorkRunsByPriorityThenArrival() throws Exception {
+		DownloadScheduler scheduler = new DownloadScheduler(1, 10, 60);
+		CompletableFuture<Void> holder = occupy(scheduler);
+		List<String> order = new CopyOnWriteArrayList<>();
+		Map<String, Integer> positions = new ConcurrentHashMap<>();
+
+		CompletableFuture<Void> low = enqueue(scheduler, DownloadScheduler.Priority.LOW, "low", order, positions);
+		CompletableFuture<Void> normal1 = enqueue(scheduler, DownloadScheduler.Priority.NORMAL, "normal-1", order, positions);
+		CompletableFuture<Void> normal2 = enqueue(scheduler, DownloadScheduler.Priority.NORMAL, "normal-2", order, positions);
+		CompletableFuture<Void> high = enqueue(scheduler, DownloadScheduler.Priority.HIGH, "high", order, positions);
+		assertThat(scheduler.queuedCount()).isEqualTo(4);
+
+		holderDone.countDown();
+		CompletableFuture.allOf(holder, low, normal1, normal2, high).get(5, TimeUnit.SECONDS);
+
+		// Each position counts what was ahead when it joined.
+		assertThat(positions).containsExactlyInAnyOrderEntriesOf(
+				Map.of("low", 1, "normal-1", 1, "normal-2", 2, "high", 1));
+
+		assertThat(order).containsExactly("high", "normal-1", "normal-2", "low");
+		assertThat(scheduler.activeCount()).isZero();
+	}
+
+	@Test
+	void fullQueueIsRejectedWithRetryAfter() throws Exception {
+		DownloadScheduler scheduler = new DownloadScheduler(1, 1, 60);
+		occupy(scheduler);
+		enqueue(scheduler, DownloadScheduler.Priority.NORMAL, "queued", new CopyOnWriteArrayList<>(),
+				new ConcurrentHashMap<>());
+
+		assertThatThrownBy(() -> scheduler.run(DownloadScheduler.Priority.HIGH, () -> "rejected"))
+				.isInstanceOfSatisfying(DownloadException.class, e -> {
+					assertThat(e.getStatusCode()).isEqualTo(503);
+					assertThat(e.getRetryAfterSeconds()).isPositive();
+				});
+		assertThat(scheduler.queuedCount()).isEqualTo(1);
+	}
+
+	@Test
+	void finishedSlotPassesStraightToTheNextWaiter() throws Exception {
+		DownloadScheduler scheduler = new DownloadScheduler(1, 5, 60);
+		CompletableFuture<Void> holder = occupy(scheduler);
+		List<Integer> activeWhileRunning = new CopyOnWriteArrayList<>();
+		CompletableFuture<Void> waiter = CompletableFuture.runAsync(() -> call(() ->
+				scheduler.run(DownloadScheduler.Priority.NORMAL, () -> activeWhileRunning.add(scheduler.activeCount()))),
+				threads);
+		awaitQueued(scheduler, 1);
+
+		holderDone.countDown();
+		CompletableFuture.allOf(holder, waiter).get(5, TimeUnit.SECONDS);
+
+		// The slot never went back to the pool in between, so the count held at one.
+		assertThat(activeWhileRunning).containsExactly(1);
+		assertThat(scheduler.activeCount()).isZero();
+		assertThat(scheduler.queuedCount()).isZero();
+	}
+
+	@Test
+	void failingTaskStillFreesItsSlot() {
+		DownloadScheduler scheduler = new DownloadScheduler(1, 0, 60);
+
+		assertThatThrownBy(() -> scheduler.run(DownloadScheduler.Priority.NORMAL, () -> {
+			throw new IOException("boom");
+		})).isInstanceOf(IOException.class);
+		assertThat(scheduler.activeCount()).isZero();
+	}
+
+	private CompletableFuture<Void> occupy(DownloadScheduler scheduler) throws InterruptedException {
+		CountDownLatch started = new CountDownLatch(1);
+		CompletableFuture<Void> holder = CompletableFuture.runAsync(() -> call(() ->
+				scheduler.run(DownloadScheduler.Priority.NORMAL, () -> {
+					started.countDown();
+					holderDone.await();
+					return null;
+				})), threads);
+		assertThat(started.await(5, TimeUnit.SECONDS)).isTrue();
+		return holder;
+	}
+
+	private CompletableFuture<Void> enqueue(DownloadScheduler scheduler, DownloadScheduler.Priority priority,
+											String name, List<String> order, Map<String, Integer> positions)
+			throws InterruptedException {
+		int queued = scheduler.queuedCount();
+		CompletableFuture<Void> future = CompletableFuture.runAsync(() -> call(() ->
+				scheduler.run(priority, position -> positions.put(name, position), () -> order.add(name))), threads);
+		awaitQueued(scheduler, queued + 1);
+		return future;
+	}
+
+	private static void awaitQueued(DownloadScheduler scheduler, int count) throws InterruptedException {
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (scheduler.queuedCount() < count) {
+			assertThat(System.nanoTime()).isLessThan(deadline);
+			Thread.sleep(5);
+		}
+	}
+
+	private static void call(DownloadScheduler.DownloadTask<?> task) {
+		try {
+			task.run();
+		} catch (Exception e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -0,0 +1,90 @@
+package com.antiz.metube.service;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class EgressPoolTest {
+
+	private static final String PROXY_A = "http://a.example:8080";
+	private static final String PROXY_B = "http://b.example:8080";
+
+	private static EgressPool pool(List<String> proxies, List<String> cookieFiles) {
+		return new EgressPool(proxies, cookieFiles, 30, 60);
+	}
+
+	@Test
+	void picksFavourHealthyProxies() {
+		EgressPool pool = pool(List.of(PROXY_A, PROXY_B), List.of());
+		for (int i = 0; i < 10; i++) {
+			pool.record(new EgressPool.Egress(PROXY_A, null), null, FailureCategory.UPSTREAM_UNREACHABLE, 100);
+		}
+
+		int picksOfB = 0;
+		for (int i = 0; i < 1000; i++) {
+			if (PROXY_B.equals(pool.select(null).proxy())) picksOfB++;
+		}
+
+		assertThat(picksOfB).isGreaterThan(900);
+	}
+
+	@Test
+	void botCheckQuarantinesProxyAndCookies(@TempDir Path dir) throws IOException {
+		String cookiesA = Files.writeString(dir.resolve("a.txt"), "# cookies").toString();
+		String cookiesB = Files.writeString(dir.resolve("b.txt"), "# cookies").toString();
+		EgressPool pool = pool(List.of(PROXY_A, PROXY_B), List.of(cookiesA, cookiesB));
+
+		pool.record(new EgressPool.Egress(PROXY_A, cookiesA), null, FailureCategory.BOT_CHECK, 100);
+
+		for (int i = 0; i < 100; i++) {
+			assertThat(pool.select(null)).isEqualTo(new EgressPool.Egress(PROXY_B, cookiesB));
+		}
+	}
+
+	@Test
+	void alternativeSwitchesOnlyForEgressFaults() {
+		EgressPool pool = pool(List.of(PROXY_A, PROXY_B), List.of());
+		EgressPool.Egress failed = new EgressPool.Egress(PROXY_A, null);
+
+		assertThat(pool.alternative(failed, FailureCategory.THROTTLED)).isEqualTo(new EgressPool.Egress(PROXY_B, null));
+		assertThat(pool.alternative(failed, FailureCategory.VIDEO_UNAVAILABLE)).isNull();
+		// Only cookies could help, and there are none to switch to.
+		assertThat(pool.alternative(failed, FailureCategory.AUTH_REQUIRED)).isNull();
+	}
+
+	@Test
+	void videoSticksToEgressThatWorked() {
+		EgressPool pool = pool(List.of(PROXY_A, PROXY_B), List.of());
+		pool.record(new EgressPool.Egress(PROXY_B, null), "abc", null, 100);
+
+		for (int i = 0; i < 100; i++) {
+			assertThat(pool.select("abc").proxy()).isEqualTo(PROXY_B);
+		}
+
+		pool.record(new EgressPool.Egress(PROXY_B, null), "abc", FailureCategory.BOT_CHECK, 100);
+		assertThat(pool.select("abc").proxy()).isEqualTo(PROXY_A);
+	}
+
+	@Test
+	void pushbackIsPoolWideOnlyOnceEveryProxyGotIt() {
+		EgressPool pool = pool(List.of(PROXY_A, PROXY_B), List.of());
+
+		assertThat(pool.record(new EgressPool.Egress(PROXY_A, null), null, FailureCategory.THROTTLED, 100)).isFalse();
+		assertThat(pool.record(new EgressPool.Egress(PROXY_B, null), null, FailureCategory.UNKNOWN, 100)).isFalse();
+		assertThat(pool.record(new EgressPool.Egress(PROXY_B, null), null, FailureCategory.THROTTLED, 100)).isTrue();
+	}
+
+	@Test
+	void directPushbackIsPoolWide() {
+		EgressPool pool = pool(List.of(), List.of());
+
+		assertThat(pool.record(EgressPool.Egress.DIRECT, null, FailureCategory.BOT_CHECK, 100)).isTrue();
+		assertThat(pool.record(EgressPool.Egress.DIRECT, null, null, 100)).isFalse();
+	}
+}
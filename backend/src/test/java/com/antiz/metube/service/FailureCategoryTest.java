@@ -0,0 +1,32 @@
+package com.antiz.metube.service;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class FailureCategoryTest {
+
+	@Test
+	void recognisesYtDlpErrors() {
+		assertThat(FailureCategory.of("ERROR: [youtube] abc: Sign in to confirm you’re not a bot"))
+				.isEqualTo(FailureCategory.BOT_CHECK);
+		assertThat(FailureCategory.of("ERROR: [youtube] abc: Private video")).isEqualTo(FailureCategory.AUTH_REQUIRED);
+		assertThat(FailureCategory.of("ERROR: Requested format is not available"))
+				.isEqualTo(FailureCategory.FORMAT_UNAVAILABLE);
+		assertThat(FailureCategory.of("ERROR: unable to download video data: HTTP Error 429: Too Many Requests"))
+				.isEqualTo(FailureCategory.THROTTLED);
+		assertThat(FailureCategory.of("Download stalled on server")).isEqualTo(FailureCategory.STALLED);
+		assertThat(FailureCategory.of(null)).isEqualTo(FailureCategory.UNKNOWN);
+	}
+
+	@Test
+	void onlyFailuresEveryClientSharesEndClientRetries() {
+		assertThat(FailureCategory.BOT_CHECK.endsClientRetries()).isTrue();
+		assertThat(FailureCategory.GEO_RESTRICTED.endsClientRetries()).isTrue();
+		assertThat(FailureCategory.UNSUPPORTED_URL.endsClientRetries()).isTrue();
+		assertThat(FailureCategory.FORMAT_UNAVAILABLE.endsClientRetries()).isFalse();
+		assertThat(FailureCategory.THROTTLED.endsClientRetries()).isFalse();
+		assertThat(FailureCategory.STALLED.endsClientRetries()).isFalse();
+		assertThat(FailureCategory.UNKNOWN.endsClientRetries()).isFalse();
+	}
+}
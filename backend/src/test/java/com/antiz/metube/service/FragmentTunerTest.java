@@ -0,0 +1,102 @@
+package com.antiz.metube.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class FragmentTunerTest {
+
+	private static final long MB = 1 << 20;
+	private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+	private final DownloadScheduler scheduler = mock(DownloadScheduler.class);
+
+	@Test
+	void settlesOnTheCheapestLevelWithinTenPercentOfTheBest() throws Exception {
+		when(scheduler.activeCount()).thenReturn(1);
+		FragmentTuner tuner = new FragmentTuner(scheduler, true, 8, 16);
+		// Past two connections the link is saturated.
+		Map<Integer, Long> mbPerSecond = Map.of(1, 10L, 2, 19L, 4, 20L, 8, 20L);
+
+		List<Integer> chosen = run(tuner, mbPerSecond, 60);
+
+		assertThat(chosen.get(0)).as("unmeasured, an idle node starts at the top").isEqualTo(8);
+		assertThat(chosen.subList(10, chosen.size())).containsOnly(2);
+		assertThat(tuner.inUse()).isZero();
+	}
+
+	@Test
+	void keepsExploringTheLevelAboveTheBest() throws Exception {
+		when(scheduler.activeCount()).thenReturn(1);
+		FragmentTuner tuner = new FragmentTuner(scheduler, true, 8, 16);
+		// Eight connections get paced harder than four, for now.
+		Map<Integer, Long> mbPerSecond = Map.of(1, 5L, 2, 10L, 4, 20L, 8, 15L);
+
+		List<Integer> steady = run(tuner, mbPerSecond, 60).subList(10, 60);
+
+		assertThat(steady).contains(8);
+		assertThat(steady.stream().filter(fragments -> fragments == 4).count()).isGreaterThan(40);
+	}
+
+	@Test
+	void sharesShrinkWithMoreRunningDownloads() throws Exception {
+		when(scheduler.activeCount()).thenReturn(4);
+		FragmentTuner tuner = new FragmentTuner(scheduler, true, 8, 16);
+
+		assertThat(tuner.acquire()).isEqualTo(4);
+	}
+
+	@Test
+	void waitsRatherThanGoingOverTheBudget() throws Exception {
+		when(scheduler.activeCount()).thenReturn(1);
+		FragmentTuner tuner = new FragmentTuner(scheduler, true, 8, 8);
+		int first = tuner.acquire();
+		assertThat(first).isEqualTo(8);
+
+		// A second download started; the first still holds the whole budget.
+		when(scheduler.activeCount()).thenReturn(2);
+		CompletableFuture<Integer> second = CompletableFuture.supplyAsync(() -> {
+			try {
+				return tuner.acquire();
+			} catch (InterruptedException e) {
+				throw new IllegalStateException(e);
+			}
+		});
+		Thread.sleep(200);
+		assertThat(second).isNotDone();
+		assertThat(tuner.inUse()).isEqualTo(8);
+
+		tuner.release(first, 0, 0);
+		assertThat(second.get(5, TimeUnit.SECONDS)).isEqualTo(4);
+		assertThat(tuner.inUse()).isEqualTo(4);
+	}
+
+	@Test
+	void smallFetchesTeachNothing() throws Exception {
+		when(scheduler.activeCount()).thenReturn(1);
+		FragmentTuner tuner = new FragmentTuner(scheduler, true, 8, 16);
+
+		tuner.release(tuner.acquire(), MB / 2, SECOND);
+
+		assertThat(tuner.rate(8)).isZero();
+	}
+
+	private static List<Integer> run(FragmentTuner tuner, Map<Integer, Long> mbPerSecond, int downloads)
+			throws InterruptedException {
+		List<Integer> chosen = new ArrayList<>();
+		for (int i = 0; i < downloads; i++) {
+			int fragments = tuner.acquire();
+			chosen.add(fragments);
+			tuner.release(fragments, mbPerSecond.get(fragments) * MB, SECOND);
+		}
+		return chosen;
+	}
+}
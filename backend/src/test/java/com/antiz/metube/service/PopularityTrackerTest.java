@@ -0,0 +1,37 @@
+package com.antiz.metube.service;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class PopularityTrackerTest {
+
+	private final PopularityTracker tracker = new PopularityTracker();
+
+	@Test
+	void neverUndercounts() {
+		for (int i = 0; i < 2000; i++) {
+			tracker.record("video:yt:filler" + i + ":mp4:720p");
+		}
+		for (int i = 0; i < 7; i++) {
+			tracker.record("video:yt:hot:mp4:720p");
+		}
+
+		assertThat(tracker.estimate("video:yt:hot:mp4:720p")).isGreaterThanOrEqualTo(7);
+		assertThat(tracker.estimate("video:yt:never:mp4:720p")).isLessThan(3);
+	}
+
+	@Test
+	void decayHalvesCountsUntilAnIdleKeyReadsAsZero() {
+		for (int i = 0; i < 8; i++) {
+			tracker.record("video:yt:a:mp4:720p");
+		}
+
+		tracker.decay();
+		assertThat(tracker.estimate("video:yt:a:mp4:720p")).isEqualTo(4);
+		tracker.decay();
+		tracker.decay();
+		tracker.decay();
+		assertThat(tracker.estimate("video:yt:a:mp4:720p")).isZero();
+	}
+}
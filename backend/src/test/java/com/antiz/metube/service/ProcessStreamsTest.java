@@ -0,0 +1,33 @@
+package com.antiz.metube.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ProcessStreamsTest {
+
+	@Test
+	void waitsForASlotBeforeStartingAndFreesItOnExit() throws Exception {
+		ProcessStreams streams = new ProcessStreams(1);
+		Process first = streams.start(new ProcessBuilder("sleep", "30"));
+		ProcessStreams.Capture stderr = streams.drainStderr(first, "test: ");
+
+		CompletableFuture<Process> second = CompletableFuture.supplyAsync(() -> {
+			try {
+				return streams.start(new ProcessBuilder("echo", "hi"));
+			} catch (Exception e) {
+				throw new IllegalStateException(e);
+			}
+		});
+		Thread.sleep(200);
+		assertThat(second).isNotDone();
+
+		first.destroyForcibly();
+		stderr.await();
+		Process started = second.get(10, TimeUnit.SECONDS);
+		assertThat(new String(streams.readStdout(started).get(10, TimeUnit.SECONDS)).trim()).isEqualTo("hi");
+	}
+}
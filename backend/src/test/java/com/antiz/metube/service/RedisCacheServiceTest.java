@@ -0,0 +1,83 @@
+package com.antiz.metube.service;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.core.ReactiveStringRedisTemplate;
+import org.springframework.data.redis.core.ReactiveValueOperations;
+import org.springframework.test.util.ReflectionTestUtils;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+
+import java.time.Duration;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class RedisCacheServiceTest {
+
+	private final ReactiveStringRedisTemplate redisTemplate = mock(ReactiveStringRedisTemplate.class);
+	@SuppressWarnings("unchecked")
+	private final ReactiveValueOperations<String, String> values = mock(ReactiveValueOperations.class);
+	private final RedisCacheService cache = new RedisCacheService(100, 30, 5, 20);
+
+	@BeforeEach
+	void setUp() {
+		when(redisTemplate.opsForValue()).thenReturn(values);
+		when(values.set(anyString(), anyString(), any(Duration.class))).thenReturn(Mono.just(true));
+		when(redisTemplate.delete(anyString())).thenReturn(Mono.just(1L));
+		when(redisTemplate.convertAndSend(anyString(), anyString())).thenReturn(Mono.just(1L));
+		ReflectionTestUtils.setField(cache, "redisTemplate", redisTemplate);
+		ReflectionTestUtils.setField(cache, "downloadMetrics", mock(DownloadMetrics.class));
+		ReflectionTestUtils.setField(cache, "redisEnabled", true);
+	}
+
+	@Test
+	void lateReplyFillsTheNearCache() {
+		Sinks.One<String> reply = Sinks.one();
+		when(values.get("k")).thenReturn(reply.asMono());
+
+		assertThat(cache.get("k")).isNull();
+		reply.tryEmitValue("v1");
+
+		assertThat(cache.get("k")).isEqualTo("v1");
+	}
+
+	@Test
+	void lateReplyDoesNotOverwriteANewerPut() {
+		Sinks.One<String> reply = Sinks.one();
+		when(values.get("k")).thenReturn(reply.asMono());
+
+		assertThat(cache.get("k")).isNull();
+		cache.put("k", "v2", Duration.ofMinutes(1));
+		reply.tryEmitValue("v1");
+
+		assertThat(cache.get("k")).isEqualTo("v2");
+	}
+
+	@Test
+	void lateReplyDoesNotUndoADelete() {
+		Sinks.One<String> reply = Sinks.one();
+		when(values.get("k")).thenReturn(reply.asMono());
+
+		assertThat(cache.get("k")).isNull();
+		cache.delete("k");
+		reply.tryEmitValue("v1");
+
+		assertThat(cache.get("k")).isNull();
+	}
+
+	@Test
+	void lateReplyAfterARemoteInvalidationIsDropped() {
+		Sinks.One<String> first = Sinks.one();
+		when(values.get("k")).thenReturn(first.asMono(), Mono.just("v2"));
+
+		assertThat(cache.get("k")).isNull();
+		ReflectionTestUtils.invokeMethod(cache, "onInvalidation", "other-node\nk");
+		first.tryEmitValue("v1");
+
+		assertThat(cache.get("k")).isEqualTo("v2");
+	}
+}
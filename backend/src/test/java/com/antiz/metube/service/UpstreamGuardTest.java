@@ -0,0 +1,100 @@
+package com.antiz.metube.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.assertj.core.api.Assertions.catchThrowableOfType;
+
+class UpstreamGuardTest {
+
+	private final AtomicLong clock = new AtomicLong(1_000_000_000L);
+
+	// 60 per minute is one token a second; no waiting, so a missing token fails straight away.
+	private UpstreamGuard guard(int burst, int tripThreshold, long openSeconds, long maxOpenSeconds) {
+		return new UpstreamGuard(60, burst, 0, tripThreshold, 60, openSeconds, maxOpenSeconds, clock::get);
+	}
+
+	private void advanceSeconds(long seconds) {
+		clock.addAndGet(TimeUnit.SECONDS.toNanos(seconds));
+	}
+
+	@Test
+	void bucketAllowsBurstThenRefills() throws InterruptedException {
+		UpstreamGuard guard = guard(2, 5, 120, 900);
+
+		guard.acquire();
+		guard.acquire();
+		DownloadException paced = catchThrowableOfType(DownloadException.class, guard::acquire);
+		assertThat(paced.getStatusCode()).isEqualTo(503);
+		assertThat(paced.getRetryAfterSeconds()).isEqualTo(1);
+
+		advanceSeconds(1);
+		guard.acquire();
+	}
+
+	@Test
+	void repeatedPushbackOpensBreaker() {
+		UpstreamGuard guard = guard(10, 2, 120, 900);
+
+		guard.record(FailureCategory.THROTTLED);
+		guard.record(FailureCategory.UPSTREAM_UNREACHABLE);
+		assertThat(guard.state()).isEqualTo(UpstreamGuard.State.CLOSED);
+		guard.record(FailureCategory.BOT_CHECK);
+
+		assertThat(guard.state()).isEqualTo(UpstreamGuard.State.OPEN);
+		DownloadException rejected = catchThrowableOfType(DownloadException.class, guard::acquire);
+		assertThat(rejected.getStatusCode()).isEqualTo(503);
+		assertThat(rejected.getRetryAfterSeconds()).isEqualTo(120);
+		assertThatThrownBy(guard::checkOpen).isInstanceOf(DownloadException.class);
+	}
+
+	@Test
+	void pushbackOutsideWindowDoesNotTrip() {
+		UpstreamGuard guard = guard(10, 2, 120, 900);
+
+		guard.record(FailureCategory.THROTTLED);
+		advanceSeconds(61);
+		guard.record(FailureCategory.THROTTLED);
+
+		assertThat(guard.state()).isEqualTo(UpstreamGuard.State.CLOSED);
+	}
+
+	@Test
+	void halfOpenLetsOneProbeThroughAndClosesOnSuccess() throws InterruptedException {
+		UpstreamGuard guard = guard(10, 1, 120, 900);
+		guard.record(FailureCategory.THROTTLED);
+		advanceSeconds(120);
+
+		guard.acquire();
+		assertThat(guard.state()).isEqualTo(UpstreamGuard.State.HALF_OPEN);
+		assertThatThrownBy(guard::acquire).isInstanceOf(DownloadException.class);
+		// The probe's own fallbacks may still run.
+		guard.checkOpen();
+
+		guard.record(null);
+		assertThat(guard.state()).isEqualTo(UpstreamGuard.State.CLOSED);
+		guard.acquire();
+	}
+
+	@Test
+	void failedProbeBacksOffUpToMaximum() throws InterruptedException {
+		UpstreamGuard guard = guard(10, 1, 120, 300);
+		guard.record(FailureCategory.THROTTLED);
+
+		advanceSeconds(120);
+		guard.acquire();
+		guard.record(FailureCategory.THROTTLED);
+		assertThat(catchThrowableOfType(DownloadException.class, guard::acquire).getRetryAfterSeconds())
+				.isEqualTo(240);
+
+		advanceSeconds(240);
+		guard.acquire();
+		guard.record(FailureCategory.BOT_CHECK);
+		assertThat(catchThrowableOfType(DownloadException.class, guard::acquire).getRetryAfterSeconds())
+				.isEqualTo(300);
+	}
+}
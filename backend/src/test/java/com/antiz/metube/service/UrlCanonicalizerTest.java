@@ -0,0 +1,52 @@
+package com.antiz.metube.service;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class UrlCanonicalizerTest {
+
+	@Test
+	void variantsOfOneVideoShareCacheIdentity() {
+		String[] variants = {
+				"https://www.youtube.com/watch?v=dQw4w9WgXcQ",
+				"https://youtu.be/dQw4w9WgXcQ?si=abc123",
+				"youtube.com/watch?v=dQw4w9WgXcQ&t=42",
+				"https://m.youtube.com/watch?feature=share&v=dQw4w9WgXcQ",
+				"https://www.youtube.com/shorts/dQw4w9WgXcQ",
+				"https://music.youtube.com/watch?v=dQw4w9WgXcQ&list=RDAMVM",
+				"https://www.youtube-nocookie.com/embed/dQw4w9WgXcQ",
+		};
+
+		for (String url : variants) {
+			assertThat(UrlCanonicalizer.cacheIdentity(url)).as(url).isEqualTo("yt:dQw4w9WgXcQ");
+			assertThat(UrlCanonicalizer.canonicalUrl(url)).isEqualTo("https://www.youtube.com/watch?v=dQw4w9WgXcQ");
+		}
+	}
+
+	@Test
+	void unrecognisedUrlsPassThrough() {
+		assertThat(UrlCanonicalizer.videoId("https://vimeo.com/123456")).isNull();
+		assertThat(UrlCanonicalizer.videoId("https://www.youtube.com/watch?v=short")).isNull();
+		assertThat(UrlCanonicalizer.cacheIdentity(" https://vimeo.com/123456 ")).isEqualTo("https://vimeo.com/123456");
+	}
+
+	@Test
+	void playlistLinksAreRecognisedButWatchLinksWin() {
+		assertThat(UrlCanonicalizer.playlistId("https://www.youtube.com/playlist?list=PLabc_123-XYZ"))
+				.isEqualTo("PLabc_123-XYZ");
+		assertThat(UrlCanonicalizer.playlistId("music.youtube.com/playlist?list=OLAK5uy_abc")).isEqualTo("OLAK5uy_abc");
+		assertThat(UrlCanonicalizer.playlistId("https://www.youtube.com/watch?v=dQw4w9WgXcQ&list=PLabc")).isNull();
+		assertThat(UrlCanonicalizer.playlistId("https://vimeo.com/playlist?list=PLabc")).isNull();
+	}
+
+	@Test
+	void qualityIsCaseInsensitiveAndCollapsedPerFormat() {
+		assertThat(Quality.parse("1080P")).isEqualTo(Quality.P1080);
+		assertThat(Quality.parse("4K")).isEqualTo(Quality.P2160);
+		assertThat(Quality.parse("bogus")).isEqualTo(Quality.BEST);
+		assertThat(Quality.parse("720p").effectiveFor("mp3")).isEqualTo(Quality.BEST);
+		assertThat(Quality.parse("320k").effectiveFor("mp4")).isEqualTo(Quality.BEST);
+		assertThat(Quality.parse("320k").effectiveFor("mp3").audioBitrate()).isEqualTo("320K");
+	}
+}
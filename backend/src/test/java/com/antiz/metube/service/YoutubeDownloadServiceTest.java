@@ -0,0 +1,80 @@
+package com.antiz.metube.service;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class YoutubeDownloadServiceTest {
+
+	private static final String ETAG = "\"3e8-18f2a\"";
+	private static final long LAST_MODIFIED = 1_700_000_000_000L;
+
+	@Test
+	void parsesClosedRangeAndClampsEnd() {
+		assertThat(YoutubeDownloadService.parseRange("bytes=0-99", 1000)).containsExactly(0, 99);
+		assertThat(YoutubeDownloadService.parseRange("bytes=900-5000", 1000)).containsExactly(900, 999);
+	}
+
+	@Test
+	void parsesOpenEndedRange() {
+		assertThat(YoutubeDownloadService.parseRange("bytes=100-", 1000)).containsExactly(100, 999);
+	}
+
+	@Test
+	void parsesSuffixRange() {
+		assertThat(YoutubeDownloadService.parseRange("bytes=-200", 1000)).containsExactly(800, 999);
+		assertThat(YoutubeDownloadService.parseRange("bytes=-5000", 1000)).containsExactly(0, 999);
+	}
+
+	@Test
+	void unsatisfiableRangeIsEmpty() {
+		assertThat(YoutubeDownloadService.parseRange("bytes=1000-", 1000)).isEmpty();
+		assertThat(YoutubeDownloadService.parseRange("bytes=-0", 1000)).isEmpty();
+	}
+
+	@Test
+	void multiRangeAndMalformedHeadersAreIgnored() {
+		assertThat(YoutubeDownloadService.parseRange("bytes=0-9,20-29", 1000)).isNull();
+		assertThat(YoutubeDownloadService.parseRange("bytes=50-10", 1000)).isNull();
+		assertThat(YoutubeDownloadService.parseRange("bytes=abc-", 1000)).isNull();
+		assertThat(YoutubeDownloadService.parseRange("items=0-9", 1000)).isNull();
+		assertThat(YoutubeDownloadService.parseRange("bytes=-", 1000)).isNull();
+	}
+
+	@Test
+	void etagMatchesListsWildcardAndWeakTags() {
+		assertThat(YoutubeDownloadService.etagMatches(null, ETAG)).isFalse();
+		assertThat(YoutubeDownloadService.etagMatches("\"other\", " + ETAG, ETAG)).isTrue();
+		assertThat(YoutubeDownloadService.etagMatches("*", ETAG)).isTrue();
+		assertThat(YoutubeDownloadService.etagMatches("W/" + ETAG, ETAG)).isTrue();
+		assertThat(YoutubeDownloadService.etagMatches("\"other\"", ETAG)).isFalse();
+	}
+
+	@Test
+	void ifRangeHoldsWithoutHeaderOrForSameEtag() {
+		assertThat(YoutubeDownloadService.ifRangeHolds(new MockHttpServletRequest(), ETAG, LAST_MODIFIED)).isTrue();
+		assertThat(YoutubeDownloadService.ifRangeHolds(ifRange(ETAG), ETAG, LAST_MODIFIED)).isTrue();
+		assertThat(YoutubeDownloadService.ifRangeHolds(ifRange("\"other\""), ETAG, LAST_MODIFIED)).isFalse();
+		// If-Range needs a strong comparison.
+		assertThat(YoutubeDownloadService.ifRangeHolds(ifRange("W/" + ETAG), ETAG, LAST_MODIFIED)).isFalse();
+	}
+
+	@Test
+	void ifRangeHoldsForDateNotBeforeLastModified() {
+		MockHttpServletRequest same = new MockHttpServletRequest();
+		same.addHeader("If-Range", LAST_MODIFIED);
+		MockHttpServletRequest older = new MockHttpServletRequest();
+		older.addHeader("If-Range", LAST_MODIFIED - 60_000);
+
+		assertThat(YoutubeDownloadService.ifRangeHolds(same, ETAG, LAST_MODIFIED)).isTrue();
+		assertThat(YoutubeDownloadService.ifRangeHolds(older, ETAG, LAST_MODIFIED)).isFalse();
+		assertThat(YoutubeDownloadService.ifRangeHolds(ifRange("yesterday"), ETAG, LAST_MODIFIED)).isFalse();
+	}
+
+	private static MockHttpServletRequest ifRange(String value) {
+		MockHttpServletRequest request = new MockHttpServletRequest();
+		request.addHeader("If-Range", value);
+		return request;
+	}
+}